@@ -0,0 +1,138 @@
+package com.brinybeach.tinywebserver;
+
+import com.brinybeach.tinywebserver.handler.HttpRequestHandlerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measure how many new connections per second the HttpServerRunner
+ * can take with different numbers of acceptor threads, with a shared
+ * server socket and with one SO_REUSEPORT socket per acceptor. Every
+ * client opens a connection, makes one request with Connection: close
+ * and reads until the server closes it, like a health checker does.
+ *
+ * Run with:
+ *
+ * mvn -Pbenchmark compile exec:java@connection-rate-benchmark
+ *
+ * The acceptors can only scale with the number of cores on the machine
+ * that runs both the benchmark clients and the server.
+ *
+ * author: bryantbunderson
+ */
+public class ConnectionRateBenchmark {
+    private static final int port = 8090;
+
+    private static final int clients = 64;
+    private static final int duration = 5000;
+
+    private static final byte[] request = (
+        "GET /rest/stats HTTP/1.1\r\n" +
+        "Host: localhost:8090\r\n" +
+        "Connection: close\r\n" +
+        "\r\n").getBytes();
+
+    public static void main(String[] args) throws Exception {
+        HttpRequestHandlerFactory.getInstance().scanPackage("com.brinybeach.webserver");
+
+        System.out.println(String.format("%d clients, %d ms per run, %d cores", clients, duration,
+                Runtime.getRuntime().availableProcessors()));
+        System.out.println(String.format("%-10s %10s %16s", "acceptors", "reuseport", "connections/s"));
+
+        boolean reuseportAvailable = HttpServerRunner.getReusePortOption() != null;
+
+        for (int acceptors : new int[] { 1, 2, 4, 8 }) {
+            run(acceptors, false);
+            if (acceptors > 1 && reuseportAvailable) {
+                run(acceptors, true);
+            }
+        }
+
+        if (!reuseportAvailable) {
+            System.out.println("reuseport  skipped, needs SO_REUSEPORT (Java 9 or newer on Linux)");
+        }
+    }
+
+    private static void run(int acceptors, boolean reuseport) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("port", Integer.toString(port));
+        properties.setProperty("poolsize", Integer.toString(clients));
+        properties.setProperty("queuedepth", Integer.toString(clients));
+        properties.setProperty("admissiontarget", "0");
+        properties.setProperty("acceptors", Integer.toString(acceptors));
+        properties.setProperty("reuseport", Boolean.toString(reuseport));
+
+        HttpServerRunner serverRunner = new HttpServerRunner(new HttpServerConfig(properties));
+        Thread serverThread = new Thread(serverRunner, "benchmark-server");
+        serverThread.start();
+        while (!serverRunner.isRunning()) Thread.sleep(10);
+        Thread.sleep(200);
+
+        ExecutorService clientService = Executors.newFixedThreadPool(clients);
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+
+        final long end = System.currentTimeMillis() + duration;
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            futures.add(clientService.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return runClient(end);
+                }
+            }));
+        }
+
+        long connections = 0;
+        for (Future<Long> future : futures) {
+            connections += future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        clientService.shutdown();
+        serverThread.interrupt();
+        serverThread.join();
+
+        System.out.println(String.format("%-10d %10s %16.0f", acceptors, reuseport ? "yes" : "no", connections / (elapsed / 1e9)));
+    }
+
+    /**
+     * Open connections one after the other until the end time.
+     *
+     * @return the number of connections that got a complete response
+     */
+    private static long runClient(long end) {
+        long connections = 0;
+        byte[] buffer = new byte[4096];
+
+        while (System.currentTimeMillis() < end) {
+            try {
+                Socket socket = new Socket("localhost", port);
+                try {
+                    OutputStream outputStream = socket.getOutputStream();
+                    outputStream.write(request);
+                    outputStream.flush();
+
+                    InputStream inputStream = socket.getInputStream();
+                    while (inputStream.read(buffer) != -1) ;
+                } finally {
+                    socket.close();
+                }
+                connections++;
+            } catch (IOException e) {
+                // Refused or reset under load, try again
+            }
+        }
+
+        return connections;
+    }
+}
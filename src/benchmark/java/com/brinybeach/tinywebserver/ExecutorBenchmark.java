@@ -0,0 +1,168 @@
+package com.brinybeach.tinywebserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compare the fixed connection pool at several pool sizes with
+ * a virtual thread per connection. Each client opens a keep-alive
+ * connection and sends requests with a pause between them the way
+ * a browser tab does, so most connections are idle most of the time.
+ *
+ * Run with:
+ *
+ * mvn -Pbenchmark compile exec:java@executor-benchmark
+ *
+ * The virtual executor needs Maven to run on Java 21 or newer.
+ *
+ * author: bryantbunderson
+ */
+public class ExecutorBenchmark {
+    private static final int port = 8090;
+
+    private static final int clients = 1000;
+    private static final int requestsPerClient = 20;
+    private static final int thinkTime = 50;
+
+    private static final byte[] request = (
+        "GET /rest/stats HTTP/1.1\r\n" +
+        "Host: localhost:8090\r\n" +
+        "Connection: Keep-Alive\r\n" +
+        "\r\n").getBytes();
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%d clients, %d requests each, %d ms think time", clients, requestsPerClient, thinkTime));
+        System.out.println(String.format("%-10s %8s %12s %10s %10s", "executor", "poolsize", "requests/s", "p50 ms", "p99 ms"));
+
+        for (int poolsize : new int[] { 10, 100, 1000 }) {
+            run("fixed", poolsize);
+        }
+
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            run("virtual", 0);
+        } catch (NoSuchMethodException e) {
+            System.out.println("virtual    skipped, needs Java 21");
+        }
+    }
+
+    private static void run(String executor, int poolsize) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("port", Integer.toString(port));
+        properties.setProperty("poolsize", Integer.toString(Math.max(1, poolsize)));
+        properties.setProperty("timeout", "30000");
+        properties.setProperty("executor", executor);
+        properties.setProperty("queuedepth", Integer.toString(clients));
+        properties.setProperty("admissiontarget", "0");
+
+        HttpServerRunner serverRunner = new HttpServerRunner(new HttpServerConfig(properties));
+        Thread serverThread = new Thread(serverRunner, "benchmark-server");
+        serverThread.start();
+        while (!serverRunner.isRunning()) Thread.sleep(10);
+        Thread.sleep(200);
+
+        ExecutorService clientService = Executors.newFixedThreadPool(clients);
+        List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            futures.add(clientService.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    return runClient();
+                }
+            }));
+        }
+
+        long[] latencies = new long[clients * requestsPerClient];
+        int count = 0;
+        for (Future<long[]> future : futures) {
+            for (long latency : future.get()) {
+                latencies[count++] = latency;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        clientService.shutdown();
+        serverThread.interrupt();
+        serverThread.join();
+
+        Arrays.sort(latencies, 0, count);
+        double requestsPerSecond = count / (elapsed / 1e9);
+        double p50 = latencies[count / 2] / 1e6;
+        double p99 = latencies[(int) (count * 0.99)] / 1e6;
+
+        System.out.println(String.format("%-10s %8s %12.0f %10.2f %10.2f", executor,
+                (poolsize > 0) ? Integer.toString(poolsize) : "-", requestsPerSecond, p50, p99));
+    }
+
+    /**
+     * Send the requests on one keep-alive connection.
+     *
+     * @return the latency of each request in nanoseconds
+     */
+    private static long[] runClient() throws IOException, InterruptedException {
+        long[] latencies = new long[requestsPerClient];
+
+        Socket socket = new Socket("localhost", port);
+        try {
+            OutputStream outputStream = socket.getOutputStream();
+            InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+
+            for (int i = 0; i < requestsPerClient; i++) {
+                long start = System.nanoTime();
+
+                outputStream.write(request);
+                outputStream.flush();
+                readResponse(inputStream);
+
+                latencies[i] = System.nanoTime() - start;
+                Thread.sleep(thinkTime);
+            }
+        } finally {
+            socket.close();
+        }
+
+        return latencies;
+    }
+
+    /**
+     * Read one response head and its Content-Length body.
+     */
+    static void readResponse(InputStream inputStream) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int contentLength = 0;
+
+        while (true) {
+            int c = inputStream.read();
+            if (c == -1) throw new IOException("End of stream");
+            if (c != '\n') {
+                if (c != '\r') line.append((char) c);
+                continue;
+            }
+
+            if (line.length() == 0) break;
+
+            String header = line.toString();
+            if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Integer.parseInt(header.substring(15).trim());
+            }
+            line.setLength(0);
+        }
+
+        for (int i = 0; i < contentLength; i++) {
+            if (inputStream.read() == -1) throw new IOException("End of stream");
+        }
+    }
+}
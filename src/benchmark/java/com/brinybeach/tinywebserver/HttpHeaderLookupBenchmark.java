@@ -0,0 +1,145 @@
+package com.brinybeach.tinywebserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the cost of the header lookups that the HttpResponseRules
+ * make for every request. Each operation starts with a new request,
+ * so the cost of anything done per request is included:
+ *
+ * hashMap       copying the headers into a HashMap and exact case get()s, like the old HttpRequest
+ * lengthScan    comparing the name with every parsed header name of the same length
+ * stringNames   HttpRequest.existsHeader(String)
+ * internedNames HttpRequest.existsHeader(HttpHeaderName) with the lower case name bytes
+ *
+ * Run with:
+ *
+ * mvn -Pbenchmark compile exec:exec@jmh -Djmh.benchmark=HttpHeaderLookupBenchmark
+ *
+ * author: bryantbunderson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpHeaderLookupBenchmark {
+
+    private static final String[] lookups = {
+        "Expect", "Host", "If-Match", "If-None-Match", "Range", "Content-Encoding", "Connection"
+    };
+
+    private static final HttpHeaderName[] internedLookups = {
+        HttpHeaderName.EXPECT, HttpHeaderName.HOST, HttpHeaderName.IF_MATCH, HttpHeaderName.IF_NONE_MATCH,
+        HttpHeaderName.RANGE, HttpHeaderName.CONTENT_ENCODING, HttpHeaderName.CONNECTION
+    };
+
+    private final String requestHead =
+        "GET /index.html HTTP/1.1\r\n" +
+        "Host: localhost:8080\r\n" +
+        "Connection: keep-alive\r\n" +
+        "Cache-Control: max-age=0\r\n" +
+        "Upgrade-Insecure-Requests: 1\r\n" +
+        "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_6) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/52.0.2743.116 Safari/537.36\r\n" +
+        "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8\r\n" +
+        "Accept-Encoding: gzip, deflate, sdch\r\n" +
+        "Accept-Language: en-US,en;q=0.8\r\n" +
+        "If-None-Match: \"6b8f1e2a\"\r\n" +
+        "\r\n";
+
+    private byte[] head;
+    private int[] headerOffsets;
+    private int headerCount;
+    private Map<String, String> headers;
+
+    /**
+     * Find the header offsets the way the HttpRequestParser records them.
+     */
+    @Setup
+    public void setup() {
+        head = requestHead.getBytes();
+        headerOffsets = new int[64];
+        headers = new HashMap<String, String>();
+
+        int offset = requestHead.indexOf("\r\n") + 2;
+        while (!requestHead.startsWith("\r\n", offset)) {
+            int colon = requestHead.indexOf(':', offset);
+            int end = requestHead.indexOf("\r\n", offset);
+
+            int i = headerCount * 4;
+            headerOffsets[i] = offset;
+            headerOffsets[i+1] = colon;
+            headerOffsets[i+2] = colon + 2;
+            headerOffsets[i+3] = end;
+            headerCount++;
+
+            headers.put(requestHead.substring(offset, colon), requestHead.substring(colon + 2, end));
+            offset = end + 2;
+        }
+    }
+
+    @Benchmark
+    public void hashMap(Blackhole blackhole) {
+        Map<String, String> copy = new HashMap<String, String>();
+        copy.putAll(headers);
+        for (String name : lookups) {
+            blackhole.consume(copy.get(name));
+        }
+    }
+
+    @Benchmark
+    public void lengthScan(Blackhole blackhole) {
+        blackhole.consume(newRequest());
+        for (String name : lookups) {
+            blackhole.consume(lengthScan(name));
+        }
+    }
+
+    @Benchmark
+    public void stringNames(Blackhole blackhole) {
+        HttpRequest request = newRequest();
+        for (String name : lookups) {
+            blackhole.consume(request.existsHeader(name));
+        }
+    }
+
+    @Benchmark
+    public void internedNames(Blackhole blackhole) {
+        HttpRequest request = newRequest();
+        for (HttpHeaderName name : internedLookups) {
+            blackhole.consume(request.existsHeader(name));
+        }
+    }
+
+    private int lengthScan(String name) {
+        for (int index = headerCount - 1; index >= 0; index--) {
+            int nameStart = headerOffsets[index * 4];
+            int nameEnd = headerOffsets[index * 4 + 1];
+            if (nameEnd - nameStart != name.length()) continue;
+
+            int i = 0;
+            while (i < name.length() && Character.toLowerCase((char) head[nameStart + i]) == Character.toLowerCase(name.charAt(i))) i++;
+            if (i == name.length()) return index;
+        }
+        return -1;
+    }
+
+    private HttpRequest newRequest() {
+        return new HttpRequest(head, "GET", 4, 15, -1, -1, "HTTP/1.1", headerOffsets, headerCount, null, 0);
+    }
+}
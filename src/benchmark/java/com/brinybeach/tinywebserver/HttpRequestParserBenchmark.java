@@ -0,0 +1,76 @@
+package com.brinybeach.tinywebserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the byte at a time HttpRequestParser with the character
+ * at a time LegacyHttpRequestParser on a typical browser request.
+ * Each parse reads the headers the HttpResponseRules always read.
+ *
+ * Run with:
+ *
+ * mvn -Pbenchmark compile exec:exec@jmh -Djmh.benchmark=HttpRequestParserBenchmark
+ *
+ * Add -prof gc to the JMH arguments to compare the allocation per request.
+ *
+ * author: bryantbunderson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpRequestParserBenchmark {
+
+    private final byte[] request = (
+        "GET /index.html?lang=en HTTP/1.1\r\n" +
+        "Host: localhost:8080\r\n" +
+        "Connection: keep-alive\r\n" +
+        "Cache-Control: max-age=0\r\n" +
+        "Upgrade-Insecure-Requests: 1\r\n" +
+        "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_6) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/52.0.2743.116 Safari/537.36\r\n" +
+        "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8\r\n" +
+        "Accept-Encoding: gzip, deflate, sdch\r\n" +
+        "Accept-Language: en-US,en;q=0.8\r\n" +
+        "\r\n").getBytes();
+
+    // Reused the way the HttpConnectionRunner reuses it for a connection
+    private final HttpRequestParser parser = new HttpRequestParser();
+
+    @Benchmark
+    public Object legacyParser() throws Exception {
+        HttpRequest httpRequest = new LegacyHttpRequestParser().parse(new ByteArrayInputStream(request));
+        return readHeaders(httpRequest);
+    }
+
+    @Benchmark
+    public Object byteParser() throws Exception {
+        HttpRequest httpRequest = parser.parse(new BufferedInputStream(new ByteArrayInputStream(request)));
+        return readHeaders(httpRequest);
+    }
+
+    private static Object readHeaders(HttpRequest httpRequest) {
+        httpRequest.getUri();
+        httpRequest.getHeader("Connection");
+        httpRequest.getHeader("Expect");
+        httpRequest.getHeader("Host");
+        httpRequest.getHeader("If-Match");
+        httpRequest.getHeader("If-None-Match");
+        httpRequest.getHeader("Range");
+        httpRequest.getHeader("Content-Encoding");
+        return httpRequest;
+    }
+}
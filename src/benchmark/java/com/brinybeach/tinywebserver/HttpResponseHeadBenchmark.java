@@ -0,0 +1,99 @@
+package com.brinybeach.tinywebserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the cost of serializing the head of a typical static file
+ * response, with the headers that the HttpResponseRules add:
+ *
+ * getBytes     a new BufferedOutputStream and a String.getBytes() for every part, like the old HttpResponse.write
+ * headEncoder  HttpHeadEncoder with the cached status line and names, written in one write
+ *
+ * Run with:
+ *
+ * mvn -Pbenchmark compile exec:exec@jmh -Djmh.benchmark=HttpResponseHeadBenchmark
+ *
+ * author: bryantbunderson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpResponseHeadBenchmark {
+
+    private final String version = "HTTP/1.1";
+    private final int code = 200;
+    private final String reason = "OK";
+    private final Map<String, String> headers = new HashMap<String, String>();
+
+    private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(1024);
+    private final HttpHeadEncoder encoder = new HttpHeadEncoder();
+
+    @Setup
+    public void setup() {
+        headers.put("Date", "Mon, 19 Sep 2016 13:44:00 GMT");
+        headers.put("Server", "TinyWebServer/1.0");
+        headers.put("ETag", "\"6b8f1e2a\"");
+        headers.put("Content-Length", "12348");
+        headers.put("Content-Type", "text/html");
+        headers.put("Connection", "Keep-Alive");
+        headers.put("Keep-Alive", "timeout=5, max=100");
+    }
+
+    @Benchmark
+    public int getBytes() throws IOException {
+        outputStream.reset();
+
+        OutputStream out = new BufferedOutputStream(outputStream);
+
+        out.write(version.getBytes());
+        out.write(' ');
+        out.write(Integer.toString(code).getBytes());
+        out.write(' ');
+        out.write(reason.getBytes());
+        out.write("\r\n".getBytes());
+
+        for (String name : headers.keySet()) {
+            String value = headers.get(name);
+
+            out.write(name.getBytes());
+            out.write(": ".getBytes());
+            out.write(value.getBytes());
+            out.write("\r\n".getBytes());
+        }
+
+        out.write("\r\n".getBytes());
+        out.flush();
+
+        return outputStream.size();
+    }
+
+    @Benchmark
+    public int headEncoder() throws IOException {
+        outputStream.reset();
+
+        encoder.encode(version, code, reason, headers);
+        encoder.writeTo(outputStream);
+
+        return outputStream.size();
+    }
+}
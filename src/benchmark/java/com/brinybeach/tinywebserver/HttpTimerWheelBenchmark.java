@@ -0,0 +1,122 @@
+package com.brinybeach.tinywebserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedule and cancel a million connection timeouts, the way a server
+ * with a million keep-alive connections would between two requests on
+ * each of them. The delays are spread from 1 to 60 seconds. The score
+ * is the time per timer.
+ *
+ * wheelScheduleCancel      HttpTimerWheel, including the tick that unlinks the cancelled timers
+ * wheelScheduleExpire      HttpTimerWheel, advanced a minute so that every timer fires
+ * executorScheduleCancel   a ScheduledThreadPoolExecutor that removes cancelled tasks
+ *
+ * Run with:
+ *
+ * mvn -Pbenchmark compile exec:exec@jmh -Djmh.benchmark=HttpTimerWheelBenchmark
+ *
+ * author: bryantbunderson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpTimerWheelBenchmark {
+    private static final int timers = 1000000;
+
+    private final Runnable task = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private long[] delays;
+    private HttpTimerWheel.Timeout[] timeouts;
+    private ScheduledFuture<?>[] futures;
+    private ScheduledThreadPoolExecutor executor;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+
+        delays = new long[timers];
+        for (int i = 0; i < timers; i++) {
+            delays[i] = 1000 + random.nextInt(59000);
+        }
+
+        timeouts = new HttpTimerWheel.Timeout[timers];
+        futures = new ScheduledFuture<?>[timers];
+
+        executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(timers)
+    public HttpTimerWheel wheelScheduleCancel() {
+        HttpTimerWheel timerWheel = new HttpTimerWheel();
+
+        for (int i = 0; i < timers; i++) {
+            timeouts[i] = timerWheel.schedule(task, delays[i]);
+        }
+        timerWheel.advance();
+
+        for (int i = 0; i < timers; i++) {
+            timeouts[i].cancel();
+        }
+        timerWheel.advance(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timerWheel.getTickMillis()));
+
+        return timerWheel;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(timers)
+    public HttpTimerWheel wheelScheduleExpire() {
+        HttpTimerWheel timerWheel = new HttpTimerWheel();
+
+        for (int i = 0; i < timers; i++) {
+            timerWheel.schedule(task, delays[i]);
+        }
+        timerWheel.advance(System.nanoTime() + TimeUnit.SECONDS.toNanos(61));
+
+        return timerWheel;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(timers)
+    public int executorScheduleCancel() {
+        for (int i = 0; i < timers; i++) {
+            futures[i] = executor.schedule(task, delays[i], TimeUnit.MILLISECONDS);
+        }
+
+        for (int i = 0; i < timers; i++) {
+            futures[i].cancel(false);
+        }
+
+        return executor.getQueue().size();
+    }
+}
@@ -0,0 +1,106 @@
+package com.brinybeach.tinywebserver;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Accepts connections on a server socket and hands them to
+ * its shard of the connection pool. The HttpServerRunner starts
+ * one of these per acceptor thread. Acceptors either share one
+ * server socket or each have their own SO_REUSEPORT socket so
+ * that the kernel spreads the new connections between them.
+ *
+ * author: bryantbunderson
+ */
+class HttpAcceptor implements Runnable {
+    private static final Logger logger = LogManager.getLogger(HttpAcceptor.class);
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executorService;
+    private final HttpIdleConnectionWatcher idleWatcher;
+    private final HttpAdmissionController admissionController;
+    private final HttpTimerWheel timerWheel;
+    private final HttpServerConfig config;
+    private final int timeout;
+
+    /**
+     * @param serverSocket the bound server socket, it must have a ServerSocketChannel
+     * @param executorService the shard of the pool that runs the HttpConnectionRunners
+     * @param idleWatcher the watcher the connections park with between requests
+     * @param admissionController decides when to shed connections, may be null
+     * @param timerWheel times the request deadlines and handlers, may be null
+     * @param config has the client socket timeout and the request deadlines
+     */
+    HttpAcceptor(ServerSocket serverSocket, ExecutorService executorService, HttpIdleConnectionWatcher idleWatcher,
+                 HttpAdmissionController admissionController, HttpTimerWheel timerWheel, HttpServerConfig config) {
+        this.serverSocket = serverSocket;
+        this.executorService = executorService;
+        this.idleWatcher = idleWatcher;
+        this.admissionController = admissionController;
+        this.timerWheel = timerWheel;
+        this.config = config;
+        this.timeout = config.getTimeout();
+    }
+
+    /**
+     * Accept connections until the server socket is closed or the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        HttpServerStats stats = HttpServerStats.getInstance();
+
+        // Wait for client connections on the port.
+        logger.debug("Waiting for client connection...");
+        while (!Thread.interrupted() && !serverSocket.isClosed()) {
+            try {
+                Socket clientSocket = serverSocket.accept();
+
+                // Timeout client connections so that badly behaved Web clients
+                // don't plug up our thread pool by not disconnecting properly.
+                clientSocket.setSoTimeout(timeout);
+
+                if (admissionController != null && admissionController.isOverloaded()) {
+                    stats.connectionShed();
+                    HttpConnectionRunner.rejectConnection(clientSocket);
+                    continue;
+                }
+
+                // Create a new clientRunner to handle the connection. Add the runner to
+                // the executor service which wraps it in a thread from the pool. If the
+                // thread pool is full then the runners are queued up until one comes
+                // available. It's good to use a shortish timeout on the clientSocket so
+                // that the thread pool isn't overwhelmed by dead connections that the
+                // client doesn't close.
+                HttpConnectionRunner connectionRunner = new HttpConnectionRunner(clientSocket, idleWatcher, admissionController, timerWheel, config);
+                try {
+                    connectionRunner.setQueuedAt(System.nanoTime());
+                    executorService.execute(connectionRunner);
+                    stats.connectionAccepted();
+                } catch (RejectedExecutionException e) {
+                    stats.connectionRejected();
+                    HttpConnectionRunner.rejectConnection(clientSocket);
+                }
+
+            } catch (SocketTimeoutException ignore) {
+                // This was caused by the server socket accept timeout so ignored it
+                // and continue as long as the acceptor thread is not interrupted.
+            } catch (ClosedByInterruptException e) {
+                // The acceptor thread was interrupted while waiting in accept()
+                // which also closes the channel.
+                break;
+            } catch (IOException e) {
+                // The server runner closed the server socket while we were in accept()
+                if (serverSocket.isClosed()) break;
+                logger.error(e);
+            }
+        }
+    }
+}
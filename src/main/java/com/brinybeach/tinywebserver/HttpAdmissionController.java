@@ -0,0 +1,98 @@
+package com.brinybeach.tinywebserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides if queued connections are still worth serving based
+ * on how long they waited for a pool thread, in the style of the
+ * CoDel queue management algorithm.
+ *
+ * A short burst fills the queue but it drains quickly, so some
+ * connections always get a thread soon after they were queued. If
+ * even the shortest wait stays above the target for a whole interval
+ * there is a standing queue and the server is overloaded. While it is
+ * overloaded, connections that waited longer than the target are
+ * dropped when they reach a thread and new connections are shed as
+ * soon as they are accepted. The overload ends after an interval in
+ * which some connection waited less than the target, or in which no
+ * connection reached a thread at all.
+ *
+ * author: bryantbunderson
+ */
+public class HttpAdmissionController {
+    private static final LongSupplier systemNanoTime = new LongSupplier() {
+        @Override
+        public long getAsLong() {
+            return System.nanoTime();
+        }
+    };
+
+    private final long target;
+    private final long interval;
+    private final LongSupplier nanoTime;
+
+    private long intervalStart;
+    private long minSojourn = Long.MAX_VALUE;
+    private volatile boolean overloaded;
+
+    /**
+     * @param target the acceptable time in ms to wait for a pool thread
+     * @param interval how many ms the waits have to stay above the target
+     */
+    public HttpAdmissionController(int target, int interval) {
+        this(target, interval, systemNanoTime);
+    }
+
+    /**
+     * @param target the acceptable time in ms to wait for a pool thread
+     * @param interval how many ms the waits have to stay above the target
+     * @param nanoTime the clock the intervals are timed with, like System.nanoTime()
+     */
+    HttpAdmissionController(int target, int interval, LongSupplier nanoTime) {
+        this.target = TimeUnit.MILLISECONDS.toNanos(target);
+        this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+        this.nanoTime = nanoTime;
+        this.intervalStart = nanoTime.getAsLong();
+    }
+
+    /**
+     * Record the time a connection spent in the queue and decide if it
+     * should be served. Called when the connection reaches a pool thread.
+     *
+     * @param sojourn the time in ns the connection waited for a thread
+     * @return false if the connection should be dropped
+     */
+    public synchronized boolean admit(long sojourn) {
+        updateInterval(nanoTime.getAsLong());
+
+        if (sojourn < minSojourn) minSojourn = sojourn;
+
+        return !(overloaded && sojourn > target);
+    }
+
+    /**
+     * @return true if new connections should be shed without queueing them
+     */
+    public boolean isOverloaded() {
+        if (overloaded) {
+            synchronized (this) {
+                updateInterval(nanoTime.getAsLong());
+            }
+        }
+        return overloaded;
+    }
+
+    /**
+     * At the end of each interval decide if the shortest wait seen
+     * during the interval means that there is a standing queue.
+     */
+    private void updateInterval(long now) {
+        if (now - intervalStart < interval) return;
+
+        overloaded = (minSojourn != Long.MAX_VALUE && minSojourn > target);
+
+        minSojourn = Long.MAX_VALUE;
+        intervalStart = now;
+    }
+}
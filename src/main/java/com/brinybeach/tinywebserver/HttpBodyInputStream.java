@@ -0,0 +1,78 @@
+package com.brinybeach.tinywebserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The body of a request with a Content-Length, read straight
+ * from the connection InputStream as the handler asks for it.
+ *
+ * The stream ends after Content-Length bytes so that a handler
+ * can never read into the next pipelined request. Closing it
+ * does not close the connection.
+ *
+ * author: bryantbunderson
+ */
+class HttpBodyInputStream extends InputStream {
+    private final InputStream inputStream;
+    private long remaining;
+
+    /**
+     * @param inputStream the connection InputStream positioned at the start of the body
+     * @param contentLength the Content-Length header value
+     */
+    HttpBodyInputStream(InputStream inputStream, long contentLength) {
+        this.inputStream = inputStream;
+        this.remaining = contentLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining == 0) return -1;
+
+        int c = inputStream.read();
+        if (c == -1) throw new EOFException("End of stream reading message body");
+
+        remaining--;
+        return c;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        if (remaining == 0) return -1;
+
+        int bytesRead = inputStream.read(bytes, offset, (int) Math.min(length, remaining));
+        if (bytesRead == -1) throw new EOFException("End of stream reading message body");
+
+        remaining -= bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long skipped = inputStream.skip(Math.min(count, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(inputStream.available(), remaining);
+    }
+
+    /**
+     * The connection stays open for the next request.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return the number of body bytes that haven't been read yet
+     */
+    long getRemaining() {
+        return remaining;
+    }
+}
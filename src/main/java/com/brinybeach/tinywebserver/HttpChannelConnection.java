@@ -0,0 +1,674 @@
+package com.brinybeach.tinywebserver;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The state of a single non-blocking client connection owned
+ * by a HttpEventLoop. All methods except the worker Runnable
+ * are called on the event loop thread only.
+ *
+ * Bytes read from the channel are fed to a HttpRequestParser on the
+ * event loop thread as they arrive, so a slow client never ties up a
+ * thread. All of the complete requests, more than one if the client
+ * pipelines, are then handed to a worker thread to be handled in order
+ * while the connection stops reading. The worker hands the serialized
+ * responses back to the event loop which writes them out and then goes
+ * back to reading. File content isn't serialized, the event loop sends it
+ * from the file with FileChannel.transferTo as the channel takes it.
+ *
+ * Content from a HttpContentWriter is handed to the event loop as it is
+ * written instead. The worker waits whenever more than 64 KB of it hasn't
+ * been written to the channel yet, so a big response never piles up in memory.
+ *
+ * The connection keeps at most a couple of timeouts in the event loop's
+ * HttpTimerWheel: the keep-alive timeout while it waits for a request,
+ * the request deadline while a request is arriving and the handler
+ * timeout while a worker has its requests.
+ *
+ * author: bryantbunderson
+ */
+class HttpChannelConnection {
+    private static final Logger logger = LogManager.getLogger(HttpChannelConnection.class);
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final HttpEventLoop eventLoop;
+    private final ExecutorService workers;
+    private final SocketAddress clientAddress;
+
+    private final HttpServerConfig config;
+    private final HttpRequestParser parser;
+    // Only used by the worker that has the requests, there is one at a time
+    private final HttpHeadEncoder headEncoder = new HttpHeadEncoder();
+    private final HttpRequestDeadline deadline;
+    private final int keepalivetimeout;
+    private final int handlertimeout;
+    private final int writetimeout;
+    private HttpTimerWheel.Timeout idleTimeout;
+    private HttpTimerWheel.Timeout handlerTimeout;
+    private byte[] input = new byte[4096];
+    private int inputLength;
+    private final int maxInput;
+    private boolean badRequest;
+
+    private static final int maxUnwritten = 65536;
+
+    private final Deque<Output> output = new ArrayDeque<Output>();
+    private boolean closeAfterWrite;
+    private boolean busy;
+    private boolean streaming;
+    private volatile boolean abandoned;
+    private int requestCount;
+
+    // Guarded by this, the worker thread handling the requests
+    private Thread worker;
+
+    // Guarded by this, the streamed bytes the event loop hasn't written yet
+    private long unwritten;
+    private boolean closed;
+
+    HttpChannelConnection(SocketChannel channel, SelectionKey key, HttpEventLoop eventLoop, ExecutorService workers,
+                          HttpServerConfig config) {
+        this.channel = channel;
+        this.key = key;
+        this.eventLoop = eventLoop;
+        this.workers = workers;
+        this.config = config;
+        this.parser = new HttpRequestParser(config);
+        this.keepalivetimeout = config.getKeepalivetimeout();
+        this.handlertimeout = config.getHandlertimeout();
+        this.writetimeout = config.getTimeout();
+        // The most a request can leave unconsumed before the parser gives up on it
+        this.maxInput = (int) Math.min(Integer.MAX_VALUE - 8,
+            (long) config.getMaxrequestline() + config.getMaxheaderbytes() + config.getMaxbodybuffer());
+        this.clientAddress = channel.socket().getRemoteSocketAddress();
+
+        this.deadline = new HttpRequestDeadline(eventLoop.getTimerWheel(), config.getHeadertimeout(), config.getBodytimeout(),
+            config.getMinbodyrate(), new Runnable() {
+                @Override
+                public void run() {
+                    requestTimeout();
+                }
+            });
+
+        logger.debug(String.format("Client connected %s", clientAddress));
+
+        waitForRequest();
+    }
+
+    /**
+     * @return true while a worker is handling a request for this connection
+     */
+    boolean isBusy() {
+        return busy;
+    }
+
+    /**
+     * Answer the request that missed its deadline with a 408 and close.
+     */
+    private void requestTimeout() {
+        if (busy || !key.isValid()) return;
+        logger.debug(String.format("Request timeout %s", clientAddress));
+
+        badRequest = true;
+        busy = true;
+        key.interestOps(0);
+        writeResponse(HttpConnectionRunner.limitResponse(408), true);
+    }
+
+    /**
+     * Answer the requests that a worker has been handling for too long with
+     * a 503 and close. The worker is interrupted and its responses dropped.
+     */
+    private void handlerTimeout() {
+        if (!busy || !key.isValid()) return;
+        logger.debug(String.format("Handler timeout %s", clientAddress));
+
+        synchronized (this) {
+            if (worker != null) worker.interrupt();
+        }
+
+        abandoned = true;
+        writeResponse(HttpConnectionRunner.limitResponse(503), true);
+    }
+
+    /**
+     * Close the connection if the next request doesn't start within the keep-alive timeout.
+     */
+    private void waitForRequest() {
+        if (idleTimeout != null) return;
+
+        idleTimeout = eventLoop.getTimerWheel().schedule(new Runnable() {
+            @Override
+            public void run() {
+                idleTimeout = null;
+                if (!busy) close();
+            }
+        }, keepalivetimeout);
+    }
+
+    private void cancelIdleTimeout() {
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+            idleTimeout = null;
+        }
+    }
+
+    /**
+     * Read whatever is available on the channel and hand
+     * a complete request to a worker if one has arrived.
+     */
+    void onReadable() throws IOException {
+        if (inputLength == input.length) {
+            // Nothing is read while a worker has the connection, so this only
+            // grows while the parser holds on to a partial head or a body it
+            // buffers. Its limits should stop a request long before the cap.
+            if (input.length >= maxInput) {
+                logger.debug(String.format("Request too large %s", clientAddress));
+                close();
+                return;
+            }
+            input = Arrays.copyOf(input, (int) Math.min((long) input.length * 2, maxInput));
+        }
+
+        int bytesRead = channel.read(ByteBuffer.wrap(input, inputLength, input.length - inputLength));
+        if (bytesRead == -1) {
+            close();
+            return;
+        }
+
+        inputLength += bytesRead;
+
+        long now = System.currentTimeMillis();
+        deadline.received(now, bytesRead);
+        deadline.waiting(now);
+
+        if (!busy) {
+            dispatchNextRequests();
+        }
+    }
+
+    /**
+     * Write as much of the pending response as the channel will take. When
+     * the response is out either close the connection or go back to reading.
+     */
+    void onWritable() throws IOException {
+        while (!output.isEmpty()) {
+            Output pending = output.peek();
+
+            if (!pending.write(channel)) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            output.poll().close();
+
+            if (pending.streamed) written(pending.getLength());
+        }
+
+        // The worker is still writing the rest of the response
+        if (streaming) {
+            key.interestOps(0);
+            return;
+        }
+
+        if (closeAfterWrite) {
+            close();
+            return;
+        }
+
+        busy = false;
+        dispatchNextRequests();
+    }
+
+    void close() {
+        cancelIdleTimeout();
+        deadline.stop();
+        if (handlerTimeout != null) handlerTimeout.cancel();
+
+        for (Output pending : output) {
+            pending.close();
+        }
+        output.clear();
+
+        key.cancel();
+        try { channel.close(); } catch (IOException ignore) {}
+
+        // A worker waiting to stream more of a response gives up
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        logger.debug(String.format("Client disconnected %s", clientAddress));
+    }
+
+    /**
+     * Feed the buffered bytes to the parser and hand all of the requests
+     * that are complete to a worker, otherwise wait for more bytes to arrive.
+     * A badly formed request is passed on as a null so that the worker
+     * answers it with a 400, or the status code for the limit it went over,
+     * after the requests before it.
+     */
+    private void dispatchNextRequests() {
+        final List<HttpRequest> requests = new ArrayList<HttpRequest>();
+
+        int offset = 0;
+        while (offset < inputLength && !badRequest) {
+            HttpRequestParser.Status status = parser.feed(input, offset, inputLength - offset);
+            offset += parser.getConsumed();
+
+            if (status == HttpRequestParser.Status.COMPLETE) {
+                requests.add(parser.getRequest());
+            } else if (status == HttpRequestParser.Status.ERROR) {
+                requests.add(null);
+                badRequest = true;
+            }
+        }
+
+        final int errorCode = parser.getErrorCode();
+
+        System.arraycopy(input, offset, input, 0, inputLength - offset);
+        inputLength -= offset;
+
+        if (requests.isEmpty()) {
+            // The deadline starts with the first bytes of a head, only
+            // the keep-alive timeout applies between requests.
+            if (parser.isReadingBody()) {
+                cancelIdleTimeout();
+                if (!deadline.isBody()) {
+                    deadline.startBody();
+                    deadline.waiting(System.currentTimeMillis());
+                }
+            } else if (parser.isReadingHead()) {
+                cancelIdleTimeout();
+                if (!deadline.isHead()) deadline.startHead(System.currentTimeMillis());
+            } else {
+                deadline.stop();
+                waitForRequest();
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+
+        // Stop reading while the worker has the requests so that
+        // responses go out in order and a client can't flood us.
+        busy = true;
+        key.interestOps(0);
+
+        // Nothing is read while busy, the deadline starts again afterwards
+        cancelIdleTimeout();
+        deadline.stop();
+
+        if (handlertimeout > 0) {
+            handlerTimeout = eventLoop.getTimerWheel().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    handlerTimeout();
+                }
+            }, handlertimeout);
+        }
+
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleRequests(requests, errorCode);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            close();
+        }
+    }
+
+    /**
+     * Called on a worker thread. Handle the pipelined requests back
+     * to back and pass all of the serialized responses back to the event loop
+     * in one piece so that they can go out in as few packets as possible.
+     *
+     * @param errorCode the status code for the null that ends the requests after a badly formed one
+     */
+    private void handleRequests(List<HttpRequest> requests, int errorCode) {
+        synchronized (this) {
+            worker = Thread.currentThread();
+        }
+
+        try {
+            handleRequests(requests, errorCode, new ByteArrayOutputStream());
+        } finally {
+            synchronized (this) {
+                worker = null;
+            }
+            // Don't leave an interrupt meant for these requests on the pool thread
+            Thread.interrupted();
+        }
+    }
+
+    private void handleRequests(List<HttpRequest> requests, int errorCode, ByteArrayOutputStream outputStream) {
+        List<Output> outputs = new ArrayList<Output>();
+        boolean close = false;
+        boolean streamed = false;
+
+        for (HttpRequest request : requests) {
+            HttpResponse response;
+
+            if (request == null) {
+                byte[] limitResponse = HttpConnectionRunner.limitResponse(errorCode);
+                if (limitResponse != null) {
+                    outputStream.write(limitResponse, 0, limitResponse.length);
+                    close = true;
+                    break;
+                }
+            }
+
+            if (request != null) {
+                response = HttpRequestDispatcher.dispatch(request, ++requestCount, config);
+            } else {
+                response = HttpRequestDispatcher.dispatchError(errorCode);
+            }
+
+            int size = outputStream.size();
+            try {
+                FileChannel file = response.getContentChannel();
+                ByteBuffer body = response.getContentBuffer();
+                if (file != null) {
+                    // The head goes out with the bytes before it and the file follows
+                    long position = file.position();
+                    response.writeHead(outputStream, headEncoder);
+                    outputs.add(new Output(outputStream.toByteArray(), null, file, position, response.getContentLength()));
+                    outputStream = new ByteArrayOutputStream();
+                } else if (body != null) {
+                    // The buffer is gathered with the head rather than copied
+                    response.writeHead(outputStream, headEncoder);
+                    outputs.add(new Output(outputStream.toByteArray(), body.duplicate(), null, 0, 0));
+                    outputStream = new ByteArrayOutputStream();
+                } else if (response.getContentWriter() != null) {
+                    // Everything ahead of it goes first, then the content as it is written
+                    if (outputStream.size() > 0) {
+                        outputs.add(new Output(outputStream.toByteArray(), null, null, 0, 0));
+                    }
+                    writePartial(outputs);
+                    outputs = new ArrayList<Output>();
+                    outputStream = new ByteArrayOutputStream();
+
+                    streamed = true;
+                    response.write(new BufferedOutputStream(new StreamingOutputStream()), null, true, headEncoder);
+                } else {
+                    response.write(outputStream, null, true, headEncoder);
+                }
+            } catch (IOException e) {
+                // Part of a streamed response may be out already, all that can be done is to close
+                if (streamed) {
+                    logger.debug(e);
+                    close = true;
+                    break;
+                }
+
+                logger.error(e);
+                response = HttpRequestDispatcher.dispatchError(500);
+                try {
+                    outputStream = truncate(outputStream, size);
+                    response.write(outputStream, null, true, headEncoder);
+                } catch (IOException ignore) {}
+            }
+
+            // Anything pipelined after a close is dropped
+            if ("close".equals(response.getHeader("Connection"))) {
+                close = true;
+                break;
+            }
+        }
+
+        if (outputStream.size() > 0) {
+            outputs.add(new Output(outputStream.toByteArray(), null, null, 0, 0));
+        }
+
+        final List<Output> responseOutputs = outputs;
+        final boolean closeAfterWrite = close;
+
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The client already got a 503 if the handler took too long
+                if (abandoned) {
+                    for (Output pending : responseOutputs) {
+                        pending.close();
+                    }
+                    return;
+                }
+
+                if (handlerTimeout != null) {
+                    handlerTimeout.cancel();
+                    handlerTimeout = null;
+                }
+                streaming = false;
+                writeResponse(responseOutputs, closeAfterWrite);
+            }
+        });
+    }
+
+    /**
+     * Called on a worker thread. Hand the start of a response that is still
+     * being written to the event loop, after waiting for it to catch up if
+     * too much of what was handed to it before hasn't been written yet. The
+     * handler timeout is over once the response starts, so a client that
+     * stops reading for the connection timeout is closed instead.
+     */
+    private void writePartial(final List<Output> outputs) throws IOException {
+        long length = 0;
+        for (Output pending : outputs) {
+            pending.streamed = true;
+            length += pending.getLength();
+        }
+
+        synchronized (this) {
+            long progress = unwritten;
+            long giveUp = System.currentTimeMillis() + writetimeout;
+
+            while (unwritten > maxUnwritten && !closed) {
+                long remaining = giveUp - System.currentTimeMillis();
+                if (writetimeout > 0 && remaining <= 0) {
+                    stalled();
+                    throw new IOException("Client stopped reading a streamed response");
+                }
+
+                try {
+                    wait(writetimeout > 0 ? remaining : 0);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while streaming a response");
+                }
+
+                // The deadline is for the client to read something, not all of it
+                if (unwritten < progress) {
+                    progress = unwritten;
+                    giveUp = System.currentTimeMillis() + writetimeout;
+                }
+            }
+            if (closed) throw new IOException("Connection closed while streaming a response");
+
+            unwritten += length;
+        }
+
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (abandoned || !key.isValid()) {
+                    for (Output pending : outputs) {
+                        pending.close();
+                    }
+                    return;
+                }
+
+                // The response has started, the handler timeout is over
+                if (handlerTimeout != null) {
+                    handlerTimeout.cancel();
+                    handlerTimeout = null;
+                }
+
+                streaming = true;
+                output.addAll(outputs);
+
+                try {
+                    onWritable();
+                } catch (IOException e) {
+                    logger.debug(e);
+                    close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Called on a worker thread. Close the connection of a client that
+     * stopped reading, on the event loop that owns it.
+     */
+    private void stalled() {
+        logger.debug(String.format("Write timeout %s", clientAddress));
+
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (key.isValid()) close();
+            }
+        });
+    }
+
+    /**
+     * Called on the event loop thread when streamed bytes have been written.
+     */
+    private synchronized void written(long length) {
+        unwritten -= length;
+        notifyAll();
+    }
+
+    /**
+     * What a HttpContentWriter writes, handed to the event loop a buffer at a time.
+     */
+    private class StreamingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            List<Output> outputs = new ArrayList<Output>();
+            outputs.add(new Output(Arrays.copyOfRange(bytes, offset, offset + length), null, null, 0, 0));
+            writePartial(outputs);
+        }
+    }
+
+    private static ByteArrayOutputStream truncate(ByteArrayOutputStream outputStream, int size) throws IOException {
+        ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+        truncated.write(outputStream.toByteArray(), 0, size);
+        return truncated;
+    }
+
+    private void writeResponse(byte[] responseBytes, boolean close) {
+        List<Output> outputs = new ArrayList<Output>();
+        outputs.add(new Output(responseBytes, null, null, 0, 0));
+        writeResponse(outputs, close);
+    }
+
+    private void writeResponse(List<Output> outputs, boolean close) {
+        if (!key.isValid()) {
+            for (Output pending : outputs) {
+                pending.close();
+            }
+            return;
+        }
+
+        output.addAll(outputs);
+        closeAfterWrite = close;
+
+        try {
+            onWritable();
+        } catch (IOException e) {
+            logger.debug(e);
+            close();
+        }
+    }
+
+    /**
+     * Serialized bytes followed by an optional content buffer or region of a
+     * file. The buffer is gathered with the bytes into the same write. The file
+     * is sent with FileChannel.transferTo so it never passes through the heap,
+     * and like the bytes it goes out as fast as the channel takes it.
+     */
+    private static final class Output {
+        private final ByteBuffer[] buffers;
+        private final FileChannel file;
+        private final long end;
+        private long position;
+
+        // Counted as unwritten until the event loop has written it
+        private boolean streamed;
+
+        Output(byte[] bytes, ByteBuffer body, FileChannel file, long position, long length) {
+            if (body != null) {
+                this.buffers = new ByteBuffer[] { ByteBuffer.wrap(bytes), body };
+            } else {
+                this.buffers = new ByteBuffer[] { ByteBuffer.wrap(bytes) };
+            }
+            this.file = file;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        /**
+         * @return the number of serialized bytes
+         */
+        int getLength() {
+            return buffers[0].capacity();
+        }
+
+        /**
+         * @return true once everything has been written
+         */
+        boolean write(SocketChannel channel) throws IOException {
+            ByteBuffer last = buffers[buffers.length - 1];
+            if (last.hasRemaining()) {
+                channel.write(buffers);
+                if (last.hasRemaining()) return false;
+            }
+
+            while (file != null && position < end) {
+                long transferred = file.transferTo(position, end - position, channel);
+                if (transferred == 0) {
+                    // Either the socket buffer is full or the file has shrunk
+                    if (position >= file.size()) {
+                        throw new IOException("The file is shorter than its Content-Length");
+                    }
+                    return false;
+                }
+                position += transferred;
+            }
+            return true;
+        }
+
+        void close() {
+            if (file != null) {
+                try { file.close(); } catch (IOException ignore) {}
+            }
+        }
+    }
+}
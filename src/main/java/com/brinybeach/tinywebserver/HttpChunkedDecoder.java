@@ -0,0 +1,205 @@
+package com.brinybeach.tinywebserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A state machine that follows the framing of a chunked body.
+ * It is given the framing bytes one at a time and is only told
+ * how many chunk-data bytes went by, so the data itself can go
+ * straight to where it's needed and a chunk is never held whole.
+ *
+ * 3.6.1 Chunked Transfer Coding (RFC-2616)
+ *
+ * Chunked-Body   = *chunk
+ *                  last-chunk
+ *                  trailer
+ *                  CRLF
+ *
+ * chunk          = chunk-size [ chunk-extension ] CRLF
+ *                  chunk-data CRLF
+ * chunk-size     = 1*HEX
+ * last-chunk     = 1*("0") [ chunk-extension ] CRLF
+ * trailer        = *(entity-header CRLF)
+ *
+ * Chunk extensions are skipped. Trailer headers are kept and can
+ * be looked up once the whole body has been decoded.
+ *
+ * author: bryantbunderson
+ */
+class HttpChunkedDecoder {
+    // The longest chunk-size line and the longest trailer
+    private static final int maxLineLength = 8192;
+
+    private enum State { SIZE, EXTENSION, SIZE_LF, DATA, DATA_CR, DATA_LF, TRAILER, TRAILER_LF, COMPLETE }
+
+    private State state = State.SIZE;
+    private long chunkSize;
+    private int sizeDigits;
+    private int lineLength;
+    private long dataRemaining;
+    private int trailerLength;
+
+    private ByteArrayOutputStream trailerLine;
+    private Map<String, String> trailers;
+
+    /**
+     * @return true while the next bytes are chunk-data rather than framing
+     */
+    boolean isData() {
+        return state == State.DATA;
+    }
+
+    /**
+     * @return true once the last-chunk and the trailer have gone by
+     */
+    boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    /**
+     * @return how many chunk-data bytes are left in the current chunk
+     */
+    long getDataRemaining() {
+        return dataRemaining;
+    }
+
+    /**
+     * Some of the chunk-data went by.
+     *
+     * @param count the number of bytes, no more than getDataRemaining()
+     */
+    void dataRead(long count) {
+        dataRemaining -= count;
+        if (dataRemaining == 0) {
+            state = State.DATA_CR;
+        }
+    }
+
+    /**
+     * Follow the framing by one byte.
+     *
+     * @param c the next byte of framing as an unsigned value
+     * @throws IOException if the framing is badly formed
+     */
+    void framing(int c) throws IOException {
+        if (++lineLength > maxLineLength) throw new IOException("Chunk framing line is too long");
+
+        switch (state) {
+            case SIZE:
+                int digit = Character.digit(c, 16);
+                if (digit >= 0) {
+                    if (chunkSize > (Long.MAX_VALUE >> 4)) throw new IOException("Chunk size is too large");
+                    chunkSize = (chunkSize << 4) + digit;
+                    sizeDigits++;
+                } else if (sizeDigits == 0) {
+                    throw new IOException("Missing chunk size");
+                } else if (c == ';' || c == ' ' || c == '\t') {
+                    state = State.EXTENSION;
+                } else if (c == '\r') {
+                    state = State.SIZE_LF;
+                } else {
+                    throw new IOException("Bad character in chunk size");
+                }
+                break;
+
+            case EXTENSION:
+                if (c == '\r') state = State.SIZE_LF;
+                break;
+
+            case SIZE_LF:
+                if (c != '\n') throw new IOException("Missing CRLF after chunk size");
+                lineLength = 0;
+                if (chunkSize == 0) {
+                    state = State.TRAILER;
+                } else {
+                    dataRemaining = chunkSize;
+                    state = State.DATA;
+                }
+                break;
+
+            case DATA_CR:
+                if (c != '\r') throw new IOException("Missing CRLF after chunk data");
+                state = State.DATA_LF;
+                break;
+
+            case DATA_LF:
+                if (c != '\n') throw new IOException("Missing CRLF after chunk data");
+                chunkSize = 0;
+                sizeDigits = 0;
+                lineLength = 0;
+                state = State.SIZE;
+                break;
+
+            case TRAILER:
+                if (++trailerLength > maxLineLength) throw new IOException("Trailer is too long");
+                if (c == '\r') {
+                    state = State.TRAILER_LF;
+                } else {
+                    if (trailerLine == null) trailerLine = new ByteArrayOutputStream();
+                    trailerLine.write(c);
+                }
+                break;
+
+            case TRAILER_LF:
+                if (c != '\n') throw new IOException("Missing CRLF after trailer");
+                lineLength = 0;
+                if (trailerLine == null || trailerLine.size() == 0) {
+                    state = State.COMPLETE;
+                } else {
+                    addTrailer(new String(trailerLine.toByteArray(), StandardCharsets.ISO_8859_1));
+                    trailerLine.reset();
+                    state = State.TRAILER;
+                }
+                break;
+
+            default:
+                throw new IOException("Unexpected chunk framing");
+        }
+    }
+
+    /**
+     * Follow the framing and data of a chunked body that has arrived in a
+     * byte array without copying the data anywhere. Stops at the end of
+     * the body so that the bytes after it are left for the next request.
+     *
+     * @return the number of bytes that belong to the body
+     * @throws IOException if the framing is badly formed
+     */
+    int scan(byte[] bytes, int offset, int count) throws IOException {
+        int i = 0;
+        while (i < count && state != State.COMPLETE) {
+            if (state == State.DATA) {
+                int dataCount = (int) Math.min(dataRemaining, count - i);
+                dataRead(dataCount);
+                i += dataCount;
+            } else {
+                framing(bytes[offset + i] & 0xff);
+                i++;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Trailer field names are not case sensitive.
+     *
+     * @param name the trailer field name
+     * @return the trailer field value or null if it wasn't sent or the body hasn't been decoded yet
+     */
+    String getTrailer(String name) {
+        if (state != State.COMPLETE || trailers == null) return null;
+        return trailers.get(name);
+    }
+
+    private void addTrailer(String line) throws IOException {
+        int colon = line.indexOf(':');
+        if (colon <= 0) throw new IOException("Bad trailer");
+
+        if (trailers == null) trailers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        trailers.put(line.substring(0, colon), line.substring(colon + 1).trim());
+    }
+}
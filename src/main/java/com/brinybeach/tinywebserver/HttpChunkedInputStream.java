@@ -0,0 +1,89 @@
+package com.brinybeach.tinywebserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The body of a request with Transfer-Encoding: chunked, decoded
+ * from the connection InputStream as the handler reads it.
+ *
+ * The chunk-data is read straight into the handler's buffer, so an
+ * upload of any size is read in constant memory. The framing is read
+ * a byte at a time, which is cheap from the BufferedInputStream and
+ * means the stream never reads past the end of the body into the next
+ * pipelined request. Closing it does not close the connection.
+ *
+ * author: bryantbunderson
+ */
+class HttpChunkedInputStream extends InputStream {
+    private final InputStream inputStream;
+    private final HttpChunkedDecoder decoder = new HttpChunkedDecoder();
+
+    /**
+     * @param inputStream the connection InputStream positioned at the start of the body
+     */
+    HttpChunkedInputStream(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextData()) return -1;
+
+        int c = inputStream.read();
+        if (c == -1) throw new EOFException("End of stream reading chunk data");
+
+        decoder.dataRead(1);
+        return c;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        if (!nextData()) return -1;
+
+        int bytesRead = inputStream.read(bytes, offset, (int) Math.min(length, decoder.getDataRemaining()));
+        if (bytesRead == -1) throw new EOFException("End of stream reading chunk data");
+
+        decoder.dataRead(bytesRead);
+        return bytesRead;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (!decoder.isData()) return 0;
+        return (int) Math.min(inputStream.available(), decoder.getDataRemaining());
+    }
+
+    /**
+     * The connection stays open for the next request.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @param name the trailer field name
+     * @return the trailer field value or null if it wasn't sent or the body hasn't been read yet
+     */
+    String getTrailer(String name) {
+        return decoder.getTrailer(name);
+    }
+
+    /**
+     * Read framing until there is chunk-data to read or the body has ended.
+     *
+     * @return false at the end of the body
+     */
+    private boolean nextData() throws IOException {
+        while (!decoder.isData()) {
+            if (decoder.isComplete()) return false;
+
+            int c = inputStream.read();
+            if (c == -1) throw new EOFException("End of stream reading chunk framing");
+            decoder.framing(c);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,113 @@
+package com.brinybeach.tinywebserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The body of a response with Transfer-Encoding: chunked, encoded onto
+ * the connection OutputStream as the HttpContentWriter produces it.
+ *
+ * Small writes are collected into chunks of up to 8 KB and a write that is
+ * bigger than that becomes a chunk of its own, so the framing costs a few
+ * bytes per chunk rather than per write. A flush() sends the chunk that has
+ * been collected so far. Closing it writes the last chunk but does not close
+ * the connection.
+ *
+ * author: bryantbunderson
+ */
+class HttpChunkedOutputStream extends OutputStream {
+    private static final byte[] crlf = { '\r', '\n' };
+    private static final byte[] lastChunk = { '0', '\r', '\n', '\r', '\n' };
+    private static final byte[] hexDigits = "0123456789abcdef".getBytes();
+
+    private final OutputStream outputStream;
+    private final byte[] buffer;
+    private final byte[] sizeLine = new byte[10];
+    private int count;
+    private boolean closed;
+
+    /**
+     * @param outputStream the connection OutputStream positioned after the head
+     */
+    HttpChunkedOutputStream(OutputStream outputStream) {
+        this(outputStream, 8192);
+    }
+
+    /**
+     * @param chunkSize the most that is collected into one chunk
+     */
+    HttpChunkedOutputStream(OutputStream outputStream, int chunkSize) {
+        this.outputStream = outputStream;
+        this.buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (closed) throw new IOException("Chunked stream is closed");
+        if (count == buffer.length) writeChunk();
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) throw new IOException("Chunked stream is closed");
+
+        if (length >= buffer.length) {
+            writeChunk();
+            writeChunk(bytes, offset, length);
+            return;
+        }
+
+        if (count + length > buffer.length) writeChunk();
+
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+    }
+
+    /**
+     * Send what has been collected as a chunk.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        outputStream.flush();
+    }
+
+    /**
+     * Send what has been collected and the last chunk, without closing the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+
+        writeChunk();
+        outputStream.write(lastChunk);
+        outputStream.flush();
+        closed = true;
+    }
+
+    private void writeChunk() throws IOException {
+        if (count > 0) {
+            writeChunk(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private void writeChunk(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) return;
+
+        // The chunk-size in hex followed by CRLF, filled in from the end
+        int start = sizeLine.length - 2;
+        sizeLine[start] = '\r';
+        sizeLine[start + 1] = '\n';
+        int size = length;
+        do {
+            sizeLine[--start] = hexDigits[size & 0xf];
+            size >>>= 4;
+        } while (size != 0);
+
+        outputStream.write(sizeLine, start, sizeLine.length - start);
+        outputStream.write(bytes, offset, length);
+        outputStream.write(crlf);
+    }
+}
@@ -1,11 +1,10 @@
 package com.brinybeach.tinywebserver;
 
-import com.brinybeach.tinywebserver.handler.HttpHandlerInstance;
-import com.brinybeach.tinywebserver.handler.HttpRequestHandlerFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.FileNotFoundException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -18,14 +17,73 @@ import java.net.SocketTimeoutException;
  * Handle Web requests on a single socket InputStream
  * and write the response to the socket OutputStream.
  *
- * Properly handle Keep-Alive connections.
+ * Properly handle Keep-Alive connections. When a HttpIdleConnectionWatcher
+ * is given the runner parks the connection with it after each response
+ * instead of blocking its thread while waiting for the next request.
+ *
+ * When a HttpTimerWheel is given a client that sends its request head
+ * or body too slowly is answered with a 408 and the connection is closed,
+ * so that a trickle of bytes can't hold on to a pool thread indefinitely.
+ * A handler that runs for too long is interrupted and answered with a 503.
  *
  * author: bryantbunderson
  */
 public class HttpConnectionRunner implements Runnable {
     private static final Logger logger = LogManager.getLogger(HttpConnectionRunner.class);
 
+    // Written as is to connections that are turned away, so
+    // shedding load costs no more than accepting the socket.
+    private static final byte[] serviceUnavailable = (
+        "HTTP/1.1 503 Service Unavailable\r\n" +
+        "Server: TinyWebServer/1.0\r\n" +
+        "Retry-After: 1\r\n" +
+        "Content-Length: 0\r\n" +
+        "Connection: close\r\n" +
+        "\r\n").getBytes();
+
+    // Written as is to requests that go over the parser limits. The rest
+    // of the request isn't read so the connection is closed after them.
+    private static final byte[] requestLineTooLong = (
+        "HTTP/1.1 414 URI Too Long\r\n" +
+        "Server: TinyWebServer/1.0\r\n" +
+        "Content-Length: 0\r\n" +
+        "Connection: close\r\n" +
+        "\r\n").getBytes();
+
+    private static final byte[] headersTooLarge = (
+        "HTTP/1.1 431 Request Header Fields Too Large\r\n" +
+        "Server: TinyWebServer/1.0\r\n" +
+        "Content-Length: 0\r\n" +
+        "Connection: close\r\n" +
+        "\r\n").getBytes();
+
+    private static final byte[] requestTimeout = (
+        "HTTP/1.1 408 Request Timeout\r\n" +
+        "Server: TinyWebServer/1.0\r\n" +
+        "Content-Length: 0\r\n" +
+        "Connection: close\r\n" +
+        "\r\n").getBytes();
+
     private Socket clientSocket;
+    private HttpIdleConnectionWatcher idleWatcher;
+    private HttpAdmissionController admissionController;
+    private HttpTimerWheel timerWheel;
+    private HttpServerConfig config;
+    private HttpRequestDeadline deadline;
+    private HttpTimerWheel.Timeout idleTimeout;
+
+    // Guarded by this, the thread to interrupt when the handler runs too long
+    private Thread handlerThread;
+    private volatile boolean handlerTimedOut;
+
+    private BufferedInputStream inputStream;
+    private BufferedOutputStream outputStream;
+    private HttpHeadEncoder headEncoder;
+    private HttpRequestParser parser;
+
+    private boolean connected;
+    private int requestCount;
+    private long queuedAt;
 
     private HttpConnectionRunner() {
     }
@@ -35,16 +93,211 @@ public class HttpConnectionRunner implements Runnable {
     }
 
     /**
-     * The run method will exit when the socket OutputStream is closed.
+     * @param clientSocket the client socket, it must have a SocketChannel
+     * @param idleWatcher the watcher to park the connection with between requests
+     */
+    public HttpConnectionRunner(Socket clientSocket, HttpIdleConnectionWatcher idleWatcher) {
+        this(clientSocket, idleWatcher, null);
+    }
+
+    /**
+     * @param clientSocket the client socket, it must have a SocketChannel
+     * @param idleWatcher the watcher to park the connection with between requests
+     * @param admissionController decides if the connection waited too long for a thread, may be null
+     */
+    public HttpConnectionRunner(Socket clientSocket, HttpIdleConnectionWatcher idleWatcher, HttpAdmissionController admissionController) {
+        this(clientSocket, idleWatcher, admissionController, null, null);
+    }
+
+    /**
+     * @param clientSocket the client socket, it must have a SocketChannel
+     * @param idleWatcher the watcher to park the connection with between requests
+     * @param admissionController decides if the connection waited too long for a thread, may be null
+     * @param timerWheel times the request deadlines and the handler, may be null
+     * @param config has the request deadlines and the handler timeout
+     */
+    HttpConnectionRunner(Socket clientSocket, HttpIdleConnectionWatcher idleWatcher, HttpAdmissionController admissionController,
+                         HttpTimerWheel timerWheel, HttpServerConfig config) {
+        this.clientSocket = clientSocket;
+        this.idleWatcher = idleWatcher;
+        this.admissionController = admissionController;
+        this.timerWheel = timerWheel;
+        this.config = config;
+    }
+
+    Socket getSocket() {
+        return clientSocket;
+    }
+
+    /**
+     * @return the timeout that closes the connection while it is parked
+     */
+    HttpTimerWheel.Timeout getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    void setIdleTimeout(HttpTimerWheel.Timeout idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @param queuedAt the System.nanoTime() when the runner was handed to the executor
+     */
+    void setQueuedAt(long queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+
+    /**
+     * Write the 503 response and close the connection.
+     *
+     * @param clientSocket the connection that won't be served
+     */
+    static void rejectConnection(Socket clientSocket) {
+        logger.debug(String.format("Rejected connection %s", clientSocket.getRemoteSocketAddress()));
+        try {
+            OutputStream outputStream = clientSocket.getOutputStream();
+            outputStream.write(serviceUnavailable);
+            outputStream.flush();
+        } catch (IOException e) {
+            logger.debug(e);
+        } finally {
+            try { clientSocket.close(); } catch (IOException ignore) {}
+        }
+    }
+
+    /**
+     * Called by the timer wheel when the request deadline is missed. Shutting
+     * down the input wakes the thread up from its blocked read and the runner
+     * then sees that the deadline expired.
+     */
+    private void deadlineExpired() {
+        try {
+            clientSocket.shutdownInput();
+        } catch (IOException e) {
+            logger.debug(e);
+        }
+    }
+
+    /**
+     * Called by the timer wheel when the handler has run for too long.
+     */
+    private synchronized void handlerExpired() {
+        if (handlerThread != null) {
+            handlerTimedOut = true;
+            handlerThread.interrupt();
+        }
+    }
+
+    /**
+     * Dispatch the request with a timeout on the handler.
+     */
+    private HttpResponse dispatch(HttpRequest request) {
+        HttpServerConfig serverConfig = config != null ? config : HttpServerConfig.getInstance();
+        int handlertimeout = config != null ? config.getHandlertimeout() : 0;
+        if (timerWheel == null || handlertimeout <= 0) {
+            return HttpRequestDispatcher.dispatch(request, ++requestCount, serverConfig);
+        }
+
+        synchronized (this) {
+            handlerThread = Thread.currentThread();
+        }
+
+        HttpTimerWheel.Timeout handlerTimeout = timerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                handlerExpired();
+            }
+        }, handlertimeout);
+
+        try {
+            return HttpRequestDispatcher.dispatch(request, ++requestCount, serverConfig);
+        } finally {
+            handlerTimeout.cancel();
+            synchronized (this) {
+                handlerThread = null;
+            }
+
+            // Clear the interrupt that was meant for the handler before
+            // the connection is written to, it would close the channel.
+            if (handlerTimedOut) Thread.interrupted();
+        }
+    }
+
+    /**
+     * Count a request that went over one of the parser limits or deadlines.
+     *
+     * @param code the status code from the parser, 408 for a missed deadline or 503 for a handler timeout
+     * @return the response to write before closing the connection or null if the code isn't for a limit
+     */
+    static byte[] limitResponse(int code) {
+        switch (code) {
+            case 503:
+                HttpServerStats.getInstance().handlerTimedOut();
+                return serviceUnavailable;
+            case 408:
+                HttpServerStats.getInstance().requestTimedOut();
+                return requestTimeout;
+            case 414:
+                HttpServerStats.getInstance().requestLineTooLong();
+                return requestLineTooLong;
+            case 431:
+                HttpServerStats.getInstance().headersTooLarge();
+                return headersTooLarge;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The run method will exit when the socket OutputStream is closed
+     * or when the connection has been parked with the idle watcher.
      */
     @Override
     public void run() {
         SocketAddress clientAddress = clientSocket.getRemoteSocketAddress();
-        logger.debug(String.format("Client connected %s", clientAddress.toString()));
+        if (!connected) {
+            logger.debug(String.format("Client connected %s", clientAddress.toString()));
+            connected = true;
+        }
+
+        // Drop the connection if it waited in the queue for so
+        // long that the server is clearly behind with its work.
+        if (admissionController != null && queuedAt != 0) {
+            long sojourn = System.nanoTime() - queuedAt;
+            queuedAt = 0;
+
+            if (!admissionController.admit(sojourn)) {
+                HttpServerStats.getInstance().connectionShed();
+                rejectConnection(clientSocket);
+                return;
+            }
+        }
+
+        boolean parked = false;
 
         try {
-            InputStream inputStream = clientSocket.getInputStream();
-            OutputStream outputStream = clientSocket.getOutputStream();
+            // The buffers belong to the connection rather than to a request so
+            // that bytes read ahead of the current request, like the next
+            // pipelined request, aren't lost when the next request is parsed.
+            if (inputStream == null) {
+                InputStream socketInputStream = clientSocket.getInputStream();
+                if (timerWheel != null && config != null) {
+                    deadline = new HttpRequestDeadline(timerWheel, config.getHeadertimeout(), config.getBodytimeout(),
+                        config.getMinbodyrate(), new Runnable() {
+                            @Override
+                            public void run() {
+                                deadlineExpired();
+                            }
+                        });
+                    socketInputStream = deadline.watch(socketInputStream);
+                }
+
+                inputStream = new BufferedInputStream(socketInputStream);
+                outputStream = new BufferedOutputStream(clientSocket.getOutputStream());
+                headEncoder = new HttpHeadEncoder();
+                // The limits of this server, not the global ones
+                parser = config != null ? new HttpRequestParser(config) : new HttpRequestParser();
+            }
 
             // Just keep parsing and handling requests coming in on
             // the inputStream. If the client stops sending requests
@@ -61,52 +314,80 @@ public class HttpConnectionRunner implements Runnable {
                     break;
                 }
 
-                HttpRequestParser parser = new HttpRequestParser();
-
-                HttpRequest request;
                 HttpResponse response;
 
                 try {
-                    request = parser.parse(inputStream);
-
-                    String method = request.getMethod();
-                    String uri = request.getUri();
-                    String query = request.getQuery();
-                    String version = request.getVersion();
+                    if (deadline != null) deadline.startHead(System.currentTimeMillis());
 
-                    if (query == null) query="";
-                    logger.info(String.format("%s %s%s %s", method, uri, query, version));
+                    HttpRequest request = parser.parse(inputStream);
 
-                    // Look for a dynamic handler for the content
-                    HttpHandlerInstance handlerInstance = null;
-                    HttpRequestHandlerFactory handlerFactory = HttpRequestHandlerFactory.getInstance();
-                    if (handlerFactory != null) {
-                        handlerInstance = handlerFactory.findHandlerMethod(request);
+                    if (deadline != null) {
+                        if (request.existsBody()) deadline.startBody(); else deadline.stop();
                     }
 
-                    // Use the dynamic handler for the content if it exists else
-                    // the default behavior is to return all requested files.
-                    if (handlerInstance != null) {
-                        response = handlerInstance.invokeHandler(request);
-                    } else {
-                        response = defaultHandler(request);
+                    response = dispatch(request);
+
+                    // The handler may not have read all of the body. Skip the rest
+                    // before the next request unless there is more of it than is
+                    // worth reading, then close the connection after the response.
+                    int maxbodybuffer = (config != null ? config : HttpServerConfig.getInstance()).getMaxbodybuffer();
+                    if (!handlerTimedOut && !request.drainBody(maxbodybuffer)) {
+                        response.putHeader("Connection", "close");
+                        response.removeHeader("Keep-Alive");
                     }
 
+                    if (deadline != null) deadline.stop();
+                } catch (IOException e) {
+                    // The read failed because the timer shut the input down
+                    if (deadline == null || !deadline.isExpired()) throw e;
+                    response = null;
                 } catch (HttpRequestParser.ParseException e) {
-                    request = new HttpRequest(null, null, null, null, null, null);
-                    response = new HttpResponse(400);
+                    byte[] limitResponse = limitResponse(e.getCode());
+                    if (limitResponse != null) {
+                        outputStream.write(limitResponse);
+                        outputStream.flush();
+                        clientSocket.close();
+                        break;
+                    }
+                    response = HttpRequestDispatcher.dispatchError(400);
                 }
 
-                if (response == null) {
-                    request = new HttpRequest(null, null, null, null, null, null);
-                    response = new HttpResponse(500);
+                // The handler may have turned the failed read into a response of its own
+                if (deadline != null && deadline.isExpired()) {
+                    outputStream.write(limitResponse(408));
+                    outputStream.flush();
+                    clientSocket.close();
+                    break;
                 }
 
-                HttpResponseRules.apply(response, request);
-                response.write(outputStream);
+                if (handlerTimedOut) {
+                    logger.debug(String.format("Handler timeout %s", clientAddress));
+                    outputStream.write(limitResponse(503));
+                    outputStream.flush();
+                    clientSocket.close();
+                    break;
+                }
 
-                if ("close".equals(response.getHeader("Connection"))) {
+                // Pipelined requests that are already buffered are handled back
+                // to back and their responses are only flushed once there are
+                // no more requests waiting, so they share as few packets as possible.
+                boolean close = "close".equals(response.getHeader("Connection"));
+                boolean pipelined = !close && inputStream.available() > 0;
+
+                // Files go straight from the page cache to the socket channel
+                response.write(outputStream, clientSocket.getChannel(), !pipelined, headEncoder);
+
+                if (close) {
                     clientSocket.close();
+                } else if (pipelined) {
+                    continue;
+                } else if (idleWatcher != null) {
+                    // Give the thread back to the pool while waiting for the
+                    // next request. The idle watcher will run this runner
+                    // again when the request bytes arrive.
+                    parked = true;
+                    idleWatcher.park(this);
+                    return;
                 }
             }
 
@@ -119,7 +400,10 @@ public class HttpConnectionRunner implements Runnable {
         } catch (IOException e) {
             logger.debug(e);
         } finally {
-            if (clientSocket != null) {
+            if (deadline != null && !parked) {
+                deadline.stop();
+            }
+            if (clientSocket != null && !parked) {
                 logger.debug("Client socket wasn't closed properly!");
                 try { clientSocket.close(); } catch (Exception ignore) {}
             };
@@ -128,34 +412,4 @@ public class HttpConnectionRunner implements Runnable {
         logger.debug(String.format("Client disconnected %s", clientAddress.toString()));
     }
 
-    private HttpResponse defaultHandler(HttpRequest request) {
-        HttpResponse response;
-
-        // Default behavior is to return all requested files if they exist.
-        HttpFileManager fileManager = HttpFileManager.getInstance();
-
-        // Only support GET and HEAD by default
-        if ("GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod())) {
-            String requestUri = request.getUri();
-            if ("/".equals(requestUri)) requestUri = "/index.html";
-
-            try {
-                response = new HttpResponse(200, requestUri);
-                if ("HEAD".equals(request.getMethod())) {
-                    // Remove body content if HEAD
-                    response.setContentInputStream(null);
-                }
-            } catch (FileNotFoundException e) {
-                response = new HttpResponse(404);
-            }
-        }
-        else {
-            // Don't support any methods other than GET and HEAD by default. A
-            // RequestHandler will have to be created to handle POST and DELETE.
-            response = new HttpResponse(405);
-        }
-
-        return response;
-    }
-
 }
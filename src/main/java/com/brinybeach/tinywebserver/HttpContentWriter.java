@@ -0,0 +1,27 @@
+package com.brinybeach.tinywebserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces the content of a response as it is being sent, for content
+ * whose length isn't known up front. The server calls it once the head
+ * has been written and sends what it writes with Transfer-Encoding: chunked,
+ * or to a HTTP/1.0 client up to the close of the connection.
+ *
+ * Nothing has to be built up in memory to learn its length, and the client
+ * gets the first bytes as soon as the writer flushes them.
+ *
+ * author: bryantbunderson
+ */
+public interface HttpContentWriter {
+
+    /**
+     * Write the content. Call flush() to send what has been written so far,
+     * the stream is flushed and ended when this returns. Don't close it.
+     *
+     * @param outputStream the stream to write the content to
+     * @throws IOException if the client went away
+     */
+    void write(OutputStream outputStream) throws IOException;
+}
@@ -0,0 +1,201 @@
+package com.brinybeach.tinywebserver;
+
+/**
+ * Format and parse the dates in HTTP headers, like the Date,
+ * Last-Modified and If-Modified-Since headers, without a
+ * SimpleDateFormat or a Calendar.
+ *
+ * Dates are always sent in the IMF-fixdate format of RFC 7231
+ * Section 7.1.1.1, "Sun, 06 Nov 1994 08:49:37 GMT". Dates from
+ * clients may also be in the obsolete RFC 850 format, "Sunday,
+ * 06-Nov-94 08:49:37 GMT", or the asctime() format, "Sun Nov  6
+ * 08:49:37 1994". The current time is only formatted once a second.
+ *
+ * author: bryantbunderson
+ */
+public final class HttpDate {
+    private static final String[] dayNames = { "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat" };
+    private static final String[] monthNames = {
+        "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+    };
+
+    private static final long msPerDay = 86400000L;
+
+    /**
+     * The current second and its formatted date, replaced together.
+     */
+    private static final class Stamp {
+        private final long second;
+        private final String value;
+
+        private Stamp(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+
+    private static volatile Stamp stamp = new Stamp(-1, null);
+
+    private HttpDate() {
+    }
+
+    /**
+     * @return the current time as an IMF-fixdate, the same String for the whole second
+     */
+    public static String now() {
+        long millis = System.currentTimeMillis();
+        long second = millis / 1000;
+
+        Stamp current = stamp;
+        if (current.second != second) {
+            current = new Stamp(second, format(second * 1000));
+            stamp = current;
+        }
+        return current.value;
+    }
+
+    /**
+     * @param millis ms since the epoch
+     * @return the time as an IMF-fixdate, like "Sun, 06 Nov 1994 08:49:37 GMT"
+     */
+    public static String format(long millis) {
+        long days = Math.floorDiv(millis, msPerDay);
+        int msOfDay = (int) Math.floorMod(millis, msPerDay);
+        int secondOfDay = msOfDay / 1000;
+
+        // Civil date from days since 1970-01-01, see howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        char[] chars = new char[29];
+        put(chars, 0, dayNames[(int) Math.floorMod(days + 4, 7L)]);
+        chars[3] = ',';
+        chars[4] = ' ';
+        put2(chars, 5, day);
+        chars[7] = ' ';
+        put(chars, 8, monthNames[month - 1]);
+        chars[11] = ' ';
+        put2(chars, 12, (int) (year / 100));
+        put2(chars, 14, (int) (year % 100));
+        chars[16] = ' ';
+        put2(chars, 17, secondOfDay / 3600);
+        chars[19] = ':';
+        put2(chars, 20, secondOfDay / 60 % 60);
+        chars[22] = ':';
+        put2(chars, 23, secondOfDay % 60);
+        put(chars, 25, " GMT");
+
+        return new String(chars);
+    }
+
+    /**
+     * @param value a date from a header, may be null
+     * @return ms since the epoch, or -1 if it isn't a date in one of the three formats
+     */
+    public static long parse(String value) {
+        if (value == null) return -1;
+
+        String date = value.trim();
+        int comma = date.indexOf(',');
+
+        if (comma == 3 && date.length() == 29) {
+            // IMF-fixdate: Sun, 06 Nov 1994 08:49:37 GMT
+            if (date.charAt(7) != ' ' || date.charAt(11) != ' ' || date.charAt(16) != ' ' || !date.endsWith(" GMT")) {
+                return -1;
+            }
+            return toMillis(number(date, 12, 4), month(date, 8), number(date, 5, 2), date, 17);
+        }
+
+        if (comma > 3) {
+            // RFC 850: Sunday, 06-Nov-94 08:49:37 GMT
+            int start = comma + 2;
+            if (date.length() != start + 22 || date.charAt(start + 2) != '-' || date.charAt(start + 6) != '-' ||
+                date.charAt(start + 9) != ' ' || !date.endsWith(" GMT")) {
+                return -1;
+            }
+
+            int year = number(date, start + 7, 2);
+            if (year < 0) return -1;
+            year += (year < 70) ? 2000 : 1900;
+
+            return toMillis(year, month(date, start + 3), number(date, start, 2), date, start + 10);
+        }
+
+        if (comma < 0 && date.length() == 24) {
+            // asctime: Sun Nov  6 08:49:37 1994
+            if (date.charAt(3) != ' ' || date.charAt(7) != ' ' || date.charAt(10) != ' ' || date.charAt(19) != ' ') {
+                return -1;
+            }
+
+            int day = (date.charAt(8) == ' ') ? number(date, 9, 1) : number(date, 8, 2);
+            return toMillis(number(date, 20, 4), month(date, 4), day, date, 11);
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param time the index of a HH:mm:ss time in the date
+     */
+    private static long toMillis(int year, int month, int day, String date, int time) {
+        if (date.charAt(time + 2) != ':' || date.charAt(time + 5) != ':') return -1;
+
+        int hour = number(date, time, 2);
+        int minute = number(date, time + 3, 2);
+        int second = number(date, time + 6, 2);
+
+        if (year < 0 || month < 1 || day < 1 || day > 31 || hour < 0 || hour > 23 ||
+            minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return -1;
+        }
+
+        // Days since 1970-01-01 from the civil date
+        int y = (month <= 2) ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+
+        return days * msPerDay + (hour * 3600L + minute * 60L + second) * 1000L;
+    }
+
+    /**
+     * @return the month from 1 to 12 of the three letter name at the index, or -1
+     */
+    private static int month(String date, int index) {
+        for (int i = 0; i < monthNames.length; i++) {
+            if (date.regionMatches(true, index, monthNames[i], 0, 3)) return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the decimal number of length digits at the index, or -1
+     */
+    private static int number(String date, int index, int length) {
+        int number = 0;
+        for (int i = index; i < index + length; i++) {
+            char c = date.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    private static void put(char[] chars, int index, String value) {
+        value.getChars(0, value.length(), chars, index);
+    }
+
+    private static void put2(char[] chars, int index, int value) {
+        chars[index] = (char) ('0' + value / 10);
+        chars[index + 1] = (char) ('0' + value % 10);
+    }
+}
@@ -0,0 +1,135 @@
+package com.brinybeach.tinywebserver;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A single thread that owns a Selector and does all of the socket
+ * I/O for the connections registered with it. Parsing and handling
+ * of requests is done by the worker ExecutorService so the event loop
+ * never blocks. Idle connections only cost a SelectionKey and a buffer.
+ *
+ * Other threads talk to the event loop by queueing tasks with execute().
+ *
+ * The event loop also advances a HttpTimerWheel every tick, so the
+ * keep-alive, request and handler timeouts of its connections fire on
+ * the event loop thread and only the connections that are due are touched.
+ *
+ * author: bryantbunderson
+ */
+class HttpEventLoop implements Runnable {
+    private static final Logger logger = LogManager.getLogger(HttpEventLoop.class);
+
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final HttpServerConfig config;
+    private final HttpTimerWheel timerWheel = new HttpTimerWheel();
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * @param workers the ExecutorService used to parse and handle requests
+     * @param config has the keep-alive, request and handler timeouts
+     */
+    HttpEventLoop(ExecutorService workers, HttpServerConfig config) throws IOException {
+        this.selector = Selector.open();
+        this.workers = workers;
+        this.config = config;
+    }
+
+    /**
+     * Hand a newly accepted channel to this event loop.
+     *
+     * @param channel the accepted client channel
+     */
+    void register(final SocketChannel channel) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new HttpChannelConnection(channel, key, HttpEventLoop.this, workers, config));
+                } catch (IOException e) {
+                    logger.debug(e);
+                    try { channel.close(); } catch (IOException ignore) {}
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the wheel for the timeouts of the connections, its tasks run on the event loop thread
+     */
+    HttpTimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    /**
+     * Run the task on the event loop thread.
+     *
+     * @param task the task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Select and service ready connections until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.interrupted()) {
+                selector.select(timerWheel.getTickMillis());
+
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    HttpChannelConnection connection = (HttpChannelConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) connection.onReadable();
+                        if (key.isValid() && key.isWritable()) connection.onWritable();
+                    } catch (IOException e) {
+                        logger.debug(e);
+                        connection.close();
+                    } catch (CancelledKeyException e) {
+                        connection.close();
+                    }
+                }
+
+                timerWheel.advance();
+            }
+        } catch (IOException e) {
+            logger.error(e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                HttpChannelConnection connection = (HttpChannelConnection) key.attachment();
+                if (connection != null) connection.close();
+            }
+            try { selector.close(); } catch (IOException ignore) {}
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.brinybeach.tinywebserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keep the bytes of small static files in memory so that they
+ * are read from the disk once rather than for every request.
+ *
+ * The cache holds at most capacity bytes. Files bigger than maxFileSize
+ * are never admitted, they are sent from the file with transferTo. When
+ * a new file doesn't fit the least recently used files are evicted.
+ * Each file is read into a heap or a direct buffer that is shared by
+ * every response that sends it, read-only, through a duplicate.
+ *
+ * A hit is only good if the length and the modification time, from the
+ * HttpFileManager metadata, are the ones the file had when it was read.
+ * The HttpFileWatcher also drops the files that are modified, deleted or
+ * created so that they don't hold on to memory.
+ *
+ * author: bryantbunderson
+ */
+class HttpFileCache implements HttpFileWatcher.Listener {
+    private final long capacity;
+    private final long maxFileSize;
+    private final boolean direct;
+    private final HttpServerStats stats = HttpServerStats.getInstance();
+
+    // Guarded by this, in the order they were last used
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+    private long size;
+    private long generation;
+
+    /**
+     * A cached file. The buffer is read-only and never moved, callers get a duplicate.
+     */
+    private static final class Entry {
+        private final ByteBuffer buffer;
+        private final long length;
+        private final long lastModified;
+
+        private Entry(ByteBuffer buffer, long length, long lastModified) {
+            this.buffer = buffer;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        private boolean isCurrent(long length, long lastModified) {
+            return this.length == length && this.lastModified == lastModified;
+        }
+    }
+
+    /**
+     * @param capacity the most bytes to hold, 0 turns the cache off
+     * @param maxFileSize the biggest file to admit
+     * @param direct true to hold the files in direct buffers, false for the heap
+     */
+    HttpFileCache(long capacity, long maxFileSize, boolean direct) {
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, Math.min(capacity, Integer.MAX_VALUE));
+        this.direct = direct;
+    }
+
+    /**
+     * @param file a file under the root
+     * @param length the length the file has now
+     * @param lastModified the modification time the file has now
+     * @return the bytes of the file from position 0 to the limit, or null if it isn't cached and can't be admitted
+     */
+    ByteBuffer get(File file, long length, long lastModified) {
+        if (capacity <= 0) return null;
+
+        Path path = file.toPath().toAbsolutePath().normalize();
+
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+
+        if (entry != null && entry.isCurrent(length, lastModified)) {
+            stats.fileCacheHit();
+            return entry.buffer.duplicate();
+        }
+
+        stats.fileCacheMiss();
+        return load(path, file, length, lastModified);
+    }
+
+    /**
+     * @return the number of bytes held
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of files held
+     */
+    synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return true if the file is held
+     */
+    synchronized boolean contains(File file) {
+        return entries.containsKey(file.toPath().toAbsolutePath().normalize());
+    }
+
+    /**
+     * Drop the file, or everything under it if it is a directory.
+     */
+    @Override
+    public synchronized void invalidate(Path path) {
+        generation++;
+
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Entry> entry = iterator.next();
+            if (entry.getKey().startsWith(path)) {
+                size -= entry.getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop everything.
+     */
+    @Override
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Read a file in and add it, unless it's too big or it changed while it was read.
+     */
+    private ByteBuffer load(Path path, File file, long length, long lastModified) {
+        long startGeneration;
+        synchronized (this) {
+            startGeneration = generation;
+        }
+
+        if (length > maxFileSize) return null;
+
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length);
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(path);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {}
+        } catch (IOException e) {
+            return null;
+        } finally {
+            close(channel);
+        }
+
+        if (buffer.hasRemaining() || file.lastModified() != lastModified || file.length() != length) return null;
+
+        buffer.flip();
+        Entry entry = new Entry(buffer.asReadOnlyBuffer(), length, lastModified);
+        put(path, entry, startGeneration);
+
+        return entry.buffer.duplicate();
+    }
+
+    /**
+     * Add the entry and evict the least recently used ones until it fits. It
+     * isn't added if anything was invalidated since it was read, it could be stale.
+     */
+    private synchronized void put(Path path, Entry entry, long startGeneration) {
+        if (startGeneration != generation) return;
+
+        Entry old = entries.put(path, entry);
+        if (old != null) size -= old.length;
+        size += entry.length;
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            size -= iterator.next().length;
+            iterator.remove();
+            stats.fileCacheEviction();
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            if (closeable != null) closeable.close();
+        } catch (IOException ignore) {}
+    }
+}
@@ -0,0 +1,82 @@
+package com.brinybeach.tinywebserver;
+
+/**
+ * What the HttpFileManager knows about one file: everything a static
+ * response needs besides the content. An entry never changes, a file
+ * that changes gets a new one.
+ *
+ * author: bryantbunderson
+ */
+public final class HttpFileInfo {
+    private final boolean exists;
+    private final boolean directory;
+    private final long length;
+    private final long lastModified;
+    private final String contentType;
+    private final String hash;
+    private final boolean weakHash;
+    private final long loadedAt;
+
+    HttpFileInfo(boolean exists, boolean directory, long length, long lastModified, String contentType, String hash,
+                 boolean weakHash, long loadedAt) {
+        this.exists = exists;
+        this.directory = directory;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.contentType = contentType;
+        this.hash = hash;
+        this.weakHash = weakHash;
+        this.loadedAt = loadedAt;
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the length in bytes, 0 if the file doesn't exist
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the modification time in ms, 0 if the file doesn't exist
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the mime-type from the file extension
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the hash used as the ETag
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return true if the hash is made from the length and the modification
+     * time rather than the content, and is only good as a weak ETag
+     */
+    public boolean isWeakHash() {
+        return weakHash;
+    }
+
+    /**
+     * @return the System.nanoTime() the file was looked at
+     */
+    long getLoadedAt() {
+        return loadedAt;
+    }
+}
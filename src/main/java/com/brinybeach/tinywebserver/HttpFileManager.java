@@ -6,15 +6,58 @@ import org.apache.logging.log4j.Logger;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Return attributes of file in the file system
  * and map file extensions to mime types.
  *
+ * The attributes of each file are looked up once and kept in a
+ * HttpFileInfo, keyed by the normalized uri, so a request for a
+ * known file doesn't have to stat it again. While the manager is
+ * started the HttpFileWatcher drops the entries of the files that
+ * change, otherwise entries are looked up again after statcachettl
+ * ms, and if there is no ttl they aren't kept at all.
+ *
+ * The ETag of a file is the first 128 bits of the SHA-256 of its
+ * content, so it only changes when the content does and the same
+ * file gets the same ETag on every server it is deployed to. It is
+ * worked out once and kept while the length and the modification
+ * time of the file stay the same. Files of up to etagmaxsync bytes
+ * are hashed when they are first looked up. Bigger ones get a weak
+ * ETag made from their length and modification time until a loader
+ * thread has hashed them, and when the manager starts the loader
+ * threads hash every file under the root.
+ *
+ * Uris that don't exist, like the ones vulnerability scanners try,
+ * are kept too so that they are answered with a 404 straight away.
+ * At most negativecachesize of them are kept, the least recently
+ * used are dropped first, and they are dropped as soon as a file
+ * or directory is created at their path.
+ *
  * author: bryantbunderson
  */
 public class HttpFileManager {
@@ -83,34 +126,145 @@ public class HttpFileManager {
         contentTypeMap.put(".zip", "application/x-compressed");
     }
 
+    private static final int hashLength = 16;
+    private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
     private static final HttpServerConfig config = HttpServerConfig.getInstance();
     private static final HttpFileManager instance = new HttpFileManager();
 
     private String rootDir;
+    private final long statCacheTtl;
+    private final long hashMaxSync;
+    private final HttpFileWatcher fileWatcher;
+    private final HttpFileCache fileCache;
 
+    private final Map<String, HttpFileInfo> fileInfoMap = new ConcurrentHashMap<String, HttpFileInfo>();
+    private final AtomicLong generation = new AtomicLong();
+
+    // Guarded by itself, in the order they were last used
+    private final LinkedHashMap<String, HttpFileInfo> missingMap;
+    private final HttpServerStats stats = HttpServerStats.getInstance();
+
+    // Guarded by this, the number of servers that started the manager
+    private int startCount;
+    private volatile ExecutorService loader;
 
     public static HttpFileManager getInstance() {
         return instance;
     }
 
     private HttpFileManager() {
-        rootDir = config.getDirectory();
+        this(config);
+    }
+
+    /**
+     * Create a file manager for a root directory other than the one
+     * in server.properties. Used by the tests.
+     *
+     * @param serverConfig the directory and the cache settings
+     */
+    HttpFileManager(HttpServerConfig serverConfig) {
+        rootDir = serverConfig.getDirectory();
         logger.debug("rootDir is "+rootDir);
+
+        statCacheTtl = TimeUnit.MILLISECONDS.toNanos(serverConfig.getStatcachettl());
+        hashMaxSync = serverConfig.getEtagmaxsync();
+
+        final int negativeCacheSize = serverConfig.getNegativecachesize();
+        missingMap = new LinkedHashMap<String, HttpFileInfo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HttpFileInfo> eldest) {
+                return size() > negativeCacheSize;
+            }
+        };
+        fileCache = new HttpFileCache(serverConfig.getFilecachesize(), serverConfig.getFilecachemaxfile(), serverConfig.isFilecachedirect());
+
+        fileWatcher = new HttpFileWatcher(rootDir);
+        fileWatcher.addListener(fileCache);
+        fileWatcher.addListener(new HttpFileWatcher.Listener() {
+            @Override
+            public void invalidate(Path path) {
+                invalidateFileInfo(path);
+            }
+
+            @Override
+            public void clear() {
+                clearFileInfo();
+            }
+        });
+    }
+
+    /**
+     * Watch the root directory and hash every file under it on a few
+     * daemon loader threads. Called by the server runners as they
+     * start, every start has to be matched by a stop.
+     */
+    public synchronized void start() {
+        if (startCount++ > 0) return;
+
+        loader = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "http-file-loader-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        fileWatcher.start();
+
+        // Changes made while nothing was watching were missed
+        clearFileInfo();
+
+        if (fileWatcher.isWatching() || statCacheTtl > 0) {
+            loadAll();
+        }
+    }
+
+    /**
+     * Stop watching the root directory and stop the loader threads
+     * once the last server that started the manager has stopped.
+     */
+    public synchronized void stop() {
+        if (startCount == 0 || --startCount > 0) return;
+
+        fileWatcher.stop();
+
+        loader.shutdownNow();
+        loader = null;
+    }
+
+    /**
+     * @param uri the path of the file under the root directory
+     * @return the attributes of the file, from memory unless it changed
+     */
+    public HttpFileInfo getFileInfo(String uri) {
+        String key = normalize(uri);
+
+        HttpFileInfo fileInfo = fileInfoMap.get(key);
+        if (fileInfo != null && isFresh(fileInfo)) return fileInfo;
+
+        HttpFileInfo missingInfo;
+        synchronized (missingMap) {
+            missingInfo = missingMap.get(key);
+        }
+        if (missingInfo != null && isFresh(missingInfo)) return missingInfo;
+
+        return loadFileInfo(key, fileInfo);
     }
 
     public boolean exists(String uri) {
-        File file = new File(rootDir + uri);
-        return file.exists();
+        return getFileInfo(uri).exists();
     }
 
     public boolean isDirectory(String uri) {
-        File file = new File(rootDir + uri);
-        return (file.exists() && file.isDirectory());
+        return getFileInfo(uri).isDirectory();
     }
 
     public long getLength(String uri) {
-        File file = new File(rootDir + uri);
-        return file.length();
+        return getFileInfo(uri).getLength();
     }
 
     public String getContentType(String uri) {
@@ -125,18 +279,293 @@ public class HttpFileManager {
     }
 
     public String getHash(String uri) {
-        File file = new File(rootDir + uri);
-        return Integer.toHexString(String.format("%s-%d-%d", uri, file.length(), file.lastModified()).hashCode());
+        return getFileInfo(uri).getHash();
     }
 
     public InputStream getInputStream(String uri) throws FileNotFoundException {
-        File file = new File(rootDir + uri);
+        File file = new File(rootDir + normalize(uri));
         return new FileInputStream(file);
     }
 
+    /**
+     * Small files are kept in memory by the HttpFileCache, the bytes of
+     * the file are shared so the buffer returned must not be changed.
+     *
+     * @return the bytes of the file or null if it isn't kept in memory and has to be read
+     */
+    public ByteBuffer getContentBuffer(String uri) {
+        HttpFileInfo fileInfo = getFileInfo(uri);
+        if (!fileInfo.exists() || fileInfo.isDirectory()) return null;
+
+        File file = new File(rootDir + normalize(uri));
+        return fileCache.get(file, fileInfo.getLength(), fileInfo.getLastModified());
+    }
+
     public String getAbsolutePath(String uri) {
-        File file = new File(rootDir + uri);
+        File file = new File(rootDir + normalize(uri));
         return file.getAbsolutePath();
     }
 
+    /**
+     * Remove empty and "." segments and resolve ".." segments, which
+     * never go above the root. Most uris are already normal and are
+     * returned as they are.
+     *
+     * @param uri the path from the request
+     * @return the same path in one spelling
+     */
+    static String normalize(String uri) {
+        if (uri.indexOf("//") < 0 && uri.indexOf("/.") < 0) return uri;
+
+        List<String> segments = new ArrayList<String>();
+        for (String segment : uri.split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) continue;
+
+            if (segment.equals("..")) {
+                if (!segments.isEmpty()) segments.remove(segments.size() - 1);
+            } else {
+                segments.add(segment);
+            }
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (String segment : segments) {
+            builder.append('/').append(segment);
+        }
+        if (builder.length() == 0 || uri.endsWith("/")) builder.append('/');
+
+        return builder.toString();
+    }
+
+    private boolean isFresh(HttpFileInfo fileInfo) {
+        // A watched entry is good until the watcher drops it
+        if (fileWatcher.isWatching()) return true;
+        return statCacheTtl > 0 && System.nanoTime() - fileInfo.getLoadedAt() < statCacheTtl;
+    }
+
+    /**
+     * Stat the file and keep what it found, unless the file changed while it looked.
+     *
+     * @param previous the entry that is out of date or null
+     */
+    private HttpFileInfo loadFileInfo(String uri, HttpFileInfo previous) {
+        long startGeneration = generation.get();
+        long now = System.nanoTime();
+
+        File file = new File(rootDir + uri);
+
+        // One stat, a missing file is the usual reason for it to fail
+        BasicFileAttributes attributes = readAttributes(file);
+        if (attributes == null) {
+            return putMissing(uri, startGeneration, now);
+        }
+
+        String contentType = getContentType(uri);
+        if (attributes.isDirectory()) {
+            return putFileInfo(uri, new HttpFileInfo(true, true, 0, 0, contentType, null, false, now), startGeneration);
+        }
+
+        long length = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        // A file that hasn't changed since it was last looked at keeps its hash
+        if (previous != null && previous.exists() && !previous.isDirectory() &&
+            previous.getLength() == length && previous.getLastModified() == lastModified) {
+            HttpFileInfo fileInfo = new HttpFileInfo(true, false, length, lastModified, contentType, previous.getHash(), previous.isWeakHash(), now);
+            return putFileInfo(uri, fileInfo, startGeneration);
+        }
+
+        // Small files are hashed straight away, the file is only looked at again
+        // when a hash was worked out to check it didn't change while it was read
+        if (length <= hashMaxSync) {
+            String hash = getContentHash(file);
+            if (hash != null && isUnchanged(readAttributes(file), length, lastModified)) {
+                HttpFileInfo fileInfo = new HttpFileInfo(true, false, length, lastModified, contentType, hash, false, now);
+                return putFileInfo(uri, fileInfo, startGeneration);
+            }
+        }
+
+        // Too big to hash on the request thread, changing or unreadable: keep the stat
+        // with a weak ETag so the file isn't read again, and hash it on a loader thread
+        String weakHash = Long.toHexString(length) + "-" + Long.toHexString(lastModified);
+        HttpFileInfo fileInfo = new HttpFileInfo(true, false, length, lastModified, contentType, weakHash, true, now);
+        putFileInfo(uri, fileInfo, startGeneration);
+        hashLater(uri, file, fileInfo);
+
+        return fileInfo;
+    }
+
+    /**
+     * Keep an entry, unless something changed while it was looked up.
+     */
+    private HttpFileInfo putFileInfo(String uri, HttpFileInfo fileInfo, long startGeneration) {
+        fileInfoMap.put(uri, fileInfo);
+        if (generation.get() != startGeneration) fileInfoMap.remove(uri, fileInfo);
+
+        return fileInfo;
+    }
+
+    /**
+     * Hash a file on a loader thread and replace its entry with the weak ETag,
+     * as long as the entry is still there and the file didn't change. Nothing
+     * happens if the manager isn't started, the weak ETag is kept.
+     */
+    private void hashLater(final String uri, final File file, final HttpFileInfo weakInfo) {
+        ExecutorService executor = loader;
+        if (executor == null) return;
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    String hash = getContentHash(file);
+                    if (hash == null || !isUnchanged(readAttributes(file), weakInfo.getLength(), weakInfo.getLastModified())) {
+                        return;
+                    }
+
+                    HttpFileInfo fileInfo = new HttpFileInfo(true, false, weakInfo.getLength(), weakInfo.getLastModified(),
+                        weakInfo.getContentType(), hash, false, weakInfo.getLoadedAt());
+                    fileInfoMap.replace(uri, weakInfo, fileInfo);
+                }
+            });
+        } catch (RejectedExecutionException ignore) {
+            // The manager is stopping
+        }
+    }
+
+    /**
+     * @return the attributes of the file, or null if it doesn't exist or can't be read
+     */
+    private static BasicFileAttributes readAttributes(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.debug("Can't stat " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean isUnchanged(BasicFileAttributes attributes, long length, long lastModified) {
+        return attributes != null && attributes.size() == length && attributes.lastModifiedTime().toMillis() == lastModified;
+    }
+
+    /**
+     * @return the first hashLength bytes of the SHA-256 of the file content in hex, null if it can't be read
+     */
+    static String getContentHash(File file) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) > 0) {
+                digest.update(buffer, 0, bytesRead);
+            }
+        } catch (IOException e) {
+            logger.warn("Can't hash " + file + ": " + e.getMessage());
+            return null;
+        } finally {
+            try {
+                if (inputStream != null) inputStream.close();
+            } catch (IOException ignore) {}
+        }
+
+        byte[] hash = digest.digest();
+        char[] hex = new char[hashLength * 2];
+        for (int i = 0; i < hashLength; i++) {
+            hex[i * 2] = hexDigits[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = hexDigits[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Look up every file under the root on the loader threads, so that
+     * their hashes are ready before the first requests for them arrive.
+     */
+    private void loadAll() {
+        final ExecutorService executor = loader;
+        final Path rootPath = fileWatcher.getRootPath();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                            if (attributes.isRegularFile()) {
+                                final String uri = "/" + rootPath.relativize(path).toString().replace(File.separatorChar, '/');
+                                executor.execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        getFileInfo(uri);
+                                    }
+                                });
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                } catch (IOException e) {
+                    logger.warn("Can't load the files under " + rootPath + ": " + e.getMessage());
+                } catch (RejectedExecutionException ignore) {
+                    // The manager is stopping
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop every entry, something changed that wasn't seen.
+     */
+    private void clearFileInfo() {
+        generation.incrementAndGet();
+        fileInfoMap.clear();
+        synchronized (missingMap) {
+            missingMap.clear();
+        }
+    }
+
+    /**
+     * Keep a uri that doesn't exist, unless something was created while it looked.
+     */
+    private HttpFileInfo putMissing(String uri, long startGeneration, long now) {
+        HttpFileInfo fileInfo = new HttpFileInfo(false, false, 0, 0, getContentType(uri), null, false, now);
+
+        synchronized (missingMap) {
+            if (generation.get() == startGeneration) missingMap.put(uri, fileInfo);
+        }
+
+        return fileInfo;
+    }
+
+    /**
+     * Drop the entry of a file, or the entries under a directory, that changed.
+     */
+    private void invalidateFileInfo(Path path) {
+        generation.incrementAndGet();
+
+        String uri = "/" + fileWatcher.getRootPath().relativize(path).toString().replace(File.separatorChar, '/');
+        for (String key : fileInfoMap.keySet()) {
+            if (key.equals(uri) || key.startsWith(uri + "/")) fileInfoMap.remove(key);
+        }
+
+        synchronized (missingMap) {
+            Iterator<String> iterator = missingMap.keySet().iterator();
+            while (iterator.hasNext()) {
+                String key = iterator.next();
+                if (key.equals(uri) || key.startsWith(uri + "/")) iterator.remove();
+            }
+        }
+    }
 }
@@ -0,0 +1,168 @@
+package com.brinybeach.tinywebserver;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watch every directory under the root for files that are modified,
+ * deleted or created, and tell the caches that hold anything about them.
+ *
+ * A WatchService only watches the directory it was registered with, so
+ * the whole tree is registered at the start and every new directory as
+ * it is created. If the service lost events the listeners are told to
+ * drop everything.
+ *
+ * author: bryantbunderson
+ */
+class HttpFileWatcher implements Runnable {
+    private static final Logger logger = LogManager.getLogger(HttpFileWatcher.class);
+
+    /**
+     * A cache of something about the files under the root.
+     */
+    interface Listener {
+        /**
+         * @param path the absolute path of the file or directory that changed
+         */
+        void invalidate(Path path);
+
+        /**
+         * The watcher lost track, drop everything.
+         */
+        void clear();
+    }
+
+    private final Path rootPath;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private WatchService watchService;
+    private Thread watcherThread;
+    private volatile boolean watching;
+
+    /**
+     * @param rootDir the directory to watch
+     */
+    HttpFileWatcher(String rootDir) {
+        this.rootPath = new File(rootDir).toPath().toAbsolutePath().normalize();
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return the absolute path of the root directory, paths passed to the listeners start with it
+     */
+    Path getRootPath() {
+        return rootPath;
+    }
+
+    /**
+     * @return true while the root is watched for changes
+     */
+    boolean isWatching() {
+        return watching;
+    }
+
+    /**
+     * Start watching the directories under the root on a daemon thread.
+     *
+     * @return false if the root can't be watched
+     */
+    boolean start() {
+        if (!Files.isDirectory(rootPath)) return false;
+
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            register(rootPath);
+        } catch (IOException e) {
+            logger.warn("Can't watch " + rootPath + ": " + e.getMessage());
+            stop();
+            return false;
+        }
+
+        watching = true;
+
+        watcherThread = new Thread(this, "http-file-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+        return true;
+    }
+
+    void stop() {
+        watching = false;
+
+        try {
+            if (watchService != null) watchService.close();
+        } catch (IOException ignore) {}
+
+        if (watcherThread != null) watcherThread.interrupt();
+    }
+
+    /**
+     * Wait for changes under the root and pass them on to the listeners.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                Path dir = (Path) key.watchable();
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        for (Listener listener : listeners) listener.clear();
+                        continue;
+                    }
+
+                    Path path = dir.resolve((Path) event.context());
+
+                    // Watch a new directory before dropping what's under it so no change is missed
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        try {
+                            register(path);
+                        } catch (IOException e) {
+                            logger.warn("Can't watch " + path + ": " + e.getMessage());
+                        }
+                    }
+
+                    for (Listener listener : listeners) listener.invalidate(path);
+                }
+
+                key.reset();
+            }
+        } catch (InterruptedException ignore) {
+        } catch (ClosedWatchServiceException ignore) {
+        } finally {
+            watching = false;
+        }
+    }
+
+    private void register(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
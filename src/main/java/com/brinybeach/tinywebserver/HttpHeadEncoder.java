@@ -0,0 +1,181 @@
+package com.brinybeach.tinywebserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serialize the status line and headers of a HttpResponse.
+ *
+ * The status line of every code with a reason phrase and the names of
+ * the usual response headers are encoded once, when the class is loaded,
+ * so a response only has to copy their bytes. Header values are copied a
+ * char at a time rather than through a String.getBytes() for each one.
+ *
+ * The head is put together in a buffer that belongs to the encoder, so
+ * that it goes out in a single write and the buffer is reused by every
+ * response on the connection that owns the encoder. Small content can be
+ * appended after the head so that the whole response is one write. An
+ * encoder must only be used by one thread at a time.
+ *
+ * author: bryantbunderson
+ */
+class HttpHeadEncoder {
+    private static final byte[] crlf = { '\r', '\n' };
+    private static final byte[] colonSpace = { ':', ' ' };
+
+    private static final String[] commonNames = {
+        "Accept-Ranges", "Allow", "Cache-Control", "Connection", "Content-Encoding", "Content-Length",
+        "Content-Type", "Date", "ETag", "Expires", "Keep-Alive", "Last-Modified", "Location", "Server",
+        "Transfer-Encoding", "Vary"
+    };
+
+    // "HTTP/1.1 200 OK\r\n" and the like, indexed by status code
+    private static final byte[][] http11StatusLines = new byte[600][];
+    private static final byte[][] http10StatusLines = new byte[600][];
+
+    // "Content-Type: " and the like, indexed by header name
+    private static final Map<String, byte[]> headerNames = new HashMap<String, byte[]>();
+
+    static {
+        for (int code = 100; code < 600; code++) {
+            String reason = HttpResponse.reasonPhrase(code);
+            if (reason == null) continue;
+
+            http11StatusLines[code] = ("HTTP/1.1 " + code + " " + reason + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            http10StatusLines[code] = ("HTTP/1.0 " + code + " " + reason + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        for (String name : commonNames) {
+            headerNames.put(name, (name + ": ").getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    private byte[] buffer;
+    private int size;
+
+    HttpHeadEncoder() {
+        this(1024);
+    }
+
+    /**
+     * @param capacity the size the buffer starts at, it grows for bigger heads
+     */
+    HttpHeadEncoder(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    /**
+     * Serialize the status line, the headers and the blank line that ends
+     * them into the buffer. The bytes are good until the next encode.
+     */
+    void encode(String version, int code, String reason, Map<String, String> headers) {
+        size = 0;
+
+        byte[] statusLine = getStatusLine(version, code);
+        if (statusLine != null) {
+            write(statusLine);
+        } else {
+            writeLatin1(version);
+            writeLatin1(" " + code + " " + reason);
+            write(crlf);
+        }
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            byte[] name = headerNames.get(header.getKey());
+            if (name != null) {
+                write(name);
+            } else {
+                writeLatin1(header.getKey());
+                write(colonSpace);
+            }
+
+            writeLatin1(header.getValue());
+            write(crlf);
+        }
+
+        write(crlf);
+    }
+
+    /**
+     * Read small content in right after the head, so that they are one piece.
+     *
+     * @param inputStream the content
+     * @param length the content length, fewer bytes are appended if the stream ends first
+     */
+    void append(InputStream inputStream, int length) throws IOException {
+        ensureCapacity(length);
+
+        int end = size + length;
+        int bytesRead;
+        while (size < end && (bytesRead = inputStream.read(buffer, size, end - size)) > 0) {
+            size += bytesRead;
+        }
+    }
+
+    /**
+     * @return the buffer holding the encoded head, and anything appended, from 0 to size()
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the number of bytes in the encoded head and anything appended
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return a buffer over the encoded head, good until the next encode
+     */
+    ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buffer, 0, size);
+    }
+
+    /**
+     * Write the encoded head in one write.
+     */
+    void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(buffer, 0, size);
+    }
+
+    private static byte[] getStatusLine(String version, int code) {
+        if (code < 0 || code >= http11StatusLines.length) return null;
+
+        if ("HTTP/1.1".equals(version)) return http11StatusLines[code];
+        if ("HTTP/1.0".equals(version)) return http10StatusLines[code];
+        return null;
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    /**
+     * Header values are ISO-8859-1, anything outside of it becomes a '?'.
+     */
+    private void writeLatin1(String value) {
+        int length = value.length();
+        ensureCapacity(length);
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            buffer[size++] = (byte) (c > 0xff ? '?' : c);
+        }
+    }
+
+    private void ensureCapacity(int length) {
+        if (size + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+        }
+    }
+}
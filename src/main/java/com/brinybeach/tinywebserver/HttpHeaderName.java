@@ -0,0 +1,85 @@
+package com.brinybeach.tinywebserver;
+
+import java.util.Locale;
+
+/**
+ * The request header field names that the server and the usual
+ * handlers look up. Each one keeps its name as lower case bytes
+ * so that looking it up in the request head bytes doesn't have to
+ * change the case of the name for every header it is compared with.
+ *
+ * Any other header can still be looked up by its String name.
+ *
+ * author: bryantbunderson
+ */
+public enum HttpHeaderName {
+    ACCEPT("Accept"),
+    ACCEPT_ENCODING("Accept-Encoding"),
+    ACCEPT_LANGUAGE("Accept-Language"),
+    AUTHORIZATION("Authorization"),
+    CONNECTION("Connection"),
+    CONTENT_ENCODING("Content-Encoding"),
+    CONTENT_LENGTH("Content-Length"),
+    CONTENT_TYPE("Content-Type"),
+    COOKIE("Cookie"),
+    EXPECT("Expect"),
+    HOST("Host"),
+    IF_MATCH("If-Match"),
+    IF_MODIFIED_SINCE("If-Modified-Since"),
+    IF_NONE_MATCH("If-None-Match"),
+    IF_RANGE("If-Range"),
+    IF_UNMODIFIED_SINCE("If-Unmodified-Since"),
+    KEEP_ALIVE("Keep-Alive"),
+    RANGE("Range"),
+    TRANSFER_ENCODING("Transfer-Encoding"),
+    USER_AGENT("User-Agent");
+
+    // The lower case of every byte value, ASCII letters only
+    private static final byte[] lowerCase = new byte[256];
+
+    static {
+        for (int c = 0; c < 256; c++) {
+            lowerCase[c] = (byte) ((c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c);
+        }
+    }
+
+    private final String name;
+    private final byte[] lowerName;
+
+    HttpHeaderName(String name) {
+        this.name = name;
+        this.lowerName = name.toLowerCase(Locale.ROOT).getBytes();
+    }
+
+    /**
+     * @return the header field name as it is usually written
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Compare the bytes with the name without regard to the case of ASCII letters.
+     */
+    boolean matches(byte[] bytes, int start, int end) {
+        if (end - start != lowerName.length) return false;
+
+        for (int i = 0; i < lowerName.length; i++) {
+            if (lowerCase[bytes[start + i] & 0xff] != lowerName[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compare the bytes with the name without regard to the case of ASCII letters.
+     */
+    static boolean equalsIgnoreCase(byte[] bytes, int start, int end, String name) {
+        if (end - start != name.length()) return false;
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c > 0xff || lowerCase[bytes[start + i] & 0xff] != lowerCase[c]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,162 @@
+package com.brinybeach.tinywebserver;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Watches keep-alive connections that are waiting for their next
+ * request so that they don't hold on to a pool thread while idle.
+ *
+ * A HttpConnectionRunner parks itself here after it has written a
+ * response. The socket channel is switched to non-blocking and added
+ * to a single shared Selector. When the next request bytes arrive the
+ * channel is switched back to blocking and the HttpConnectionRunner is
+ * handed to the executor again. Connections that stay idle for longer
+ * than the timeout are closed by a HttpTimerWheel that the watcher
+ * advances from its own loop, so expiring them never has to look at
+ * the connections that aren't due yet.
+ *
+ * author: bryantbunderson
+ */
+public class HttpIdleConnectionWatcher implements Runnable {
+    private static final Logger logger = LogManager.getLogger(HttpIdleConnectionWatcher.class);
+
+    private final Selector selector;
+    private final Executor executor;
+    private final int timeout;
+
+    private final Queue<HttpConnectionRunner> parked = new ConcurrentLinkedQueue<HttpConnectionRunner>();
+    private final HttpTimerWheel timerWheel = new HttpTimerWheel();
+
+    /**
+     * @param executor the executor that runs the HttpConnectionRunners
+     * @param timeout close connections that are idle for this many ms
+     */
+    public HttpIdleConnectionWatcher(Executor executor, int timeout) throws IOException {
+        this.selector = Selector.open();
+        this.executor = executor;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Watch the connection until the next request arrives. Called
+     * by the HttpConnectionRunner just before it gives up its thread.
+     *
+     * @param connectionRunner the idle connection
+     */
+    void park(HttpConnectionRunner connectionRunner) {
+        parked.add(connectionRunner);
+        selector.wakeup();
+    }
+
+    /**
+     * Select readable connections until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.interrupted()) {
+                selector.select(timerWheel.getTickMillis());
+
+                registerParked();
+
+                List<HttpConnectionRunner> ready = new ArrayList<HttpConnectionRunner>();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    key.cancel();
+
+                    HttpConnectionRunner connectionRunner = (HttpConnectionRunner) key.attachment();
+                    connectionRunner.getIdleTimeout().cancel();
+                    ready.add(connectionRunner);
+                }
+
+                timerWheel.advance();
+
+                if (!ready.isEmpty()) {
+                    // Flush the cancelled keys so that the channels
+                    // can be put back into blocking mode.
+                    selector.selectNow();
+
+                    for (HttpConnectionRunner connectionRunner : ready) {
+                        resume(connectionRunner);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error(e);
+        } finally {
+            registerParked();
+
+            for (SelectionKey key : selector.keys()) {
+                close((HttpConnectionRunner) key.attachment());
+            }
+            try { selector.close(); } catch (IOException ignore) {}
+        }
+    }
+
+    private void registerParked() {
+        HttpConnectionRunner connectionRunner;
+        while ((connectionRunner = parked.poll()) != null) {
+            try {
+                SocketChannel channel = connectionRunner.getSocket().getChannel();
+                channel.configureBlocking(false);
+                final SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connectionRunner);
+                connectionRunner.setIdleTimeout(timerWheel.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire(key);
+                    }
+                }, timeout));
+            } catch (IOException e) {
+                logger.debug(e);
+                close(connectionRunner);
+            }
+        }
+    }
+
+    private void resume(HttpConnectionRunner connectionRunner) {
+        try {
+            connectionRunner.getSocket().getChannel().configureBlocking(true);
+            connectionRunner.setQueuedAt(System.nanoTime());
+            executor.execute(connectionRunner);
+        } catch (IOException e) {
+            logger.debug(e);
+            close(connectionRunner);
+        } catch (RejectedExecutionException e) {
+            close(connectionRunner);
+        }
+    }
+
+    /**
+     * Close a connection that has been parked for longer than the timeout.
+     */
+    private void expire(SelectionKey key) {
+        if (!key.isValid()) return;
+
+        key.cancel();
+        close((HttpConnectionRunner) key.attachment());
+    }
+
+    private void close(HttpConnectionRunner connectionRunner) {
+        Socket socket = connectionRunner.getSocket();
+        logger.debug(String.format("Client disconnected %s", socket.getRemoteSocketAddress()));
+        try { socket.close(); } catch (IOException ignore) {}
+    }
+}
@@ -1,6 +1,13 @@
 package com.brinybeach.tinywebserver;
 
-import java.util.HashMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 /**
@@ -9,7 +16,9 @@ import java.util.Map;
  *
  * HttpRequests are constant; their values cannot be
  * changed after they are created. Because HttpRequest
- * objects are immutable they can be shared.
+ * objects are immutable they can be shared. The body is
+ * the exception, it is read from the connection as the
+ * handler asks for it and can only be read once.
  *
  * author: bryantbunderson
  */
@@ -19,8 +28,20 @@ public class HttpRequest {
     private String uri;
     private String query;
     private String version;
-    private Map<String, String> headers = new HashMap<String, String>();
     private String body;
+    private InputStream bodyInputStream;
+    private int maxBodyBuffer;
+
+    // The request head bytes and the offsets of its parts. The
+    // Strings are only created from the bytes when they are asked for.
+    private byte[] head;
+    private int uriStart = -1;
+    private int uriEnd = -1;
+    private int queryStart = -1;
+    private int queryEnd = -1;
+    private int[] headerOffsets;
+    private int headerCount;
+    private String[] headerValues;
 
     private HttpRequest() {
     }
@@ -40,8 +61,62 @@ public class HttpRequest {
         this.uri = uri;
         this.query = query;
         this.version = version;
-        if (headers != null) this.headers.putAll(headers);
         this.body = body;
+        this.bodyInputStream = (body != null) ? new ByteArrayInputStream(body.getBytes()) : null;
+
+        // Lay the headers out like a parsed request head
+        // so that they are looked up the same way.
+        ByteArrayOutputStream headStream = new ByteArrayOutputStream();
+        this.headerOffsets = new int[(headers != null) ? headers.size() * 4 : 0];
+
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                int i = headerCount * 4;
+                headerOffsets[i] = headStream.size();
+                writeLatin1(headStream, header.getKey());
+                headerOffsets[i+1] = headStream.size();
+                headerOffsets[i+2] = headStream.size();
+                writeLatin1(headStream, header.getValue());
+                headerOffsets[i+3] = headStream.size();
+                headerCount++;
+            }
+        }
+
+        this.head = headStream.toByteArray();
+        this.headerValues = new String[headerCount];
+    }
+
+    /**
+     * Create the HttpRequest from the request head bytes and the
+     * offsets recorded by the HttpRequestParser. The byte array
+     * must not be changed after the HttpRequest has been created.
+     *
+     * @param head the request head bytes
+     * @param method 5.1.1 Method
+     * @param uriStart where the Request-URI path starts in the head
+     * @param uriEnd where the Request-URI path ends in the head
+     * @param queryStart where the query starts or -1 if there isn't one
+     * @param queryEnd where the query ends or -1 if there isn't one
+     * @param version 3.1 HTTP Version
+     * @param headerOffsets the field-name start and end and field-value start and end of each header
+     * @param headerCount the number of headers
+     * @param bodyInputStream 4.3 Message Body or null if there isn't one
+     * @param maxBodyBuffer the most body bytes getBody() buffers, the maxbodybuffer of the server
+     */
+    HttpRequest(byte[] head, String method, int uriStart, int uriEnd, int queryStart, int queryEnd,
+                String version, int[] headerOffsets, int headerCount, InputStream bodyInputStream, int maxBodyBuffer) {
+        this.head = head;
+        this.method = method;
+        this.uriStart = uriStart;
+        this.uriEnd = uriEnd;
+        this.queryStart = queryStart;
+        this.queryEnd = queryEnd;
+        this.version = version;
+        this.headerOffsets = headerOffsets;
+        this.headerCount = headerCount;
+        this.headerValues = new String[headerCount];
+        this.bodyInputStream = bodyInputStream;
+        this.maxBodyBuffer = maxBodyBuffer;
     }
 
     /**
@@ -55,6 +130,9 @@ public class HttpRequest {
      * @return the HTTP URI without the query
      */
     public String getUri() {
+        if (uri == null && uriStart >= 0) {
+            uri = latin1(head, uriStart, uriEnd);
+        }
         return uri;
     }
 
@@ -62,6 +140,9 @@ public class HttpRequest {
      * @return the HTTP URI query part
      */
     public String getQuery() {
+        if (query == null && queryStart >= 0) {
+            query = latin1(head, queryStart, queryEnd);
+        }
         return query;
     }
 
@@ -73,20 +154,126 @@ public class HttpRequest {
     }
 
     /**
+     * Header field names are not case sensitive. If the
+     * header was sent more than once the last value is used.
+     *
      * @param name the header field name
      * @return the HTTP header field value that matches the field name
      */
     public String getHeader(String name) {
-        return headers.get(name);
+        return getHeaderValue(indexOf(name));
+    }
+
+    /**
+     * The same as getHeader(String) but the name is already in lower case
+     * bytes, so the lookup doesn't change the case of any characters.
+     *
+     * @param name one of the common header field names
+     * @return the HTTP header field value that matches the field name
+     */
+    public String getHeader(HttpHeaderName name) {
+        return getHeaderValue(indexOf(name));
+    }
+
+    /**
+     * Look for a token in a comma separated header value like Connection
+     * without creating any Strings. Tokens are not case sensitive.
+     *
+     * @param name one of the common header field names
+     * @param token the token to look for
+     * @return true if the header has the token as one of its elements
+     */
+    public boolean hasHeaderToken(HttpHeaderName name, String token) {
+        int index = indexOf(name);
+        if (index < 0) return false;
+
+        int end = headerOffsets[index * 4 + 3];
+        int start = headerOffsets[index * 4 + 2];
+        while (start <= end) {
+            int comma = start;
+            while (comma < end && head[comma] != ',') comma++;
+
+            int elementStart = start;
+            int elementEnd = comma;
+            while (elementStart < elementEnd && isWhitespace(head[elementStart])) elementStart++;
+            while (elementEnd > elementStart && isWhitespace(head[elementEnd - 1])) elementEnd--;
+
+            if (HttpHeaderName.equalsIgnoreCase(head, elementStart, elementEnd, token)) return true;
+            start = comma + 1;
+        }
+        return false;
     }
 
     /**
-     * @return the HTTP body contents
+     * Read the whole body into a String. This is a convenience for
+     * small bodies, it buffers at most the maxbodybuffer bytes of the
+     * server the request arrived on. Handlers that take uploads should
+     * read the body InputStream instead.
+     *
+     * Unlike the other getters the first call reads the body from the
+     * connection, so it can fail. A body within the limit is returned,
+     * and kept for the calls after it. A larger one isn't returned at
+     * all, rather than cut short, and the bytes read up to the limit
+     * are gone from the body InputStream.
+     *
+     * @return the HTTP body contents or null if there isn't a body
+     * @throws IllegalStateException if the body is larger than maxbodybuffer
+     * @throws UncheckedIOException if the body couldn't be read from the connection
      */
     public String getBody() {
+        if (body == null && bodyInputStream != null) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+
+            try {
+                int bytesRead;
+                while ((bytesRead = bodyInputStream.read(buffer)) != -1) {
+                    if (outputStream.size() + bytesRead > maxBodyBuffer) {
+                        throw new IllegalStateException(String.format("Request body is larger than %d bytes", maxBodyBuffer));
+                    }
+                    outputStream.write(buffer, 0, bytesRead);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            body = outputStream.toString();
+        }
         return body;
     }
 
+    /**
+     * The body is read from the connection as it is consumed. It
+     * ends with the body, so it never reads into the next request.
+     * Whatever isn't read is skipped before the next request.
+     *
+     * @return the HTTP body contents, empty if there isn't a body
+     */
+    public InputStream getBodyInputStream() {
+        return (bodyInputStream != null) ? bodyInputStream : new ByteArrayInputStream(new byte[0]);
+    }
+
+    /**
+     * Trailer headers can follow a chunked body. They are only known
+     * after the whole body has been read from the body InputStream.
+     *
+     * @param name the trailer field name
+     * @return the trailer field value or null if it wasn't sent or the body hasn't been read yet
+     */
+    public String getTrailer(String name) {
+        if (bodyInputStream instanceof HttpChunkedInputStream) {
+            return ((HttpChunkedInputStream) bodyInputStream).getTrailer(name);
+        }
+        return null;
+    }
+
+    /**
+     * @return the HTTP body contents as a channel, empty if there isn't a body
+     */
+    public ReadableByteChannel getBodyChannel() {
+        return Channels.newChannel(getBodyInputStream());
+    }
+
     /**
      * @return true if the HTTP method exists
      */
@@ -98,14 +285,14 @@ public class HttpRequest {
      * @return true if the URI (path part) exists
      */
     public boolean existsUri() {
-        return (uri != null);
+        return (getUri() != null);
     }
 
     /**
      * @return true if the URI (query part) exists
      */
     public boolean existsQuery() {
-        return (uri != null);
+        return (getUri() != null);
     }
 
     /**
@@ -120,13 +307,113 @@ public class HttpRequest {
      * @return true if the specified HTTP header field exists
      */
     public boolean existsHeader(String name) {
-        return headers.containsKey(name);
+        return indexOf(name) >= 0;
+    }
+
+    /**
+     * @param name one of the common header field names
+     * @return true if the specified HTTP header field exists
+     */
+    public boolean existsHeader(HttpHeaderName name) {
+        return indexOf(name) >= 0;
     }
 
     /**
      * @return true if the body exists
      */
     public boolean existsBody() {
-        return (body != null);
+        return (bodyInputStream != null);
+    }
+
+    /**
+     * Read past the part of the body that the handler didn't read
+     * so that the connection is at the start of the next request.
+     *
+     * @param limit the most bytes worth reading to get there
+     * @return true if the end of the body was reached, false if more than limit bytes were left
+     * @throws IOException if the body couldn't be read from the connection
+     */
+    boolean drainBody(long limit) throws IOException {
+        if (bodyInputStream == null) return true;
+
+        byte[] buffer = new byte[4096];
+        long drained = 0;
+
+        int bytesRead;
+        while ((bytesRead = bodyInputStream.read(buffer)) != -1) {
+            drained += bytesRead;
+            if (drained > limit) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the last header with the name or -1 if there isn't one
+     */
+    private int indexOf(HttpHeaderName name) {
+        return indexOfHeader(head, headerOffsets, headerCount, name);
+    }
+
+    /**
+     * @return the index of the last header with the name or -1 if there isn't one
+     */
+    private int indexOf(String name) {
+        return indexOfHeader(head, headerOffsets, headerCount, name);
+    }
+
+    private String getHeaderValue(int index) {
+        if (index < 0) return null;
+
+        if (headerValues[index] == null) {
+            headerValues[index] = headerValue(head, headerOffsets, index);
+        }
+        return headerValues[index];
+    }
+
+    /**
+     * Find a header by comparing the field-name bytes in the head with
+     * the name without regard to case. Searches from the last header so
+     * that a repeated header gives the last value.
+     *
+     * @return the index of the header or -1 if there isn't one
+     */
+    static int indexOfHeader(byte[] head, int[] headerOffsets, int headerCount, String name) {
+        for (int index = headerCount - 1; index >= 0; index--) {
+            if (HttpHeaderName.equalsIgnoreCase(head, headerOffsets[index * 4], headerOffsets[index * 4 + 1], name)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @see #indexOfHeader(byte[], int[], int, String)
+     */
+    static int indexOfHeader(byte[] head, int[] headerOffsets, int headerCount, HttpHeaderName name) {
+        for (int index = headerCount - 1; index >= 0; index--) {
+            if (name.matches(head, headerOffsets[index * 4], headerOffsets[index * 4 + 1])) return index;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the field-value of the header at the index
+     */
+    static String headerValue(byte[] head, int[] headerOffsets, int index) {
+        return latin1(head, headerOffsets[index * 4 + 2], headerOffsets[index * 4 + 3]);
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static String latin1(byte[] bytes, int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeLatin1(ByteArrayOutputStream outputStream, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            outputStream.write(value.charAt(i));
+        }
     }
 }
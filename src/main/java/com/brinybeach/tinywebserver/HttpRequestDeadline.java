@@ -0,0 +1,226 @@
+package com.brinybeach.tinywebserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The deadlines for receiving one request on a connection.
+ *
+ * The head has to arrive in full within the head timeout of its first
+ * read, however the bytes are spread out. The body has to keep up a
+ * minimum rate: it may keep the server waiting for the body timeout
+ * plus one second for every minBodyRate bytes that have arrived.
+ * Only the time spent waiting for body bytes counts, not the time the
+ * handler takes between reads.
+ *
+ * The connection thread updates the deadline as it reads. A single
+ * HttpTimerWheel timeout is waiting for each request at the earliest
+ * time it could be overdue, when it fires it checks the deadline again
+ * and either runs the expired task or waits for the new earliest time,
+ * so reading more body bytes never has to touch the wheel.
+ *
+ * author: bryantbunderson
+ */
+class HttpRequestDeadline {
+    private enum Phase { NONE, HEAD, BODY }
+
+    private final HttpTimerWheel timerWheel;
+    private final long headTimeout;
+    private final long bodyTimeout;
+    private final long minBodyRate;
+    private final Runnable expiredTask;
+
+    private volatile Phase phase = Phase.NONE;
+    private volatile long headStart;
+    private volatile long bodyWaited;
+    private volatile long bodyBytes;
+    private volatile long waitingSince;
+    private volatile boolean expired;
+
+    // Guarded by this, a timeout that fires after a newer one was set is ignored
+    private HttpTimerWheel.Timeout timeout;
+    private int generation;
+
+    /**
+     * @param timerWheel the wheel that runs the checks
+     * @param headTimeout ms to receive the whole head, 0 for no deadline
+     * @param bodyTimeout ms the body may wait before the rate applies
+     * @param minBodyRate the slowest body in bytes per second, 0 for no deadline
+     * @param expiredTask run by the wheel when the deadline is missed
+     */
+    HttpRequestDeadline(HttpTimerWheel timerWheel, long headTimeout, long bodyTimeout, long minBodyRate, Runnable expiredTask) {
+        this.timerWheel = timerWheel;
+        this.headTimeout = headTimeout;
+        this.bodyTimeout = bodyTimeout;
+        this.minBodyRate = minBodyRate;
+        this.expiredTask = expiredTask;
+    }
+
+    /**
+     * Wrap the connection InputStream so that the time spent
+     * waiting for body bytes and the bytes read are counted.
+     *
+     * @param inputStream the socket InputStream
+     * @return the InputStream to read the requests from
+     */
+    InputStream watch(InputStream inputStream) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                waiting(System.currentTimeMillis());
+                int c = super.read();
+                received(System.currentTimeMillis(), c == -1 ? 0 : 1);
+                return c;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                waiting(System.currentTimeMillis());
+                int bytesRead = super.read(bytes, offset, length);
+                received(System.currentTimeMillis(), Math.max(bytesRead, 0));
+                return bytesRead;
+            }
+        };
+    }
+
+    /**
+     * The first bytes of a request head are being waited for.
+     */
+    void startHead(long now) {
+        headStart = now;
+        phase = Phase.HEAD;
+        schedule(headTimeout > 0 ? headTimeout : -1);
+    }
+
+    /**
+     * The head is complete and the request has a body.
+     */
+    void startBody() {
+        bodyWaited = 0;
+        bodyBytes = 0;
+        waitingSince = 0;
+        phase = Phase.BODY;
+        schedule(minBodyRate > 0 ? bodyTimeout : -1);
+    }
+
+    /**
+     * The request has been received, nothing is being waited for.
+     */
+    void stop() {
+        phase = Phase.NONE;
+        waitingSince = 0;
+        schedule(-1);
+    }
+
+    /**
+     * @return true while the head is being received
+     */
+    boolean isHead() {
+        return phase == Phase.HEAD;
+    }
+
+    /**
+     * @return true while the body is being received
+     */
+    boolean isBody() {
+        return phase == Phase.BODY;
+    }
+
+    /**
+     * Started waiting for more bytes from the client.
+     */
+    void waiting(long now) {
+        waitingSince = now;
+    }
+
+    /**
+     * Bytes arrived from the client and the wait is over.
+     *
+     * @param count the number of bytes
+     */
+    void received(long now, int count) {
+        long since = waitingSince;
+        if (since != 0 && phase == Phase.BODY) {
+            bodyWaited += now - since;
+            bodyBytes += count;
+        }
+        waitingSince = 0;
+    }
+
+    /**
+     * @return true if the client took too long with the head or the body
+     */
+    boolean isOverdue(long now) {
+        return getRemaining(now) < 0;
+    }
+
+    /**
+     * @return the ms left before the deadline or Long.MAX_VALUE if there is none
+     */
+    long getRemaining(long now) {
+        switch (phase) {
+            case HEAD:
+                if (headTimeout <= 0) return Long.MAX_VALUE;
+                return headStart + headTimeout - now;
+            case BODY:
+                if (minBodyRate <= 0) return Long.MAX_VALUE;
+
+                long waited = bodyWaited;
+                long since = waitingSince;
+                if (since != 0) waited += now - since;
+
+                return bodyTimeout + bodyBytes * 1000 / minBodyRate - waited;
+            default:
+                return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @return true once the timer has found the deadline missed
+     */
+    boolean isExpired() {
+        return expired;
+    }
+
+    /**
+     * Replace the waiting timeout.
+     *
+     * @param delay the ms until the next check or -1 for none
+     */
+    private synchronized void schedule(long delay) {
+        if (timeout != null) timeout.cancel();
+        timeout = null;
+
+        final int scheduled = ++generation;
+        if (delay < 0) return;
+
+        timeout = timerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                check(scheduled);
+            }
+        }, delay);
+    }
+
+    /**
+     * Called by the wheel. The body may have arrived fast enough
+     * since the timeout was set, then wait for the new deadline.
+     */
+    private void check(int scheduled) {
+        synchronized (this) {
+            if (scheduled != generation || expired) return;
+
+            long remaining = getRemaining(System.currentTimeMillis());
+            if (remaining == Long.MAX_VALUE) return;
+
+            if (remaining >= 0) {
+                schedule(remaining + 1);
+                return;
+            }
+            expired = true;
+        }
+
+        expiredTask.run();
+    }
+}
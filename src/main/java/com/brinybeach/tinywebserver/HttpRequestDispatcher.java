@@ -0,0 +1,132 @@
+package com.brinybeach.tinywebserver;
+
+import com.brinybeach.tinywebserver.handler.HttpHandlerInstance;
+import com.brinybeach.tinywebserver.handler.HttpRequestHandlerFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FileNotFoundException;
+
+/**
+ * Turn a parsed HttpRequest into a HttpResponse that is ready
+ * to be written. Finds a dynamic handler for the request or falls
+ * back to serving files, then applies the HttpResponseRules.
+ *
+ * Shared by the blocking HttpConnectionRunner and the
+ * selector based HttpSelectorServerRunner so that both
+ * engines answer requests in exactly the same way.
+ *
+ * author: bryantbunderson
+ */
+public class HttpRequestDispatcher {
+    private static final Logger logger = LogManager.getLogger(HttpRequestDispatcher.class);
+
+    /**
+     * Find the handler for the request, invoke it and
+     * apply the HTTP rules to the HttpResponse it returns.
+     *
+     * @param request the parsed HttpRequest
+     * @return the HttpResponse ready to be written
+     */
+    public static HttpResponse dispatch(HttpRequest request) {
+        return dispatch(request, 1);
+    }
+
+    /**
+     * @param request the parsed HttpRequest
+     * @param requestCount the number of this request on its connection, starting at 1
+     * @return the HttpResponse ready to be written
+     */
+    public static HttpResponse dispatch(HttpRequest request, int requestCount) {
+        return dispatch(request, requestCount, HttpServerConfig.getInstance());
+    }
+
+    /**
+     * @param request the parsed HttpRequest
+     * @param requestCount the number of this request on its connection, starting at 1
+     * @param config the config of the server the request arrived on
+     * @return the HttpResponse ready to be written
+     */
+    public static HttpResponse dispatch(HttpRequest request, int requestCount, HttpServerConfig config) {
+        HttpResponse response;
+
+        String method = request.getMethod();
+        String uri = request.getUri();
+        String query = request.getQuery();
+        String version = request.getVersion();
+
+        if (query == null) query="";
+        logger.info(String.format("%s %s%s %s", method, uri, query, version));
+
+        // Look for a dynamic handler for the content
+        HttpHandlerInstance handlerInstance = null;
+        HttpRequestHandlerFactory handlerFactory = HttpRequestHandlerFactory.getInstance();
+        if (handlerFactory != null) {
+            handlerInstance = handlerFactory.findHandlerMethod(request);
+        }
+
+        // Use the dynamic handler for the content if it exists else
+        // the default behavior is to return all requested files.
+        if (handlerInstance != null) {
+            response = handlerInstance.invokeHandler(request);
+        } else {
+            response = defaultHandler(request);
+        }
+
+        if (response == null) {
+            return dispatchError(500);
+        }
+
+        HttpResponseRules.apply(response, request, requestCount, config);
+        return response;
+    }
+
+    /**
+     * Build an error HttpResponse for a request that couldn't be
+     * parsed or handled. The connection will be closed after it.
+     *
+     * @param code the HTTP status code
+     * @return the HttpResponse ready to be written
+     */
+    public static HttpResponse dispatchError(int code) {
+        HttpRequest request = new HttpRequest(null, null, null, null, null, null);
+        HttpResponse response = new HttpResponse(code);
+
+        HttpResponseRules.apply(response, request);
+        return response;
+    }
+
+    private static HttpResponse defaultHandler(HttpRequest request) {
+        HttpResponse response;
+
+        // Only support GET and HEAD by default
+        if ("GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod())) {
+            String requestUri = request.getUri();
+            if ("/".equals(requestUri)) requestUri = "/index.html";
+
+            // Uris known not to exist are answered without looking for the
+            // file, and counted here once however often they were looked up
+            if (!HttpFileManager.getInstance().exists(requestUri)) {
+                HttpServerStats.getInstance().notFoundHit();
+                return new HttpResponse(404);
+            }
+
+            try {
+                response = new HttpResponse(200, requestUri);
+                if ("HEAD".equals(request.getMethod())) {
+                    // Remove body content if HEAD
+                    response.setContentInputStream(null);
+                }
+            } catch (FileNotFoundException e) {
+                response = new HttpResponse(404);
+            }
+        }
+        else {
+            // Don't support any methods other than GET and HEAD by default. A
+            // RequestHandler will have to be created to handle POST and DELETE.
+            response = new HttpResponse(405);
+        }
+
+        return response;
+    }
+}
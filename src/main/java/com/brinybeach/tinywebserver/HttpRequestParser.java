@@ -4,13 +4,15 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
- * A recursive descent parser that parses characters from
+ * A recursive descent parser that parses bytes from
  * an InputStream according to the HTTP specification.
  *
  * A recursive descent parser was chosen over other approaches
@@ -18,6 +20,33 @@ import java.util.Map;
  * BNF samples that could be implemented almost directly using
  * a RD parser.
  *
+ * The request head is read in blocks into a byte array that is
+ * reused for every request parsed by the same parser. The parser
+ * only records where the URI, query and header fields start and
+ * end. The HttpRequest keeps a copy of the head bytes and creates
+ * the Strings when they are asked for, so parsing does not create
+ * any objects per character.
+ *
+ * A request can be parsed from a blocking InputStream with parse()
+ * or be fed to the parser in whatever pieces arrive from a non-blocking
+ * channel with feed(). When feeding, the parser is a state machine that
+ * moves from the request line to the headers to the body. It parses
+ * each line with the same rules as soon as the whole line has arrived
+ * and remembers where it got to between calls.
+ *
+ * A parsed request body is not read by parse(). The HttpRequest gets
+ * a stream that reads it from the InputStream as the handler asks for
+ * it and whatever the handler leaves is skipped by the next parse().
+ * Chunked bodies are decoded by that stream as they are read. Fed
+ * bodies have already arrived so they are buffered, up to the
+ * maxbodybuffer limit, and a chunked one is only decoded far enough
+ * to find where it ends.
+ *
+ * The request line, each header line, all of the header lines together
+ * and the number of headers are limited. The limits are checked as each
+ * byte is read so a client can't make the parser hold more than that.
+ * Going over them fails the parse with a 414 or a 431 status code.
+ *
  * See RFC-2616. https://tools.ietf.org/html/rfc2616
  *
  * author: bryantbunderson
@@ -25,17 +54,94 @@ import java.util.Map;
 public class HttpRequestParser {
     private static final Logger logger = LogManager.getLogger(HttpRequestParser.class);
 
+    // Character classes of the rules below, looked up by byte value
+    private static final boolean[] digits = new boolean[256];
+    private static final boolean[] hexes = new boolean[256];
+    private static final boolean[] pchars = new boolean[256];
+    private static final boolean[] tokens = new boolean[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            char c = (char) i;
+            digits[i] = isDigit(c);
+            hexes[i] = isHex(c);
+            pchars[i] = isPchar(c);
+            tokens[i] = isToken(c);
+        }
+    }
+
     private String method;
-    private String uri;
-    private String query;
+    private int uriStart;
+    private int uriEnd;
+    private int queryStart;
+    private int queryEnd;
     private String version;
-    private Map<String, String> headers = new HashMap<String, String>();
-    private String body;
+    private int[] headerOffsets = new int[64];
+    private int headerCount;
+    private InputStream body;
+
+    // The limits on the request and the longest head they allow
+    private final int maxRequestLine;
+    private final int maxHeaderSize;
+    private final int maxHeaderBytes;
+    private final int maxHeaderCount;
+    private final int maxHeadLength;
+    private final int maxBodyBuffer;
+
+    // Reading the byte at limit fails the parse with the limitCode
+    private int limit;
+    private int limitCode;
+    private int headersLimit;
 
     private BufferedInputStream inputStream;
-    private StringBuilder buffer = new StringBuilder();
+    private byte[] buffer;
+    private int length;
     private int offset;
 
+    /**
+     * The result of feeding bytes to the parser.
+     */
+    public enum Status {
+        /** The request isn't complete, feed more bytes */
+        NEED_MORE,
+        /** The request is complete, see getRequest() */
+        COMPLETE,
+        /** The request is badly formed, nothing more can be parsed */
+        ERROR
+    }
+
+    private enum State { REQUEST_LINE, HEADERS, BODY, COMPLETE, ERROR }
+
+    // What the parser was doing when it ran out of fed bytes
+    private State state = State.REQUEST_LINE;
+    private int scanOffset;
+    private int lineEnd = -1;
+    private int consumed;
+    private HttpRequest request;
+    private ByteArrayOutputStream bodyStream;
+    private long bodyRemaining;
+    private HttpChunkedDecoder chunkedDecoder;
+    private int errorCode;
+
+    public HttpRequestParser() {
+        this(HttpServerConfig.getInstance());
+    }
+
+    /**
+     * @param config has the limits on the request head and the largest body that feed() will buffer
+     */
+    public HttpRequestParser(HttpServerConfig config) {
+        this.maxRequestLine = config.getMaxrequestline();
+        this.maxHeaderSize = config.getMaxheadersize();
+        this.maxHeaderBytes = config.getMaxheaderbytes();
+        this.maxHeaderCount = config.getMaxheadercount();
+        this.maxHeadLength = maxRequestLine + maxHeaderBytes;
+        this.maxBodyBuffer = config.getMaxbodybuffer();
+        this.buffer = new byte[Math.min(1024, maxHeadLength)];
+
+        reset();
+    }
+
     /**
      * 5 Request
      *
@@ -46,36 +152,310 @@ public class HttpRequestParser {
      *                  CRLF
      *                  [ message-body ]          ; Section 4.3
      *
+     * A BufferedInputStream is used as it is so that the bytes it has
+     * already read ahead, like the next pipelined request, are still
+     * there for the next call to parse(). Other streams are wrapped.
+     *
      * @param inputStream the InputStream to parse
      * @return a valid or invalid HttpRequest object
      * @throws IOException if an error occurred reading from the InputStream
      * @throws ParseException if the request is badly formed
      */
     public HttpRequest parse(InputStream inputStream) throws IOException, ParseException {
-        this.inputStream = new BufferedInputStream(inputStream);
+        if (inputStream instanceof BufferedInputStream) {
+            this.inputStream = (BufferedInputStream) inputStream;
+        } else {
+            this.inputStream = new BufferedInputStream(inputStream);
+        }
+
+        // Skip whatever the handler left of the last body
+        if (body != null) {
+            byte[] skipBuffer = new byte[4096];
+            while (body.read(skipBuffer) != -1) ;
+        }
+
+        reset();
+
+        // The head is read in blocks that may go past its end. Mark
+        // the stream so that the bytes after the head can be put back.
+        this.inputStream.mark(maxHeadLength);
 
         parseRequestLine();
         parseHeaders();
 
-        int offset = this.offset;
-        char c;
+        int c;
 
         c = getChar(offset);
         if (c != '\r') throw new ParseException("Missing CRLF after last header", offset);
         offset++;
-        this.offset = offset;
 
         c = getChar(offset);
         if (c != '\n') throw new ParseException("Missing CRLF after last header", offset);
         offset++;
-        this.offset = offset;
 
-        if (headers.containsKey("Content-Length")) {
-            parseBody();
+        // Put back whatever was read past the end of the head
+        this.inputStream.reset();
+        skip(offset);
+
+        byte[] head = Arrays.copyOf(buffer, offset);
+        int[] headerOffsets = Arrays.copyOf(this.headerOffsets, headerCount * 4);
+
+        // 4.4 Message Length, Transfer-Encoding wins over Content-Length
+        int transferEncoding = HttpRequest.indexOfHeader(head, headerOffsets, headerCount, HttpHeaderName.TRANSFER_ENCODING);
+        int contentLength = HttpRequest.indexOfHeader(head, headerOffsets, headerCount, HttpHeaderName.CONTENT_LENGTH);
+        if (transferEncoding >= 0) {
+            parseTransferEncoding(HttpRequest.headerValue(head, headerOffsets, transferEncoding));
+            body = new HttpChunkedInputStream(this.inputStream);
+        } else if (contentLength >= 0) {
+            parseBody(HttpRequest.headerValue(head, headerOffsets, contentLength));
         }
 
         // Return a valid request meaning that there weren't any parse errors.
-        return new HttpRequest(method, uri, query, version, headers, body);
+        return new HttpRequest(head, method, uriStart, uriEnd, queryStart, queryEnd, version, headerOffsets, headerCount, body, maxBodyBuffer);
+    }
+
+    /**
+     * Feed the next bytes that arrived for the request. The bytes of the
+     * request head are copied so the caller can reuse its buffer. When the
+     * request is complete any bytes after it, like the next pipelined
+     * request, are not consumed and must be fed again to parse the next
+     * request. Feeding bytes after a COMPLETE starts the next request.
+     *
+     * @param bytes holds the bytes that arrived
+     * @param offset where the bytes start
+     * @param count the number of bytes
+     * @return NEED_MORE, COMPLETE or ERROR
+     */
+    public Status feed(byte[] bytes, int offset, int count) {
+        if (state == State.COMPLETE) {
+            reset();
+        }
+
+        consumed = 0;
+
+        if (state == State.REQUEST_LINE || state == State.HEADERS) {
+            // Never take more than the longest head, the limits
+            // are always reached before the buffer is full.
+            int headCount = Math.min(count, maxHeadLength - length);
+            if (length + headCount > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2, length + headCount), maxHeadLength));
+            }
+
+            System.arraycopy(bytes, offset, buffer, length, headCount);
+            length += headCount;
+            consumed = headCount;
+
+            try {
+                feedHead();
+            } catch (ParseException e) {
+                logger.debug(e.getMessage());
+                state = State.ERROR;
+                errorCode = e.getCode();
+            } catch (IOException e) {
+                logger.debug(e);
+                state = State.ERROR;
+                errorCode = 400;
+            }
+        }
+
+        if (state == State.BODY && chunkedDecoder != null) {
+            int bodyCount;
+            try {
+                bodyCount = chunkedDecoder.scan(bytes, offset + consumed, count - consumed);
+            } catch (IOException e) {
+                logger.debug(e.getMessage());
+                state = State.ERROR;
+                errorCode = 400;
+                return Status.ERROR;
+            }
+
+            if (bodyStream.size() + bodyCount > maxBodyBuffer) {
+                state = State.ERROR;
+                errorCode = 413;
+                return Status.ERROR;
+            }
+
+            bodyStream.write(bytes, offset + consumed, bodyCount);
+            consumed += bodyCount;
+
+            if (chunkedDecoder.isComplete()) {
+                completeRequest(new HttpChunkedInputStream(new ByteArrayInputStream(bodyStream.toByteArray())));
+            }
+        } else if (state == State.BODY) {
+            int bodyCount = (int) Math.min(bodyRemaining, count - consumed);
+            bodyStream.write(bytes, offset + consumed, bodyCount);
+            bodyRemaining -= bodyCount;
+            consumed += bodyCount;
+
+            if (bodyRemaining == 0) {
+                completeRequest(new ByteArrayInputStream(bodyStream.toByteArray()));
+            }
+        }
+
+        switch (state) {
+            case COMPLETE: return Status.COMPLETE;
+            case ERROR: return Status.ERROR;
+            default: return Status.NEED_MORE;
+        }
+    }
+
+    /**
+     * @return how many of the bytes passed to the last feed() were used
+     */
+    public int getConsumed() {
+        return consumed;
+    }
+
+    /**
+     * @return the request after feed() returned COMPLETE
+     */
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * @return the status code to answer with after feed() returned ERROR
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * @return true while feed() has part of a request head
+     */
+    boolean isReadingHead() {
+        return (state == State.REQUEST_LINE || state == State.HEADERS) && length > 0;
+    }
+
+    /**
+     * @return true while feed() is waiting for the rest of a request body
+     */
+    boolean isReadingBody() {
+        return state == State.BODY;
+    }
+
+    /**
+     * Parse every complete line of the head that has been fed so far.
+     * A line is only parsed once its LF has arrived, so the parse rules
+     * never have to stop in the middle and the parser only has to
+     * remember which line comes next.
+     */
+    private void feedHead() throws ParseException, IOException {
+        while (state == State.REQUEST_LINE || state == State.HEADERS) {
+            if (state == State.HEADERS) limitHeader();
+
+            int lf = scanOffset;
+            while (lf < length && buffer[lf] != '\n') lf++;
+
+            if (lf == length) {
+                // The LF can't arrive before the limit so don't wait for it
+                if (length >= limit) throw limitException(length);
+                scanOffset = length;
+                return;
+            }
+
+            lineEnd = lf + 1;
+            scanOffset = lineEnd;
+
+            if (state == State.REQUEST_LINE) {
+                parseRequestLine();
+                state = State.HEADERS;
+            } else if (getChar(offset) == '\r') {
+                offset++;
+                if (getChar(offset) != '\n') throw new ParseException("Missing CRLF after last header", offset);
+                offset++;
+
+                // Hand back the bytes that were fed after the end of the head
+                consumed -= length - offset;
+                length = offset;
+
+                startBody();
+            } else if (!parseHeader()) {
+                throw new ParseException("Missing CRLF after last header", offset);
+            }
+
+            if (state != State.BODY && state != State.COMPLETE && offset != lineEnd) {
+                throw new ParseException("Unexpected characters at the end of line", offset);
+            }
+        }
+    }
+
+    /**
+     * The head is complete so the request is complete as well unless it has a body.
+     */
+    private void startBody() throws ParseException {
+        int[] headerOffsets = Arrays.copyOf(this.headerOffsets, headerCount * 4);
+        int transferEncoding = HttpRequest.indexOfHeader(buffer, headerOffsets, headerCount, HttpHeaderName.TRANSFER_ENCODING);
+        int contentLength = HttpRequest.indexOfHeader(buffer, headerOffsets, headerCount, HttpHeaderName.CONTENT_LENGTH);
+
+        if (transferEncoding >= 0) {
+            parseTransferEncoding(HttpRequest.headerValue(buffer, headerOffsets, transferEncoding));
+            chunkedDecoder = new HttpChunkedDecoder();
+            bodyStream = new ByteArrayOutputStream();
+            state = State.BODY;
+            return;
+        }
+
+        if (contentLength < 0) {
+            completeRequest(null);
+            return;
+        }
+
+        try {
+            bodyRemaining = Long.parseLong(HttpRequest.headerValue(buffer, headerOffsets, contentLength));
+        } catch (NumberFormatException e) {
+            throw new ParseException("Bad Content-Length", e, offset);
+        }
+        if (bodyRemaining < 0) throw new ParseException("Bad Content-Length", offset);
+
+        if (bodyRemaining == 0) {
+            completeRequest(null);
+            return;
+        }
+
+        if (bodyRemaining > maxBodyBuffer) {
+            throw new ParseException("Request body is too large to buffer", offset, 413);
+        }
+
+        bodyStream = new ByteArrayOutputStream((int) Math.min(bodyRemaining, 8192));
+        state = State.BODY;
+    }
+
+    private void completeRequest(InputStream body) {
+        byte[] head = Arrays.copyOf(buffer, length);
+        int[] headerOffsets = Arrays.copyOf(this.headerOffsets, headerCount * 4);
+
+        request = new HttpRequest(head, method, uriStart, uriEnd, queryStart, queryEnd, version, headerOffsets, headerCount, body, maxBodyBuffer);
+        bodyStream = null;
+        chunkedDecoder = null;
+        state = State.COMPLETE;
+    }
+
+    /**
+     * Forget the last request and get ready to parse the next one.
+     */
+    private void reset() {
+        method = null;
+        uriStart = uriEnd = -1;
+        queryStart = queryEnd = -1;
+        version = null;
+        headerCount = 0;
+        body = null;
+        length = 0;
+        offset = 0;
+
+        state = State.REQUEST_LINE;
+        scanOffset = 0;
+        lineEnd = -1;
+        request = null;
+        bodyStream = null;
+        bodyRemaining = 0;
+        chunkedDecoder = null;
+        errorCode = 0;
+
+        limit = maxRequestLine;
+        limitCode = 414;
+        headersLimit = 0;
     }
 
     /**
@@ -84,33 +464,33 @@ public class HttpRequestParser {
      * Request-Line   = Method SP Request-URI SP HTTP-Version CRLF
      */
     private void parseRequestLine() throws ParseException, IOException {
-        int offset = this.offset;
-        char c;
+        int c;
 
         parseMethod();
-        offset = this.offset;
 
         c = getChar(offset);
         if (c != ' ') throw new ParseException("Bad character in METHOD", offset);
-        offset++; this.offset = offset;
+        offset++;
 
         parseRequestURI();
-        offset = this.offset;
 
         c = getChar(offset);
         if (c != ' ') throw new ParseException("Bad character in URI", offset);
-        offset++; this.offset = offset;
+        offset++;
 
         parseHttpVersion();
-        offset = this.offset;
 
         c = getChar(offset);
         if (c != '\r') throw new ParseException("Bad character in HTTP version", offset);
-        offset++; this.offset = offset;
+        offset++;
 
         c = getChar(offset);
         if (c != '\n') throw new ParseException("Bad character in HTTP version", offset);
-        offset++; this.offset = offset;
+        offset++;
+
+        // The header lines and the CRLF after them come next
+        headersLimit = offset + maxHeaderBytes;
+        limitHeader();
     }
 
     /**
@@ -128,46 +508,26 @@ public class HttpRequestParser {
      * extension-method = token
      */
     private void parseMethod() throws ParseException, IOException {
-        int offset;
-
-        offset = this.offset;
-        if ((getChar(offset++) == 'G') && (getChar(offset++) == 'E') && (getChar(offset++) == 'T')) {
-            this.method = "GET";
-            this.offset = offset;
+        if (matchMethod("GET") || matchMethod("HEAD") || matchMethod("POST") ||
+            matchMethod("PUT") || matchMethod("DELETE")) {
             return;
         }
 
-        offset = this.offset;
-        if ((getChar(offset++) == 'H') && (getChar(offset++) == 'E') && (getChar(offset++) == 'A') && (getChar(offset++) == 'D')) {
-            this.method = "HEAD";
-            this.offset = offset;
-            return;
-        }
-
-        offset = this.offset;
-        if ((getChar(offset++) == 'P') && (getChar(offset++) == 'O') && (getChar(offset++) == 'S') && (getChar(offset++) == 'T')) {
-            this.method = "POST";
-            this.offset = offset;
-            return;
-        }
-
-        offset = this.offset;
-        if ((getChar(offset++) == 'P') && (getChar(offset++) == 'U') && (getChar(offset++) == 'T')) {
-            this.method = "PUT";
-            this.offset = offset;
-            return;
-        }
-
-        offset = this.offset;
-        if ((getChar(offset++) == 'D') && (getChar(offset++) == 'E') && (getChar(offset++) == 'L') &&
-            (getChar(offset++) == 'E') && (getChar(offset++) == 'T') && (getChar(offset++) == 'E')) {
+        throw new ParseException("Bad request method", offset);
+    }
 
-            this.method = "DELETE";
-            this.offset = offset;
-            return;
+    /**
+     * Match one of the method names at the current offset. The
+     * String constant becomes the method so none is created.
+     */
+    private boolean matchMethod(String name) throws IOException, ParseException {
+        for (int i = 0; i < name.length(); i++) {
+            if (getChar(offset + i) != name.charAt(i)) return false;
         }
 
-        throw new ParseException("Bad request method", offset);
+        method = name;
+        offset += name.length();
+        return true;
     }
 
     /**
@@ -194,30 +554,21 @@ public class HttpRequestParser {
      * path_segments = segment *( "/" segment )
      */
     private void parseRequestURI() throws ParseException, IOException {
-        int offset = this.offset;
-
-        char c = getChar(offset);
+        int c = getChar(offset);
         if (c != '/') throw new ParseException("Only abs_path supported", offset);
 
-        // First use of uri so create the
-        // String instead of appending to it.
-        uri = Character.toString(c);
-        offset++; this.offset = offset;
+        uriStart = offset;
+        offset++;
 
         parseSegment();
 
-        while (this.offset > offset) {
-            offset = this.offset;
-            c = getChar(offset);
-
-            if (c == '/') {
-                uri += Character.toString(c);
-                offset++; this.offset = offset;
-
-                parseSegment();
-            }
+        while (getChar(offset) == '/') {
+            offset++;
+            parseSegment();
         }
 
+        uriEnd = offset;
+
         parseQuery();
     }
 
@@ -228,31 +579,12 @@ public class HttpRequestParser {
      * param         = *pchar
      */
     private void parseSegment() throws ParseException, IOException {
-        int offset;
-        char c;
-
-        offset = this.offset;
-        c = getChar(offset);
-        while (isPchar(c)) {
-            parsePchar();
-
-            offset = this.offset;
-            c = getChar(offset);
-        }
+        parsePchars();
 
-        offset = this.offset;
-        c = getChar(offset);
-        while (c == ';') {
-            uri += Character.toString(c);
-            offset++; this.offset = offset;
-
-            parseParam();
-
-            offset = this.offset;
-            c = getChar(offset);
+        while (getChar(offset) == ';') {
+            offset++;
+            parsePchars();
         }
-
-        this.offset = offset;
     }
 
     /**
@@ -268,23 +600,18 @@ public class HttpRequestParser {
      * "&", "=", "+", ",", and "$" are reserved.
      */
     private void parseQuery() throws ParseException, IOException {
-        int offset = this.offset;
-
-        char c = getChar(offset);
-        if (c != '?') return;
+        if (getChar(offset) != '?') return;
 
-        query = Character.toString(c);
-        offset++; this.offset = offset;
+        queryStart = offset;
+        offset++;
 
         // Just parse to the space
         // before the HTTP version
-        c = getChar(offset);
-        while (c != ' ') {
-            query += Character.toString(c);
-            offset++; this.offset = offset;
-
-            c = getChar(offset);
+        while (getChar(offset) != ' ') {
+            offset++;
         }
+
+        queryEnd = offset;
     }
 
     /**
@@ -296,40 +623,17 @@ public class HttpRequestParser {
      * unreserved    = alphanum | mark
      * mark          = "-" | "_" | "." | "!" | "~" | "*" | "'" | "(" | ")"
      */
-    private void parsePchar() throws ParseException, IOException {
-        int offset = this.offset;
-
-        char c = getChar(offset);
-        while (isPchar(c)) {
-            if (isEscaped(c)) {
+    private void parsePchars() throws ParseException, IOException {
+        int c = getChar(offset);
+        while (pchars[c]) {
+            if (c == '%') {
                 parseEscaped();
-                offset = this.offset;
             } else {
-                uri += Character.toString(c);
-                offset++; this.offset = offset;
+                offset++;
             }
 
             c = getChar(offset);
         }
-
-        this.offset = offset;
-    }
-
-    /**
-     * 3.3. Path Component (RFC-2396)
-     *
-     * param         = *pchar
-     */
-    private void parseParam() throws ParseException, IOException {
-        int offset = this.offset;
-
-        char c = getChar(offset);
-        while (isPchar(c)) {
-            uri += Character.toString(c);
-            c = getChar(offset++);
-        }
-
-        this.offset = offset;
     }
 
     /**
@@ -345,25 +649,17 @@ public class HttpRequestParser {
      *                         "a" | "b" | "c" | "d" | "e" | "f"
      */
     private void parseEscaped() throws ParseException, IOException {
-        int offset = this.offset;
-
-        char c = getChar(offset);
+        int c = getChar(offset);
         if (c != '%') throw new ParseException("Invalid escaped hex number", offset);
-
-        uri += Character.toString(c);
-        offset++; this.offset = offset;
+        offset++;
 
         c = getChar(offset);
-        if (!isHex(c))  throw new ParseException("Invalid escaped hex number", offset);
-
-        uri += Character.toString(c);
-        offset++; this.offset = offset;
+        if (!hexes[c]) throw new ParseException("Invalid escaped hex number", offset);
+        offset++;
 
         c = getChar(offset);
-        if (!isHex(c))  throw new ParseException("Invalid escaped hex number", offset);
-
-        uri += Character.toString(c);
-        offset++; this.offset = offset;
+        if (!hexes[c]) throw new ParseException("Invalid escaped hex number", offset);
+        offset++;
     }
 
     /**
@@ -371,48 +667,49 @@ public class HttpRequestParser {
      * HTTP-Version   = "HTTP" "/" 1*DIGIT "." 1*DIGIT
      */
     private void parseHttpVersion() throws ParseException, IOException {
-        int offset = this.offset;
-        char c;
+        int start = offset;
+        int c;
 
         c = getChar(offset);
         if (c != 'H') throw new ParseException("Invalid HTTP version", offset);
-        version = Character.toString(c);
-        offset++; this.offset = offset;
+        offset++;
 
         c = getChar(offset);
         if (c != 'T') throw new ParseException("Invalid HTTP version", offset);
-        version += Character.toString(c);
-        offset++; this.offset = offset;
+        offset++;
 
         c = getChar(offset);
         if (c != 'T') throw new ParseException("Invalid HTTP version", offset);
-        version += Character.toString(c);
-        offset++; this.offset = offset;
+        offset++;
 
         c = getChar(offset);
         if (c != 'P') throw new ParseException("Invalid HTTP version", offset);
-        version += Character.toString(c);
-        offset++; this.offset = offset;
+        offset++;
 
         c = getChar(offset);
         if (c != '/') throw new ParseException("Invalid HTTP version", offset);
-        version += Character.toString(c);
-        offset++; this.offset = offset;
+        offset++;
 
-        c = getChar(offset);
-        if (!isDigit(c)) throw new ParseException("Invalid HTTP version", offset);
-        version += Character.toString(c);
-        offset++; this.offset = offset;
+        int major = getChar(offset);
+        if (!digits[major]) throw new ParseException("Invalid HTTP version", offset);
+        offset++;
 
         c = getChar(offset);
         if (c != '.') throw new ParseException("Invalid HTTP version", offset);
-        version += Character.toString(c);
-        offset++; this.offset = offset;
+        offset++;
 
-        c = getChar(offset);
-        if (!isDigit(c)) throw new ParseException("Invalid HTTP version", offset);
-        version += Character.toString(c);
-        offset++; this.offset = offset;
+        int minor = getChar(offset);
+        if (!digits[minor]) throw new ParseException("Invalid HTTP version", offset);
+        offset++;
+
+        // Almost every request is one of these two
+        if (major == '1' && minor == '1') {
+            version = "HTTP/1.1";
+        } else if (major == '1' && minor == '0') {
+            version = "HTTP/1.0";
+        } else {
+            version = new String(buffer, start, offset - start, StandardCharsets.ISO_8859_1);
+        }
     }
 
     /**
@@ -439,12 +736,7 @@ public class HttpRequestParser {
      *                | User-Agent               ; Section 14.43
      */
     private void parseHeaders() throws ParseException, IOException {
-        int offset;
-
-        do {
-            offset = this.offset;
-            parseHeader();
-        } while (this.offset > offset);
+        while (parseHeader()) ;
     }
 
     /**
@@ -456,47 +748,61 @@ public class HttpRequestParser {
      *                  field-content  = <the OCTETs making up the field-value
      *                                   and consisting of either *TEXT or combinations
      *                                   of token, separators, and quoted-string>
+     *
+     * The start and end offsets of the field-name and field-value
+     * are recorded as four ints per header in the headerOffsets.
+     *
+     * @return false if there isn't another header
      */
-    private void parseHeader() throws ParseException, IOException {
-        int offset = this.offset;
-        char c;
+    private boolean parseHeader() throws ParseException, IOException {
+        int c;
 
-        StringBuilder fieldName = new StringBuilder();
-        StringBuilder fieldValue = new StringBuilder();
+        limitHeader();
 
         c = getChar(offset);
-        if (!isToken(c)) return;
+        if (!tokens[c]) return false;
 
-        while (isToken(c)) {
-            fieldName.append(c);
-            offset++; this.offset = offset;
+        if (headerCount == maxHeaderCount) throw new ParseException("Too many headers", offset, 431);
 
+        int nameStart = offset;
+        while (tokens[c]) {
+            offset++;
             c = getChar(offset);
         }
+        int nameEnd = offset;
 
         if (c != ':') throw new ParseException("Bad character in header field-name", offset);
-        offset++; this.offset = offset;
+        offset++;
 
         c = getChar(offset);
         if (c != ' ') throw new ParseException("Bad character in header field-value", offset);
-        offset++; this.offset = offset;
+        offset++;
 
+        int valueStart = offset;
         c = getChar(offset);
         while (c != '\r') {
-            fieldValue.append(c);
-            offset++; this.offset = offset;
-
+            offset++;
             c = getChar(offset);
         }
-
-        if (c != '\r') throw new ParseException("Bad character after header", offset);
-        offset++; this.offset = offset;
+        int valueEnd = offset;
+        offset++;
 
         c = getChar(offset);
         if (c != '\n') throw new ParseException("Bad character after header", offset);
-        offset++; this.offset = offset;
+        offset++;
 
-        headers.put(fieldName.toString(), fieldValue.toString());
+        if (headerOffsets.length < (headerCount + 1) * 4) {
+            headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length * 2);
+        }
+
+        int i = headerCount * 4;
+        headerOffsets[i] = nameStart;
+        headerOffsets[i+1] = nameEnd;
+        headerOffsets[i+2] = valueStart;
+        headerOffsets[i+3] = valueEnd;
+        headerCount++;
+
+        return true;
     }
 
     /**
@@ -508,34 +814,40 @@ public class HttpRequestParser {
      * 7.2 Entity Body
      *
      * entity-body   = *OCTET
+     *
+     * The body is left on the InputStream for the handler to read.
+     *
+     * @param contentLength the Content-Length header value
      */
-    private void parseBody() throws ParseException {
-        int offset = this.offset;
-
-        if (headers.containsKey("Content-Length")) {
-            int length = Integer.parseInt(headers.get("Content-Length"));
-            byte buffer[] = new byte[Math.min(1024, length)];
-
-            int totalBytes = 0;
-            while (totalBytes < length) {
-                int bytesRead;
-
-                try {
-                    bytesRead = inputStream.read(buffer);
-                    totalBytes += bytesRead;
-                } catch (Exception e) {
-                    throw new ParseException("Exception reading message body", e, offset);
-                }
-                if (bytesRead == -1) {
-                    throw new ParseException("End of stream reading message body", offset);
-                }
-
-                body += new String(buffer, 0, bytesRead);
-                offset += bytesRead;
-            }
+    private void parseBody(String contentLength) throws ParseException {
+        long length;
+        try {
+            length = Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Bad Content-Length", e, offset);
+        }
+        if (length < 0) throw new ParseException("Bad Content-Length", offset);
+
+        if (length > 0) {
+            body = new HttpBodyInputStream(inputStream, length);
         }
+    }
 
-        this.offset = offset;
+    /**
+     * 3.6 Transfer Codings
+     *
+     * Transfer-Encoding = "Transfer-Encoding" ":" 1#transfer-coding
+     *
+     * Only the chunked transfer-coding is supported. It must be the
+     * last coding or the end of the body can't be found (RFC-7230 3.3.3).
+     *
+     * @param transferEncoding the Transfer-Encoding header value
+     */
+    private void parseTransferEncoding(String transferEncoding) throws ParseException {
+        String[] codings = transferEncoding.split(",");
+        if (!"chunked".equalsIgnoreCase(codings[codings.length - 1].trim())) {
+            throw new ParseException("Unsupported Transfer-Encoding", offset);
+        }
     }
 
     /**
@@ -543,7 +855,7 @@ public class HttpRequestParser {
      * @param c
      * @return true or false
      */
-    private boolean isDigit(char c) {
+    private static boolean isDigit(char c) {
         return Character.getType(c) == Character.DECIMAL_DIGIT_NUMBER;
     }
 
@@ -552,7 +864,7 @@ public class HttpRequestParser {
      * @param c
      * @return true or false
      */
-    private boolean isAlpha(char c) {
+    private static boolean isAlpha(char c) {
         return ((((((1 << Character.UPPERCASE_LETTER) | (1 << Character.LOWERCASE_LETTER))) >> Character.getType(c)) & 1) != 0);
     }
 
@@ -562,7 +874,7 @@ public class HttpRequestParser {
      * @param c
      * @return true or false
      */
-    private boolean isPchar(char c) {
+    private static boolean isPchar(char c) {
         return (isUnreserved(c) || isEscaped(c) || c == ':' || c == '@' || c == '&' || c == '=' || c == '+' || c == '$' || c == ',');
     }
 
@@ -572,7 +884,7 @@ public class HttpRequestParser {
      * @param c
      * @return true or false
      */
-    private boolean isUnreserved(char c) {
+    private static boolean isUnreserved(char c) {
         return (isAlpha(c) || isDigit(c) || isMark(c));
     }
 
@@ -582,7 +894,7 @@ public class HttpRequestParser {
      * @param c
      * @return true or false
      */
-    private boolean isMark(char c) {
+    private static boolean isMark(char c) {
         return (c == '-' || c == '_' || c == '.' || c == '!' || c == '~' || c == '*' | c == '\'' || c == '(' || c == ')');
     }
 
@@ -594,7 +906,7 @@ public class HttpRequestParser {
      * @param c
      * @return true or false
      */
-    private boolean isEscaped(char c) {
+    private static boolean isEscaped(char c) {
         return (c == '%');
     }
 
@@ -606,7 +918,7 @@ public class HttpRequestParser {
      * @param c
      * @return true or false
      */
-    private boolean isHex(char c) {
+    private static boolean isHex(char c) {
         return (isDigit(c) || c == 'A' || c == 'B' || c == 'C' || c == 'D' || c == 'E' || c == 'F' ||
                               c == 'a' || c == 'b' || c == 'c' || c == 'd' || c ==  'e' || c ==  'f');
     }
@@ -619,7 +931,7 @@ public class HttpRequestParser {
      * @param c
      * @return true or false
      */
-    private boolean isToken(char c) {
+    private static boolean isToken(char c) {
         return (!isCtl(c) && !isSeparator(c));
     }
 
@@ -634,7 +946,7 @@ public class HttpRequestParser {
      * @param c
      * @return true or false
      */
-    private boolean isSeparator(char c) {
+    private static boolean isSeparator(char c) {
         return (c == '(' || c == ')' || c == '<' || c == '>'  || c == '@'
              || c == ',' || c == ';' || c == ':' || c == '\\' || c == '"'
              || c == '/' || c == '[' || c == ']' || c == '?'  || c == '='
@@ -649,37 +961,72 @@ public class HttpRequestParser {
      * @param c
      * @return true or false
      */
-    private boolean isCtl(char c) {
+    private static boolean isCtl(char c) {
         return Character.isISOControl(c);
     }
 
 
     /**
-     * Get a character at "offset" from the inputStream or the
-     * internal StringBuilder. The StringBuilder is there so that
-     * the parser can backup if it needs to.
+     * Get the byte at "offset" in the head buffer, reading the next
+     * block from the inputStream if it hasn't been read yet. The buffer
+     * holds the whole head so that the parser can backup if it needs to.
      *
-     * @param offset of the char to get
-     * @return the char from the stream or buffer
-     * @throws ParseException
+     * @param offset of the byte to get
+     * @return the byte as an unsigned value from 0 to 255
+     * @throws ParseException if the byte is past a limit or past the end of a fed line
      */
-    private char getChar(int offset) throws IOException {
-        while (offset >= buffer.length()) {
-            int c;
+    private int getChar(int offset) throws IOException, ParseException {
+        if (offset >= limit) throw limitException(offset);
 
+        // When feeding, the rules only get to see the line being parsed
+        if (lineEnd >= 0) {
+            if (offset >= lineEnd) throw new ParseException("Unexpected end of line", offset);
+            return buffer[offset] & 0xff;
+        }
+
+        while (offset >= length) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, maxHeadLength));
+            }
+
+            int bytesRead;
             try {
-                c = inputStream.read();
+                bytesRead = inputStream.read(buffer, length, buffer.length - length);
             } catch (IOException e) {
                 throw new IOException("Exception reading next character", e);
             }
-            if (c == -1) {
+            if (bytesRead == -1) {
                 throw new IOException("End of stream");
             }
 
-            buffer.append((char) c);
+            length += bytesRead;
         }
 
-        return buffer.charAt(offset);
+        return buffer[offset] & 0xff;
+    }
+
+    /**
+     * Limit the header line that starts at the offset.
+     */
+    private void limitHeader() {
+        limit = Math.min(offset + maxHeaderSize, headersLimit);
+        limitCode = 431;
+    }
+
+    private ParseException limitException(int offset) {
+        if (limitCode == 414) return new ParseException("Request line is too long", offset, 414);
+        return new ParseException("Request headers are too large", offset, 431);
+    }
+
+    /**
+     * Skip over the head bytes after the inputStream has been reset.
+     */
+    private void skip(int count) throws IOException {
+        while (count > 0) {
+            long skipped = inputStream.skip(count);
+            if (skipped <= 0) throw new IOException("End of stream");
+            count -= skipped;
+        }
     }
 
     /**
@@ -687,6 +1034,7 @@ public class HttpRequestParser {
      */
     class ParseException extends Exception {
         private int offset;
+        private int code = 400;
 
         public ParseException(String message, int offset) {
             super(message);
@@ -697,5 +1045,18 @@ public class HttpRequestParser {
             super(message, cause);
             this.offset = offset;
         }
+
+        public ParseException(String message, int offset, int code) {
+            super(message);
+            this.offset = offset;
+            this.code = code;
+        }
+
+        /**
+         * @return the status code to answer the request with
+         */
+        public int getCode() {
+            return code;
+        }
     }
 }
@@ -1,7 +1,11 @@
 package com.brinybeach.tinywebserver;
 
 import java.io.*;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -12,15 +16,22 @@ import java.util.*;
 public class HttpResponse {
     private static final String defaultVersion = "HTTP/1.1";
 
+    // Smaller content is copied in after the headers so that they go out in one write
+    private static final long transferThreshold = 16384;
+
     private String version;
     private int code = -1;
     private String reason;
     private Map<String, String> headers = new HashMap<String, String>();
 
     private InputStream contentInputStream;
+    private ByteBuffer contentBuffer;
+    private HttpContentWriter contentWriter;
     private long contentLength = -1;
     private String contentType;
     private String contentHash;
+    private boolean contentHashWeak;
+    private long lastModified;
 
 
     // Force a code to be used when creating a response
@@ -68,6 +79,32 @@ public class HttpResponse {
         setContentWithInputStream(inputStream, length, contentType);
     }
 
+    /**
+     * Create a HttpResponse populated from the buffer
+     *
+     * @param code the status Code
+     * @param buffer the content bytes from its position to its limit, a heap or a direct buffer
+     * @param contentType the content mimi-type
+     */
+    public HttpResponse(int code, ByteBuffer buffer, String contentType) {
+        setVersion(defaultVersion);
+        setCode(code);
+        setContentWithBuffer(buffer, contentType);
+    }
+
+    /**
+     * Create a HttpResponse whose content is written as it is sent
+     *
+     * @param code the status Code
+     * @param contentWriter writes the content, its length doesn't have to be known
+     * @param contentType the content mimi-type
+     */
+    public HttpResponse(int code, HttpContentWriter contentWriter, String contentType) {
+        setVersion(defaultVersion);
+        setCode(code);
+        setContentWithWriter(contentWriter, contentType);
+    }
+
     /**
      * @return the HTTP version HTTP/1.0 or HTTP/1.1
      */
@@ -131,6 +168,14 @@ public class HttpResponse {
         this.headers.put(name, value);
     }
 
+    /**
+     * Remove a header from the response
+     * @param name the field name
+     */
+    public void removeHeader(String name) {
+        this.headers.remove(name);
+    }
+
     /**
      * @return the hash generated by the HttpFileManager
      */
@@ -142,7 +187,37 @@ public class HttpResponse {
      * @param contentHash a hash generated by the HttpFileManager
      */
     public void setContentHash(String contentHash) {
+        setContentHash(contentHash, false);
+    }
+
+    /**
+     * @param contentHash a hash generated by the HttpFileManager
+     * @param weak true if the hash isn't made from the content and is sent as a weak ETag
+     */
+    public void setContentHash(String contentHash, boolean weak) {
         this.contentHash = contentHash;
+        this.contentHashWeak = weak;
+    }
+
+    /**
+     * @return true if the hash is sent as a weak ETag
+     */
+    public boolean isContentHashWeak() {
+        return contentHashWeak;
+    }
+
+    /**
+     * @return the modification time of the content in ms, 0 if it isn't a file
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @param lastModified the modification time from the HttpFileManager
+     */
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
     }
 
     /**
@@ -157,6 +232,35 @@ public class HttpResponse {
      */
     public void setContentInputStream(InputStream contentInputStream) {
         this.contentInputStream = contentInputStream;
+        this.contentBuffer = null;
+        this.contentWriter = null;
+    }
+
+    /**
+     * @return the writer of the content body or null if the content is already there
+     */
+    public HttpContentWriter getContentWriter() {
+        return contentWriter;
+    }
+
+    /**
+     * @return the buffer with the content body or null if the content is in a stream
+     */
+    public ByteBuffer getContentBuffer() {
+        return contentBuffer;
+    }
+
+    /**
+     * File content, like the content set by setContentWithUri, can be sent
+     * straight from the file to a socket with FileChannel.transferTo.
+     *
+     * @return the FileChannel of the content or null if it isn't a file worth transferring
+     */
+    FileChannel getContentChannel() {
+        if (contentInputStream instanceof FileInputStream && contentLength >= transferThreshold) {
+            return ((FileInputStream) contentInputStream).getChannel();
+        }
+        return null;
     }
 
     /**
@@ -189,17 +293,26 @@ public class HttpResponse {
     }
 
     /**
-     * Set the content based on a local filename.
+     * Set the content based on a local filename. Small files come from
+     * memory, bigger ones are read from the file as they are sent.
      * @param uri the filename of the local file
      * @throws FileNotFoundException if the file isn't found
      */
     public void setContentWithUri(String uri) throws FileNotFoundException {
         HttpFileManager fileManager = HttpFileManager.getInstance();
 
-        setContentInputStream(fileManager.getInputStream(uri));
-        setContentLength(fileManager.getLength(uri));
-        setContentType(fileManager.getContentType(uri));
-        setContentHash(fileManager.getHash(uri));
+        HttpFileInfo fileInfo = fileManager.getFileInfo(uri);
+
+        ByteBuffer buffer = fileManager.getContentBuffer(uri);
+        if (buffer != null) {
+            setContentWithBuffer(buffer, fileInfo.getContentType());
+        } else {
+            setContentInputStream(fileManager.getInputStream(uri));
+            setContentLength(fileInfo.getLength());
+            setContentType(fileInfo.getContentType());
+        }
+        setContentHash(fileInfo.getHash(), fileInfo.isWeakHash());
+        setLastModified(fileInfo.getLastModified());
     }
 
     /**
@@ -214,10 +327,45 @@ public class HttpResponse {
         setContentLength(length);
         setContentType(contentType);
         setContentHash(null);
+        setLastModified(0);
     }
 
     /**
-     * Set the content based on a local directory listing.
+     * Set the content based on a buffer. The buffer is never changed, so one
+     * that is cached, like a direct buffer with the bytes of a file, can be
+     * shared by any number of responses at the same time.
+     *
+     * @param buffer the content bytes from its position to its limit
+     * @param contentType the mime-type using HttpFileManager
+     */
+    public void setContentWithBuffer(ByteBuffer buffer, String contentType) {
+        setContentInputStream(null);
+        this.contentBuffer = buffer;
+        setContentLength(buffer.remaining());
+        setContentType(contentType);
+        setContentHash(null);
+        setLastModified(0);
+    }
+
+    /**
+     * Set the content to be written as it is sent, for content whose
+     * length isn't known up front. The HttpResponseRules send it chunked.
+     *
+     * @param contentWriter writes the content
+     * @param contentType the mime-type using HttpFileManager
+     */
+    public void setContentWithWriter(HttpContentWriter contentWriter, String contentType) {
+        setContentInputStream(null);
+        this.contentWriter = contentWriter;
+        setContentLength(-1);
+        setContentType(contentType);
+        setContentHash(null);
+        setLastModified(0);
+    }
+
+    /**
+     * Set the content based on a local directory listing. The listing
+     * is written as the directory is read rather than built up first.
      * @param uri the directory name
      * @throws FileNotFoundException if an error
      */
@@ -227,48 +375,51 @@ public class HttpResponse {
             uri = uri.substring(0, uri.length()-1);
         }
 
-        HttpFileManager fileManager = HttpFileManager.getInstance();
-        String path = fileManager.getAbsolutePath(uri);
-
-        StringBuilder stringBuilder = new StringBuilder();
-
-        stringBuilder.append("<!DOCTYPE html>\n");
-        stringBuilder.append("<html lang=\"en\">\n");
-        stringBuilder.append("<head>\n");
-        stringBuilder.append("    <title>"+uri+"</title>\n");
-        stringBuilder.append("</head>\n");
-        stringBuilder.append("<body>\n");
-        stringBuilder.append("  <h3>"+uri+"</h3>\n");
-        stringBuilder.append("<p>");
-
-        File directory = new File(path);
-        for(File file : directory.listFiles()){
-            if(file.isDirectory()) {
-                stringBuilder.append("<strong>");
-            }
-
-            String fullName = uri+"/"+file.getName();
-
-            stringBuilder.append("<a href=\""+fullName+"\">");
-            stringBuilder.append(file.getName());
-            stringBuilder.append("</a>");
+        final String directoryUri = uri;
 
-            if(file.isDirectory()) {
-                stringBuilder.append("</strong>");
+        HttpFileManager fileManager = HttpFileManager.getInstance();
+        final String path = fileManager.getAbsolutePath(uri);
+
+        setContentWithWriter(new HttpContentWriter() {
+            @Override
+            public void write(OutputStream outputStream) throws IOException {
+                Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+
+                writer.write("<!DOCTYPE html>\n");
+                writer.write("<html lang=\"en\">\n");
+                writer.write("<head>\n");
+                writer.write("    <title>"+directoryUri+"</title>\n");
+                writer.write("</head>\n");
+                writer.write("<body>\n");
+                writer.write("  <h3>"+directoryUri+"</h3>\n");
+                writer.write("<p>");
+
+                File directory = new File(path);
+                for(File file : directory.listFiles()){
+                    if(file.isDirectory()) {
+                        writer.write("<strong>");
+                    }
+
+                    String fullName = directoryUri+"/"+file.getName();
+
+                    writer.write("<a href=\""+fullName+"\">");
+                    writer.write(file.getName());
+                    writer.write("</a>");
+
+                    if(file.isDirectory()) {
+                        writer.write("</strong>");
+                    }
+
+                    writer.write("<br />");
+                }
+
+                writer.write("</p>");
+                writer.write("</body>\n");
+                writer.write("</html>");
+
+                writer.flush();
             }
-
-            stringBuilder.append("<br />");
-        }
-
-        stringBuilder.append("</p>");
-        stringBuilder.append("</body>\n");
-        stringBuilder.append("</html>");
-
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(stringBuilder.toString().getBytes());
-
-        setContentInputStream(inputStream);
-        setContentLength(stringBuilder.length());
-        setContentType(fileManager.getContentType(".html"));
+        }, fileManager.getContentType(".html"));
     }
 
     /**
@@ -282,9 +433,13 @@ public class HttpResponse {
         headers.clear();
 
         contentInputStream = null;
+        contentBuffer = null;
+        contentWriter = null;
         contentLength = -1;
         contentType = null;
         contentHash = null;
+        contentHashWeak = false;
+        lastModified = 0;
     }
 
     /**
@@ -293,27 +448,101 @@ public class HttpResponse {
      * @throws IOException if it can't
      */
     public void write(OutputStream outputStream) throws IOException {
-        BufferedOutputStream out = new BufferedOutputStream(outputStream);
-
-        out.write(version.getBytes());
-        out.write(' ');
-        out.write(Integer.toString(code).getBytes());
-        out.write(' ');
-        out.write(reason.getBytes());
-        out.write("\r\n".getBytes());
-
-        for (String name : headers.keySet()) {
-            String value = headers.get(name);
-
-            out.write(name.getBytes());
-            out.write(": ".getBytes());
-            out.write(value.getBytes());
-            out.write("\r\n".getBytes());
+        write(outputStream, true);
+    }
+
+    /**
+     * Write the attributes to the output stream formatted as per the HTTP RFC spec.
+     *
+     * A BufferedOutputStream is written to as it is and is only flushed if asked
+     * so that the responses to pipelined requests can go out together.
+     *
+     * @param outputStream the OutputStream to write to
+     * @param flush false to leave the response in a BufferedOutputStream
+     * @throws IOException if it can't
+     */
+    public void write(OutputStream outputStream, boolean flush) throws IOException {
+        write(outputStream, null, flush);
+    }
+
+    /**
+     * Write the attributes to the output stream formatted as per the HTTP RFC spec.
+     *
+     * With a channel the head and the content go out in a single gathering write
+     * when the response is flushed, big files excepted. Their content is sent from
+     * the file to the channel with FileChannel.transferTo after the head so that
+     * it never passes through the heap.
+     *
+     * @param outputStream the OutputStream to write to
+     * @param channel the channel underneath the OutputStream or null if there isn't one
+     * @param flush false to leave the response in a BufferedOutputStream
+     * @throws IOException if it can't
+     */
+    public void write(OutputStream outputStream, WritableByteChannel channel, boolean flush) throws IOException {
+        write(outputStream, channel, flush, new HttpHeadEncoder(256));
+    }
+
+    /**
+     * Write the response with the head encoder of the connection so that
+     * its buffer is reused. A BufferedOutputStream or a ByteArrayOutputStream
+     * is written to as it is, anything else is wrapped in a BufferedOutputStream.
+     *
+     * Content that is smaller than the transfer threshold is read into the
+     * encoder buffer right after the head, and a content buffer is gathered
+     * with it, so a small response always goes out in one write.
+     *
+     * @param encoder the head encoder of the connection
+     */
+    void write(OutputStream outputStream, WritableByteChannel channel, boolean flush, HttpHeadEncoder encoder)
+        throws IOException {
+        boolean buffered = (outputStream instanceof BufferedOutputStream || outputStream instanceof ByteArrayOutputStream);
+        OutputStream out = buffered ? outputStream : new BufferedOutputStream(outputStream);
+
+        encoder.encode(version, code, reason, headers);
+
+        FileChannel fileChannel = (channel != null) ? getContentChannel() : null;
+        ByteBuffer body = (contentBuffer != null) ? contentBuffer.duplicate() : null;
+        boolean streamed = false;
+
+        if (body == null && fileChannel == null && contentInputStream != null && contentLength > 0) {
+            if (contentLength < transferThreshold) {
+                try {
+                    encoder.append(contentInputStream, (int) contentLength);
+                } finally {
+                    contentInputStream.close();
+                }
+            } else {
+                streamed = true;
+            }
         }
 
-        out.write("\r\n".getBytes());
+        if (contentWriter != null) {
+            encoder.writeTo(out);
+            writeContent(out);
+
+            if (flush || !buffered) {
+                out.flush();
+            }
+            return;
+        }
 
-        if (contentInputStream != null && contentLength > 0) {
+        if (flush && channel instanceof GatheringByteChannel) {
+            // Anything left from earlier pipelined responses goes first
+            out.flush();
+            writeFully((GatheringByteChannel) channel, encoder.toByteBuffer(), body);
+        } else {
+            encoder.writeTo(out);
+            if (body != null) writeBuffer(out, body);
+        }
+
+        if (fileChannel != null) {
+            out.flush();
+            try {
+                transferContent(fileChannel, channel);
+            } finally {
+                contentInputStream.close();
+            }
+        } else if (streamed) {
             BufferedInputStream inputStream = new BufferedInputStream(contentInputStream);
 
             byte buffer[] = new byte[1024];
@@ -333,11 +562,108 @@ public class HttpResponse {
             inputStream.close();
         }
 
-        out.flush();
+        if (flush || !buffered) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Write the status line and the headers, without the content, in one write.
+     *
+     * @param out the OutputStream to write to
+     * @param encoder the head encoder of the connection
+     * @throws IOException if it can't
+     */
+    void writeHead(OutputStream out, HttpHeadEncoder encoder) throws IOException {
+        encoder.encode(version, code, reason, headers);
+        encoder.writeTo(out);
+    }
+
+    /**
+     * Let the content writer write the content, chunked if the rules asked
+     * for it. Otherwise the client reads up to the close of the connection.
+     */
+    private void writeContent(OutputStream out) throws IOException {
+        if ("chunked".equals(headers.get("Transfer-Encoding"))) {
+            HttpChunkedOutputStream chunkedStream = new HttpChunkedOutputStream(out);
+            contentWriter.write(chunkedStream);
+            chunkedStream.close();
+        } else {
+            // The writer mustn't close the connection
+            contentWriter.write(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    out.write(bytes, offset, length);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Write the head and the body, which may be null, with as few writes as the channel allows.
+     */
+    private static void writeFully(GatheringByteChannel channel, ByteBuffer head, ByteBuffer body) throws IOException {
+        if (body == null) {
+            while (head.hasRemaining()) channel.write(head);
+            return;
+        }
+
+        ByteBuffer[] buffers = { head, body };
+        while (body.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    /**
+     * Copy a heap buffer in one write, a direct buffer has to be copied out a piece at a time.
+     */
+    private static void writeBuffer(OutputStream out, ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+
+        byte[] bytes = new byte[(int) Math.min(buffer.remaining(), 8192)];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), bytes.length);
+            buffer.get(bytes, 0, length);
+            out.write(bytes, 0, length);
+        }
+    }
+
+    /**
+     * Send contentLength bytes of the file from its current position.
+     * A blocking channel takes everything it is given, so nothing
+     * being transferred means that the file is shorter than it was.
+     */
+    private void transferContent(FileChannel fileChannel, WritableByteChannel channel) throws IOException {
+        long position = fileChannel.position();
+        long end = position + contentLength;
+
+        while (position < end) {
+            long transferred = fileChannel.transferTo(position, end - position, channel);
+            if (transferred <= 0) {
+                throw new IOException("The file is shorter than its Content-Length");
+            }
+            position += transferred;
+        }
+    }
+
+    /**
+     * @param code the HTTP status code
+     * @return the reason phrase for the code or null if it isn't known
+     */
+    static String reasonPhrase(int code) {
+        return reasonMap.get(code);
     }
 
     private static final Map<Integer, String> reasonMap = new HashMap<Integer, String>();
-    {
+    static {
         reasonMap.put(100, "Continue");
         reasonMap.put(101, "Switching Protocols");
         reasonMap.put(200, "OK");
@@ -373,6 +699,7 @@ public class HttpResponse {
         reasonMap.put(416, "Range Not Satisfiable");
         reasonMap.put(417, "Expectation Failed");
         reasonMap.put(426, "Upgrade Required");
+        reasonMap.put(431, "Request Header Fields Too Large");
         reasonMap.put(500, "Internal Server Error");
         reasonMap.put(501, "Not Implemented");
         reasonMap.put(502, "Bad Gateway");
@@ -1,9 +1,7 @@
 package com.brinybeach.tinywebserver;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Locale;
-import java.util.TimeZone;
+import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Implements the rules found in the HTTP RFC specification.
@@ -25,6 +23,31 @@ public class HttpResponseRules {
      * @param request the HttpRequest used by the rules
      */
     public static void apply(HttpResponse response, HttpRequest request) {
+        apply(response, request, 1);
+    }
+
+    /**
+     * Apply the HTTP rules to the response of a request that arrived
+     * on a connection that may already have served other requests.
+     *
+     * @param response the HttpResponse to be modified
+     * @param request the HttpRequest used by the rules
+     * @param requestCount the number of this request on its connection, starting at 1
+     */
+    public static void apply(HttpResponse response, HttpRequest request, int requestCount) {
+        apply(response, request, requestCount, HttpServerConfig.getInstance());
+    }
+
+    /**
+     * Apply the HTTP rules with the keep-alive policy of the server
+     * the request arrived on.
+     *
+     * @param response the HttpResponse to be modified
+     * @param request the HttpRequest used by the rules
+     * @param requestCount the number of this request on its connection, starting at 1
+     * @param config the config of the server, has keepalivetimeout and keepalivemax
+     */
+    public static void apply(HttpResponse response, HttpRequest request, int requestCount, HttpServerConfig config) {
         String value;
 
         //
@@ -37,20 +60,11 @@ public class HttpResponseRules {
         // Cache-Control ; Section 14.9
         // don't support caching so return a "no-cache"
 
-        // Connection ; Section 14.10
-        // Must support this and handle and send a "close" if the client requests a close.
-        // Must send a close if the request Connection header is missing or is not Keep-Alive.
-        // Should send a Keep-Alive if the request contained a keep alive.
-        value = request.getHeader("Connection");
-        if ("close".equalsIgnoreCase(request.getHeader("Connection"))) {
-            response.putHeader("Connection", "close");
-        }
-        if (value == null) {
-            response.putHeader("Connection", "close");
-        }
-        if ("Keep-Alive".equalsIgnoreCase(value)) {
-            response.putHeader("Connection", "Keep-Alive");
-        }
+        // Connection ; RFC 7230 Section 6.3
+        // HTTP/1.1 connections are persistent unless the client sends a "close".
+        // HTTP/1.0 connections are closed unless the client sends a "keep-alive".
+        // The connection is also closed once it has served keepalivemax requests.
+        applyConnection(response, request, requestCount, config);
 
         // Date ; Section 14.18
         // must support this and send a HTTP date in response
@@ -72,49 +86,74 @@ public class HttpResponseRules {
 
         // Expect ; Section 14.20
         // Always respond with a 417 (Expectation Failed)
-        if (request.existsHeader("Expect")) {
-            setErrorCode(417, response, request);
+        if (request.existsHeader(HttpHeaderName.EXPECT)) {
+            setErrorCode(417, response, request, requestCount, config);
             return;
         }
 
         // Host ; Section 14.23
         // Must respond with a 400 (Bad Request) to any HTTP/1.1
         // request message which lacks a Host header field.
-        if ("HTTP/1.1".equals(request.getVersion()) && !request.existsHeader("Host")) {
-            setErrorCode(400, response, request);
+        if ("HTTP/1.1".equals(request.getVersion()) && !request.existsHeader(HttpHeaderName.HOST)) {
+            setErrorCode(400, response, request, requestCount, config);
             return;
         }
 
         // If-Match ; Section 14.24
         // Must return a 412 (Precondition Failed) response if
         // this ETag check fails. This means that responses must
-        // include ETags like Etag: "686897696a7c876b7e1".
-        value = request.getHeader("If-Match");
-        if (value != null && !value.equalsIgnoreCase("\""+response.getContentHash()+"\"")) {
-            setErrorCode(412, response, request);
+        // include ETags like Etag: "686897696a7c876b7e1". The
+        // comparison is strong, a weak ETag never matches.
+        value = request.getHeader(HttpHeaderName.IF_MATCH);
+        if (value != null && (response.isContentHashWeak() || !value.equalsIgnoreCase("\""+response.getContentHash()+"\""))) {
+            setErrorCode(412, response, request, requestCount, config);
             return;
         }
 
+        // If-Unmodified-Since ; RFC 7232 Section 3.4
+        // Only evaluated when there is no If-Match. Must return a 412
+        // (Precondition Failed) if the file changed after the date.
+        long lastModified = response.getLastModified();
+        if (lastModified > 0 && !request.existsHeader(HttpHeaderName.IF_MATCH)) {
+            long since = HttpDate.parse(request.getHeader(HttpHeaderName.IF_UNMODIFIED_SINCE));
+            if (since >= 0 && lastModified / 1000 > since / 1000) {
+                setErrorCode(412, response, request, requestCount, config);
+                return;
+            }
+        }
+
         // If-None-Match ; Section 14.26
         // Support this. GET or HEAD, the server SHOULD respond
         // with a 304 (Not Modified). For all other request methods,
         // the server MUST respond with 412 (Precondition Failed).
-        value = request.getHeader("If-None-Match");
-        if (value != null && value.equalsIgnoreCase("\""+response.getContentHash()+"\"")) {
-            String method = request.getMethod();
+        // The comparison is weak, W/"x" matches "x" and the other way round.
+        String method = request.getMethod();
+        value = request.getHeader(HttpHeaderName.IF_NONE_MATCH);
+        if (value != null && matchesWeakly(value, response.getContentHash())) {
             if ("GET".equals(method) || "HEAD".equals(method)) {
-                response.setCode(304);
+                setNotModified(response);
             } else {
-                setErrorCode(412, response, request);
+                setErrorCode(412, response, request, requestCount, config);
                 return;
             }
         }
 
+        // If-Modified-Since ; RFC 7232 Section 3.3
+        // Only evaluated for a GET or HEAD without If-None-Match, which
+        // takes precedence. Respond with a 304 (Not Modified) if the file
+        // hasn't changed since the date. Dates in the future are ignored.
+        if (lastModified > 0 && value == null && response.getCode() == 200 && ("GET".equals(method) || "HEAD".equals(method))) {
+            long since = HttpDate.parse(request.getHeader(HttpHeaderName.IF_MODIFIED_SINCE));
+            if (since >= 0 && since <= System.currentTimeMillis() && lastModified / 1000 <= since / 1000) {
+                setNotModified(response);
+            }
+        }
+
         // Range ; Section 14.35
         // Don't support this and return a response with a status
         // of 416 (Requested range not satisfiable).
-        if (request.existsHeader("Range")) {
-            setErrorCode(416, response, request);
+        if (request.existsHeader(HttpHeaderName.RANGE)) {
+            setErrorCode(416, response, request, requestCount, config);
             return;
         }
 
@@ -127,7 +166,13 @@ public class HttpResponseRules {
         // Attach this to outgoing responses
         value = response.getContentHash();
         if (value != null) {
-            response.putHeader("ETag", "\""+value+"\"");
+            response.putHeader("ETag", (response.isContentHashWeak() ? "W/\"" : "\"")+value+"\"");
+        }
+
+        // Last-Modified ; Section 14.29
+        // Attach this to files, never later than the Date
+        if (lastModified > 0) {
+            response.putHeader("Last-Modified", HttpDate.format(Math.min(lastModified, System.currentTimeMillis())));
         }
 
         // Server ; Section 14.38
@@ -144,8 +189,8 @@ public class HttpResponseRules {
         // Don't support zip or other encodings. If the content-coding
         // of an entity in a request message is not acceptable then respond
         // with a 415 (Unsupported Media Type).
-        if (request.existsHeader("Content-Encoding")) {
-            setErrorCode(415, response, request);
+        if (request.existsHeader(HttpHeaderName.CONTENT_ENCODING)) {
+            setErrorCode(415, response, request, requestCount, config);
             return;
         }
 
@@ -158,6 +203,19 @@ public class HttpResponseRules {
             response.putHeader("Content-Length", Long.toString(response.getContentLength()));
         }
 
+        // Transfer-Encoding ; RFC 7230 Section 3.3.1
+        // Content that is written as it is sent has no length up front, so a
+        // HTTP/1.1 client gets it chunked. A HTTP/1.0 client doesn't know about
+        // chunks and reads the content up to the close of the connection.
+        if (response.getContentWriter() != null) {
+            if ("HTTP/1.1".equals(request.getVersion())) {
+                response.putHeader("Transfer-Encoding", "chunked");
+            } else {
+                response.putHeader("Connection", "close");
+                response.removeHeader("Keep-Alive");
+            }
+        }
+
         // Content-Type ; Section 14.17
         // The Content-Type entity-header field indicates the media type of the
         // entity-body sent to the recipient or, in the case of the HEAD method,
@@ -167,44 +225,82 @@ public class HttpResponseRules {
         }
     }
 
-    private static void setErrorCode(int code, HttpResponse response, HttpRequest request) {
+    private static void setErrorCode(int code, HttpResponse response, HttpRequest request, int requestCount,
+                                     HttpServerConfig config) {
         response.clear();
 
         response.setCode(code);
         response.putHeader("Date", getTimeStamp());
         response.putHeader("Server", "TinyWebServer/1.0");
 
-        // Connection ; Section 14.10
-        // Must support this and handle and send a "close" if the client requests a close.
-        // Must send a close if the request Connection header is missing or is not Keep-Alive.
-        // Should send a Keep-Alive if the request contained a keep alive.
-        String value = request.getHeader("Connection");
-        if ("close".equalsIgnoreCase(request.getHeader("Connection"))) {
-            response.putHeader("Connection", "close");
+        applyConnection(response, request, requestCount, config);
+    }
+
+    /**
+     * A 304 (Not Modified) has no content, the client already has it.
+     */
+    private static void setNotModified(HttpResponse response) {
+        InputStream inputStream = response.getContentInputStream();
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException ignore) {}
         }
-        if (value == null) {
+
+        response.setCode(304);
+        response.setContentInputStream(null);
+        response.setContentLength(-1);
+    }
+
+    /**
+     * @param value an entity tag from a request, weak or not
+     * @return true if it is the hash, ignoring the weak indicator
+     */
+    private static boolean matchesWeakly(String value, String hash) {
+        String tag = value.startsWith("W/") ? value.substring(2) : value;
+        return tag.equalsIgnoreCase("\""+hash+"\"");
+    }
+
+    /**
+     * Decide if the connection stays open after this response and
+     * set the Connection and Keep-Alive headers to match.
+     */
+    private static void applyConnection(HttpResponse response, HttpRequest request, int requestCount,
+                                        HttpServerConfig config) {
+        String version = request.getVersion();
+
+        boolean keepAlive;
+        if (request.hasHeaderToken(HttpHeaderName.CONNECTION, "close")) {
+            keepAlive = false;
+        } else if ("HTTP/1.1".equals(version)) {
+            keepAlive = true;
+        } else {
+            keepAlive = "HTTP/1.0".equals(version) && request.hasHeaderToken(HttpHeaderName.CONNECTION, "keep-alive");
+        }
+
+        int keepAliveMax = config.getKeepalivemax();
+        if (keepAliveMax > 0 && requestCount >= keepAliveMax) {
+            keepAlive = false;
+        }
+
+        if (!keepAlive) {
             response.putHeader("Connection", "close");
+            return;
         }
-        if ("Keep-Alive".equalsIgnoreCase(value)) {
-            response.putHeader("Connection", "Keep-Alive");
+
+        response.putHeader("Connection", "Keep-Alive");
+
+        if (keepAliveMax > 0) {
+            response.putHeader("Keep-Alive", config.getKeepaliveparameter() + ", max=" + (keepAliveMax - requestCount));
+        } else {
+            response.putHeader("Keep-Alive", config.getKeepaliveparameter());
         }
     }
 
+    /**
+     * @return the current time formatted for the Date header
+     */
     public static String getTimeStamp() {
-        SimpleDateFormat dateFormatter = threadDateFormat.get();
-        String timeStamp = dateFormatter.format(Calendar.getInstance().getTime());
-        return timeStamp;
+        return HttpDate.now();
     }
-
-    // Thread local variable containing a SimpleDateFormat
-    private static final ThreadLocal<SimpleDateFormat> threadDateFormat =
-            new ThreadLocal<SimpleDateFormat>() {
-                @Override protected SimpleDateFormat initialValue() {
-                    SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-                    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-                    return dateFormat;
-                }
-            };
-
 }
@@ -0,0 +1,173 @@
+package com.brinybeach.tinywebserver;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Accepts connections on the specified port with a non-blocking
+ * ServerSocketChannel and spreads them over a small number of
+ * HttpEventLoop threads. The event loops do all of the socket I/O
+ * and a pool of worker threads only parses and handles requests,
+ * so open connections that are waiting for a request cost no threads.
+ *
+ * Selected with engine=nio in the server.properties file.
+ *
+ * Default settings are:
+ *
+ * port=8080
+ * poolsize=20
+ * timeout=5000
+ * keepalivetimeout=5000
+ * eventloops=2
+ * headertimeout=10000
+ * bodytimeout=10000
+ * minbodyrate=500
+ * handlertimeout=30000
+ *
+ * Connections that take longer than headertimeout ms to send a request
+ * head, or send the body slower than minbodyrate bytes per second after
+ * bodytimeout ms, are answered with a 408 and closed by their event loop.
+ * A handler that takes longer than handlertimeout ms is interrupted and
+ * the client gets a 503. Each event loop keeps the timeouts of its
+ * connections in its own HttpTimerWheel.
+ *
+ * author: bryantbunderson
+ */
+public class HttpSelectorServerRunner implements Runnable {
+    private static final Logger logger = LogManager.getLogger(HttpSelectorServerRunner.class);
+
+    private int port;
+    private int poolsize;
+    private int timeout;
+    private int keepalivetimeout;
+    private int eventloops;
+    private HttpServerConfig config;
+
+    private AtomicBoolean runningState = new AtomicBoolean(false);
+
+    /**
+     * A new HttpSelectorServerRunner
+     */
+    public HttpSelectorServerRunner() {
+        this(HttpServerConfig.getInstance());
+    }
+
+    /**
+     * A new HttpSelectorServerRunner with settings other than the server.properties file
+     *
+     * @param config the server settings
+     */
+    public HttpSelectorServerRunner(HttpServerConfig config) {
+        this.port = config.getPort();
+        this.poolsize = config.getPoolsize();
+        this.timeout = config.getTimeout();
+        this.keepalivetimeout = config.getKeepalivetimeout();
+        this.eventloops = Math.max(1, config.getEventloops());
+        this.config = config;
+    }
+
+    public boolean isRunning() {
+        return runningState.get();
+    }
+
+    /**
+     * This method accepts connection from Web clients until it is interrupted.
+     */
+    @Override
+    public void run() {
+        logger.info(String.format("Worker pool size is %d", poolsize));
+        logger.info(String.format("Event loop count is %d", eventloops));
+        logger.info(String.format("Connection timeout is %d", timeout));
+        logger.info(String.format("Keep-alive timeout is %d", keepalivetimeout));
+
+        ExecutorService workers = Executors.newFixedThreadPool(poolsize);
+        HttpEventLoop[] loops = new HttpEventLoop[eventloops];
+        Thread[] loopThreads = new Thread[eventloops];
+
+        ServerSocketChannel serverChannel = null;
+        Selector acceptSelector = null;
+
+        runningState.set(true);
+
+        // Watch the root and hash the files while the server is up
+        HttpFileManager fileManager = HttpFileManager.getInstance();
+        fileManager.start();
+
+        try {
+            for (int i = 0; i < eventloops; i++) {
+                loops[i] = new HttpEventLoop(workers, config);
+                loopThreads[i] = new Thread(loops[i], "http-event-loop-" + i);
+                loopThreads[i].start();
+            }
+
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+
+            acceptSelector = Selector.open();
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+            logger.info(String.format("Server started on port %d", port));
+
+            // Wait for client connections on the port and hand them to
+            // the event loops round robin. An interrupt wakes up select().
+            int next = 0;
+            while (!Thread.interrupted()) {
+                acceptSelector.select(2000);
+                acceptSelector.selectedKeys().clear();
+
+                SocketChannel clientChannel;
+                while ((clientChannel = serverChannel.accept()) != null) {
+                    loops[next].register(clientChannel);
+                    next = (next + 1) % eventloops;
+                }
+            }
+
+            serverChannel.close();
+            serverChannel = null;
+
+            logger.info("Server shutdown");
+
+        } catch (IOException e) {
+            logger.error(e);
+        } finally {
+            if (serverChannel != null) {
+                logger.error("The server socket wasn't closed properly!");
+                try { serverChannel.close(); } catch (Exception ignore) {}
+            }
+            if (acceptSelector != null) {
+                try { acceptSelector.close(); } catch (Exception ignore) {}
+            }
+
+            for (Thread loopThread : loopThreads) {
+                if (loopThread != null) loopThread.interrupt();
+            }
+
+            try {
+                for (Thread loopThread : loopThreads) {
+                    if (loopThread != null) loopThread.join(5000);
+                }
+                workers.shutdownNow();
+                workers.awaitTermination(5000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                logger.error("Client connections did not close down properly!");
+            }
+
+            fileManager.stop();
+        }
+
+        runningState.set(false);
+    }
+
+}
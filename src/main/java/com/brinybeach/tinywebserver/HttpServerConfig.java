@@ -19,23 +19,89 @@ public class HttpServerConfig {
     private final int poolsize;
     private final int timeout;
     private final String directory;
+    private final String engine;
+    private final int eventloops;
+    private final String executor;
+    private final int keepalivetimeout;
+    private final int keepalivemax;
+    private final String keepaliveparameter;
+    private final int queuedepth;
+    private final int admissiontarget;
+    private final int admissioninterval;
+    private final int acceptors;
+    private final boolean reuseport;
+    private final int maxbodybuffer;
+    private final int maxrequestline;
+    private final int maxheadersize;
+    private final int maxheaderbytes;
+    private final int maxheadercount;
+    private final int headertimeout;
+    private final int bodytimeout;
+    private final int minbodyrate;
+    private final int handlertimeout;
+    private final long filecachesize;
+    private final long filecachemaxfile;
+    private final boolean filecachedirect;
+    private final int statcachettl;
+    private final long etagmaxsync;
+    private final int negativecachesize;
 
     public static HttpServerConfig getInstance() {
         return instance;
     }
 
     private HttpServerConfig() {
+        this(loadProperties());
+    }
+
+    /**
+     * Create a config from properties other than the server.properties
+     * file. Used by the benchmarks to compare different settings.
+     *
+     * @param serverProperties the settings, missing ones get their defaults
+     */
+    public HttpServerConfig(Properties serverProperties) {
+        port = Integer.parseInt(serverProperties.getProperty("port", "8080"));
+        poolsize = Integer.parseInt(serverProperties.getProperty("poolsize", "20"));
+        timeout = Integer.parseInt(serverProperties.getProperty("timeout", "5000"));
+        directory = serverProperties.getProperty("directory", "www");
+        engine = serverProperties.getProperty("engine", "blocking");
+        eventloops = Integer.parseInt(serverProperties.getProperty("eventloops", "2"));
+        executor = serverProperties.getProperty("executor", "fixed");
+        keepalivetimeout = Integer.parseInt(serverProperties.getProperty("keepalivetimeout", Integer.toString(timeout)));
+        keepalivemax = Integer.parseInt(serverProperties.getProperty("keepalivemax", "100"));
+        // Whole seconds rounded up, so a timeout under a second isn't sent as 0
+        keepaliveparameter = "timeout=" + Math.max(1, (keepalivetimeout + 999) / 1000);
+        queuedepth = Integer.parseInt(serverProperties.getProperty("queuedepth", "100"));
+        admissiontarget = Integer.parseInt(serverProperties.getProperty("admissiontarget", "5"));
+        admissioninterval = Integer.parseInt(serverProperties.getProperty("admissioninterval", "100"));
+        acceptors = Integer.parseInt(serverProperties.getProperty("acceptors", "1"));
+        reuseport = Boolean.parseBoolean(serverProperties.getProperty("reuseport", "false"));
+        maxbodybuffer = Integer.parseInt(serverProperties.getProperty("maxbodybuffer", "1048576"));
+        maxrequestline = Integer.parseInt(serverProperties.getProperty("maxrequestline", "8192"));
+        maxheadersize = Integer.parseInt(serverProperties.getProperty("maxheadersize", "8192"));
+        maxheaderbytes = Integer.parseInt(serverProperties.getProperty("maxheaderbytes", "65536"));
+        maxheadercount = Integer.parseInt(serverProperties.getProperty("maxheadercount", "100"));
+        headertimeout = Integer.parseInt(serverProperties.getProperty("headertimeout", "10000"));
+        bodytimeout = Integer.parseInt(serverProperties.getProperty("bodytimeout", "10000"));
+        minbodyrate = Integer.parseInt(serverProperties.getProperty("minbodyrate", "500"));
+        handlertimeout = Integer.parseInt(serverProperties.getProperty("handlertimeout", "30000"));
+        filecachesize = Long.parseLong(serverProperties.getProperty("filecachesize", "33554432"));
+        filecachemaxfile = Long.parseLong(serverProperties.getProperty("filecachemaxfile", "65536"));
+        filecachedirect = Boolean.parseBoolean(serverProperties.getProperty("filecachedirect", "true"));
+        statcachettl = Integer.parseInt(serverProperties.getProperty("statcachettl", "60000"));
+        etagmaxsync = Long.parseLong(serverProperties.getProperty("etagmaxsync", "1048576"));
+        negativecachesize = Integer.parseInt(serverProperties.getProperty("negativecachesize", "10000"));
+    }
+
+    private static Properties loadProperties() {
         Properties serverProperties = new Properties();
         try {
             serverProperties.load(new FileInputStream("server.properties"));
         } catch (Exception e) {
             logger.warn("Bad or missing server.properties file.");
         }
-
-        port = Integer.parseInt(serverProperties.getProperty("port", "8080"));
-        poolsize = Integer.parseInt(serverProperties.getProperty("poolsize", "20"));
-        timeout = Integer.parseInt(serverProperties.getProperty("timeout", "5000"));
-        directory = serverProperties.getProperty("directory", "www");
+        return serverProperties;
     }
 
     public int getPort() {
@@ -53,4 +119,183 @@ public class HttpServerConfig {
     public String getDirectory() {
         return directory;
     }
+
+    /**
+     * @return "blocking" for a thread per connection or "nio" for the selector event loops
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    public int getEventloops() {
+        return eventloops;
+    }
+
+    /**
+     * @return "fixed" for a pool of poolsize threads or "virtual" for a virtual thread per connection
+     */
+    public String getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return how many ms a keep-alive connection may wait for its next request
+     */
+    public int getKeepalivetimeout() {
+        return keepalivetimeout;
+    }
+
+    /**
+     * @return the most requests served on one connection, 0 for no limit
+     */
+    public int getKeepalivemax() {
+        return keepalivemax;
+    }
+
+    /**
+     * @return the timeout= parameter of the Keep-Alive header, the keep-alive timeout in seconds
+     */
+    public String getKeepaliveparameter() {
+        return keepaliveparameter;
+    }
+
+    /**
+     * @return the most accepted connections that can wait for a pool thread
+     */
+    public int getQueuedepth() {
+        return queuedepth;
+    }
+
+    /**
+     * @return the acceptable ms for a connection to wait for a pool thread, 0 to never shed
+     */
+    public int getAdmissiontarget() {
+        return admissiontarget;
+    }
+
+    /**
+     * @return how many ms the waits must stay above the target before shedding
+     */
+    public int getAdmissioninterval() {
+        return admissioninterval;
+    }
+
+    /**
+     * @return the number of acceptor threads, each with its own shard of the pool
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * @return true to give each acceptor its own SO_REUSEPORT server socket
+     */
+    public boolean isReuseport() {
+        return reuseport;
+    }
+
+    /**
+     * @return the most request body bytes that are buffered in memory
+     */
+    public int getMaxbodybuffer() {
+        return maxbodybuffer;
+    }
+
+    /**
+     * @return the longest request line, longer ones get a 414
+     */
+    public int getMaxrequestline() {
+        return maxrequestline;
+    }
+
+    /**
+     * @return the longest header line, longer ones get a 431
+     */
+    public int getMaxheadersize() {
+        return maxheadersize;
+    }
+
+    /**
+     * @return the most bytes of all the header lines together, more get a 431
+     */
+    public int getMaxheaderbytes() {
+        return maxheaderbytes;
+    }
+
+    /**
+     * @return the most headers in a request, more get a 431
+     */
+    public int getMaxheadercount() {
+        return maxheadercount;
+    }
+
+    /**
+     * @return how many ms a client has to send a whole request head, 0 for no limit
+     */
+    public int getHeadertimeout() {
+        return headertimeout;
+    }
+
+    /**
+     * @return how many ms a request body may keep the server waiting before minbodyrate applies
+     */
+    public int getBodytimeout() {
+        return bodytimeout;
+    }
+
+    /**
+     * @return the slowest request body in bytes per second, 0 for no limit
+     */
+    public int getMinbodyrate() {
+        return minbodyrate;
+    }
+
+    /**
+     * @return how many ms a handler may take before the client gets a 503, 0 for no limit
+     */
+    public int getHandlertimeout() {
+        return handlertimeout;
+    }
+
+    /**
+     * @return the most bytes of static files kept in memory, 0 to read every file from the disk
+     */
+    public long getFilecachesize() {
+        return filecachesize;
+    }
+
+    /**
+     * @return the biggest static file kept in memory
+     */
+    public long getFilecachemaxfile() {
+        return filecachemaxfile;
+    }
+
+    /**
+     * @return true to keep the static files in direct buffers rather than on the heap
+     */
+    public boolean isFilecachedirect() {
+        return filecachedirect;
+    }
+
+    /**
+     * @return how many ms the attributes of a file are kept while the root isn't watched, 0 not to keep them
+     */
+    public int getStatcachettl() {
+        return statcachettl;
+    }
+
+    /**
+     * @return the biggest file to hash on the request thread, bigger ones get a weak ETag until they are hashed
+     */
+    public long getEtagmaxsync() {
+        return etagmaxsync;
+    }
+
+    /**
+     * @return the most uris that don't exist to remember, 0 to look for them every time
+     */
+    public int getNegativecachesize() {
+        return negativecachesize;
+    }
 }
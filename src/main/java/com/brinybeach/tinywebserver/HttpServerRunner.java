@@ -4,16 +4,21 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.rmi.server.ExportException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Accepts connections on the specified port and creates
@@ -26,17 +31,60 @@ import java.util.concurrent.atomic.AtomicReference;
  * port=8080
  * poolsize=20
  * timeout=5000
+ * keepalivetimeout=5000
+ * executor=fixed
+ * queuedepth=100
+ * admissiontarget=5
+ * admissioninterval=100
+ * acceptors=1
+ * reuseport=false
+ * headertimeout=10000
+ * bodytimeout=10000
+ * minbodyrate=500
+ * handlertimeout=30000
+ *
+ * At most queuedepth accepted connections wait for a pool thread. When
+ * the queue is full new connections get an immediate 503 response and are
+ * closed rather than waiting until the client has given up on them.
+ *
+ * A full queue alone still lets every connection wait for a long time under
+ * sustained overload. The HttpAdmissionController also sheds connections once
+ * the time spent waiting in the queue has stayed above admissiontarget ms for
+ * admissioninterval ms. Setting admissiontarget=0 turns this off.
+ *
+ * With acceptors=N there are N acceptor threads and the pool and queue are
+ * split into N shards, one per acceptor. The acceptors share one server
+ * socket unless reuseport=true, in which case each binds its own
+ * SO_REUSEPORT socket (Java 9 or newer on Linux) and the kernel spreads
+ * the new connections between them.
+ *
+ * The socket timeout only bounds the gap between two reads. A single shared
+ * HttpTimerWheel also closes connections with a 408 when the request head
+ * takes longer than headertimeout ms in total, or the body arrives slower
+ * than minbodyrate bytes per second after a grace of bodytimeout ms. A handler
+ * that takes longer than handlertimeout ms is interrupted and the client gets
+ * a 503 instead of its response.
+ *
+ * Setting executor=virtual runs every HttpConnectionRunner on its own
+ * virtual thread instead of the fixed pool. That needs a Java 21 runtime
+ * (see the jdk21 Maven profile) and falls back to the fixed pool otherwise.
  *
  * author: bryantbunderson
  */
 public class HttpServerRunner implements Runnable {
     private static final Logger logger = LogManager.getLogger(HttpServerRunner.class);
 
-    private static final HttpServerConfig config = HttpServerConfig.getInstance();
-
     private int port;
     private int poolsize;
     private int timeout;
+    private int keepalivetimeout;
+    private String executor;
+    private int queuedepth;
+    private int admissiontarget;
+    private int admissioninterval;
+    private int acceptors;
+    private boolean reuseport;
+    private HttpServerConfig config;
 
     private AtomicBoolean runningState = new AtomicBoolean(false);
 
@@ -44,9 +92,31 @@ public class HttpServerRunner implements Runnable {
      * A new HttpServerRunner
      */
     public HttpServerRunner() {
+        this(HttpServerConfig.getInstance());
+    }
+
+    /**
+     * A new HttpServerRunner with settings other than the server.properties file
+     *
+     * @param config the server settings
+     */
+    public HttpServerRunner(HttpServerConfig config) {
         this.port = config.getPort();
         this.poolsize = config.getPoolsize();
         this.timeout = config.getTimeout();
+        this.keepalivetimeout = config.getKeepalivetimeout();
+        this.executor = config.getExecutor();
+        this.queuedepth = config.getQueuedepth();
+        this.admissiontarget = config.getAdmissiontarget();
+        this.admissioninterval = config.getAdmissioninterval();
+        this.acceptors = Math.max(1, config.getAcceptors());
+        this.reuseport = config.isReuseport() && acceptors > 1;
+        this.config = config;
+
+        if (reuseport && getReusePortOption() == null) {
+            logger.warn("SO_REUSEPORT isn't available, the acceptors will share one server socket.");
+            reuseport = false;
+        }
     }
 
     public boolean isRunning() {
@@ -54,72 +124,217 @@ public class HttpServerRunner implements Runnable {
     }
 
     /**
-     * This method accepts connection from Web clients until
-     * the kill() method is called or it is interrupted.
+     * This method starts the acceptor threads and waits
+     * until it is interrupted before shutting them down.
      */
     @Override
     public void run() {
-        logger.info(String.format("Connection pool size is %d", poolsize));
         logger.info(String.format("Connection timeout is %d", timeout));
+        logger.info(String.format("Keep-alive timeout is %d", keepalivetimeout));
+        logger.info(String.format("Acceptor count is %d", acceptors));
+
+        if (admissiontarget > 0) {
+            logger.info(String.format("Admission target is %d ms over %d ms", admissiontarget, admissioninterval));
+        }
 
-        ExecutorService executorService = Executors.newFixedThreadPool(poolsize);
-        ServerSocket serverSocket = null;
+        // Each acceptor feeds its own shard of the connection pool with its own
+        // queue, idle watcher and admission controller, so the acceptors never
+        // contend with each other once a connection has been accepted.
+        ExecutorService[] executorServices = new ExecutorService[acceptors];
+        Thread timerThread = null;
+        Thread[] watcherThreads = new Thread[acceptors];
+        Thread[] acceptorThreads = new Thread[acceptors];
+        ServerSocket[] serverSockets = new ServerSocket[reuseport ? acceptors : 1];
+
+        List<BlockingQueue<Runnable>> queues = new ArrayList<BlockingQueue<Runnable>>();
 
         runningState.set(true);
 
+        // Watch the root and hash the files while the server is up
+        HttpFileManager fileManager = HttpFileManager.getInstance();
+        fileManager.start();
+
         try {
-            serverSocket = new ServerSocket(port);
-            serverSocket.setSoTimeout(2000);
+            for (int i = 0; i < serverSockets.length; i++) {
+                serverSockets[i] = openServerSocket();
+            }
 
-            logger.info(String.format("Server started on port %d", port));
+            // One timer wheel times the requests and handlers of every connection
+            HttpTimerWheel timerWheel = new HttpTimerWheel();
+            timerThread = new Thread(timerWheel, "http-timer-wheel");
+            timerThread.start();
+
+            for (int i = 0; i < acceptors; i++) {
+                executorServices[i] = createExecutorService(share(poolsize, i), share(queuedepth, i), queues);
 
-            // Wait for client connections on the port.
-            logger.debug("Waiting for client connection...");
-            while (!Thread.interrupted()) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-
-                    // Timeout client connections so that badly behaved Web clients
-                    // don't plug up our thread pool by not disconnecting properly.
-                    clientSocket.setSoTimeout(timeout);
-
-                    // Create a new clientRunner to handle the connection. Add the runner to
-                    // the executor service which wraps it in a thread from the pool. If the
-                    // thread pool is full then the runners are queued up until one comes
-                    // available. It's good to use a shortish timeout on the clientSocket so
-                    // that the thread pool isn't overwhelmed by dead connections that the
-                    // client doesn't close.
-                    HttpConnectionRunner connectionRunner = new HttpConnectionRunner(clientSocket);
-                    executorService.execute(connectionRunner);
-
-                } catch (SocketTimeoutException ignore) {
-                    // This was caused by the server socket accept timeout so ignored it
-                    // and continue as long as the server runner thread is not interrupted.
+                // Idle keep-alive connections are parked with the watcher
+                // between requests so they don't hold on to pool threads.
+                HttpIdleConnectionWatcher idleWatcher = new HttpIdleConnectionWatcher(executorServices[i], keepalivetimeout);
+                watcherThreads[i] = new Thread(idleWatcher, "http-idle-watcher-" + i);
+                watcherThreads[i].start();
+
+                // Virtual threads never queue, so there are no waits to control
+                HttpAdmissionController admissionController = null;
+                if (admissiontarget > 0 && executorServices[i] instanceof ThreadPoolExecutor) {
+                    admissionController = new HttpAdmissionController(admissiontarget, admissioninterval);
                 }
+
+                ServerSocket serverSocket = serverSockets[reuseport ? i : 0];
+                HttpAcceptor acceptor = new HttpAcceptor(serverSocket, executorServices[i], idleWatcher, admissionController, timerWheel, config);
+                acceptorThreads[i] = new Thread(acceptor, "http-acceptor-" + i);
             }
 
-            serverSocket.close();
-            serverSocket = null;
+            HttpServerStats.getInstance().setConnectionQueues(queues);
 
-            try {
-                executorService.shutdownNow();
-                executorService.awaitTermination(5000, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                logger.error("Client connections did not close down properly!");
+            for (Thread acceptorThread : acceptorThreads) {
+                acceptorThread.start();
             }
 
-            logger.info(String.format("Server shutdown", port));
+            logger.info(String.format("Server started on port %d", port));
+
+            // The acceptors only stop early if their server socket fails
+            try {
+                for (Thread acceptorThread : acceptorThreads) {
+                    acceptorThread.join();
+                }
+            } catch (InterruptedException ignore) {
+                // Interrupted to shut the server down
+            }
 
         } catch (IOException e) {
             logger.error(e);
         } finally {
-            if (serverSocket != null) {
-                logger.error("The server socket wasn't closed properly!");
-                try { serverSocket.close(); } catch (Exception ignore) {}
+            for (ServerSocket serverSocket : serverSockets) {
+                if (serverSocket != null) {
+                    try { serverSocket.close(); } catch (Exception ignore) {}
+                }
             }
+
+            try {
+                for (Thread acceptorThread : acceptorThreads) {
+                    if (acceptorThread != null) {
+                        acceptorThread.interrupt();
+                        acceptorThread.join(5000);
+                    }
+                }
+
+                for (Thread watcherThread : watcherThreads) {
+                    if (watcherThread != null) {
+                        watcherThread.interrupt();
+                        watcherThread.join(5000);
+                    }
+                }
+
+                if (timerThread != null) {
+                    timerThread.interrupt();
+                    timerThread.join(5000);
+                }
+
+                for (ExecutorService executorService : executorServices) {
+                    if (executorService != null) executorService.shutdownNow();
+                }
+                for (ExecutorService executorService : executorServices) {
+                    if (executorService != null) executorService.awaitTermination(5000, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                logger.error("Client connections did not close down properly!");
+            }
+
+            fileManager.stop();
+
+            logger.info("Server shutdown");
         }
 
         runningState.set(false);
     }
 
+    /**
+     * Open a server socket bound to the port. Accept through a ServerSocketChannel
+     * so that the client sockets have a SocketChannel that can be registered
+     * with the idle watcher Selector.
+     *
+     * @return the bound server socket
+     */
+    private ServerSocket openServerSocket() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        if (reuseport) {
+            serverChannel.setOption(getReusePortOption(), true);
+        }
+
+        ServerSocket serverSocket = serverChannel.socket();
+        serverSocket.bind(new InetSocketAddress(port));
+        serverSocket.setSoTimeout(2000);
+        return serverSocket;
+    }
+
+    /**
+     * SO_REUSEPORT lets several sockets bind to the same port and the kernel
+     * balances new connections between them. The option only exists in Java 9
+     * or newer so it is looked up by reflection.
+     *
+     * @return the SO_REUSEPORT option or null if this runtime or platform doesn't have it
+     */
+    @SuppressWarnings("unchecked")
+    static SocketOption<Boolean> getReusePortOption() {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            try {
+                return serverChannel.supportedOptions().contains(option) ? option : null;
+            } finally {
+                serverChannel.close();
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Split a setting evenly between the acceptors.
+     *
+     * @return the part of the total for acceptor i, at least 1
+     */
+    private int share(int total, int i) {
+        int part = total / acceptors + ((i < total % acceptors) ? 1 : 0);
+        return Math.max(1, part);
+    }
+
+    /**
+     * Create the ExecutorService that runs the HttpConnectionRunners of one
+     * acceptor. A virtual thread per connection is looked up by reflection
+     * so that the server still builds and runs on Java 8 where it falls
+     * back to the fixed pool.
+     *
+     * @param poolsize the threads in this shard of the pool
+     * @param queuedepth the connections that can wait in this shard
+     * @param queues collects the queue of the shard for the stats
+     * @return the ExecutorService for the connections
+     */
+    private ExecutorService createExecutorService(int poolsize, int queuedepth, List<BlockingQueue<Runnable>> queues) {
+        if ("virtual".equals(executor)) {
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                ExecutorService executorService = (ExecutorService) method.invoke(null);
+
+                logger.info("Connection executor is a virtual thread per connection");
+                logger.warn(String.format("queuedepth=%d and admissiontarget=%d don't apply to virtual threads, " +
+                    "connections are never answered with 503 Service Unavailable", this.queuedepth, admissiontarget));
+                return executorService;
+            } catch (Exception e) {
+                logger.warn("Virtual threads need Java 21, using the fixed connection pool.");
+            }
+        }
+
+        logger.info(String.format("Connection pool size is %d", poolsize));
+        logger.info(String.format("Connection queue depth is %d", queuedepth));
+
+        // Same as Executors.newFixedThreadPool() but with a bounded queue
+        // that makes execute() throw a RejectedExecutionException when full.
+        ArrayBlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(queuedepth);
+        queues.add(queue);
+
+        return new ThreadPoolExecutor(poolsize, poolsize, 0L, TimeUnit.MILLISECONDS, queue);
+    }
+
 }
@@ -0,0 +1,190 @@
+package com.brinybeach.tinywebserver;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters kept by the running server so that they can be
+ * reported by a dynamic handler such as the /rest/stats context.
+ *
+ * The counters are plain AtomicLongs and are safe to update
+ * from any of the acceptor or connection threads.
+ *
+ * author: bryantbunderson
+ */
+public class HttpServerStats {
+    private static final HttpServerStats instance = new HttpServerStats();
+
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong shedConnections = new AtomicLong();
+    private final AtomicLong requestLinesTooLong = new AtomicLong();
+    private final AtomicLong headersTooLarge = new AtomicLong();
+    private final AtomicLong requestsTimedOut = new AtomicLong();
+    private final AtomicLong handlersTimedOut = new AtomicLong();
+    private final AtomicLong fileCacheHits = new AtomicLong();
+    private final AtomicLong fileCacheMisses = new AtomicLong();
+    private final AtomicLong fileCacheEvictions = new AtomicLong();
+    private final AtomicLong notFoundHits = new AtomicLong();
+
+    private volatile List<? extends BlockingQueue<?>> connectionQueues = Collections.emptyList();
+
+    public static HttpServerStats getInstance() {
+        return instance;
+    }
+
+    private HttpServerStats() {
+    }
+
+    /**
+     * A connection was handed to the connection executor.
+     */
+    public void connectionAccepted() {
+        acceptedConnections.incrementAndGet();
+    }
+
+    /**
+     * A connection was turned away with a 503 because the queue was full.
+     */
+    public void connectionRejected() {
+        rejectedConnections.incrementAndGet();
+    }
+
+    /**
+     * A connection was turned away with a 503 by the HttpAdmissionController.
+     */
+    public void connectionShed() {
+        shedConnections.incrementAndGet();
+    }
+
+    /**
+     * A request was turned away with a 414 because its request line was too long.
+     */
+    public void requestLineTooLong() {
+        requestLinesTooLong.incrementAndGet();
+    }
+
+    /**
+     * A request was turned away with a 431 because its headers were too large.
+     */
+    public void headersTooLarge() {
+        headersTooLarge.incrementAndGet();
+    }
+
+    /**
+     * A connection was closed with a 408 because the request head or body was too slow.
+     */
+    public void requestTimedOut() {
+        requestsTimedOut.incrementAndGet();
+    }
+
+    /**
+     * A request was answered with a 503 because its handler took too long.
+     */
+    public void handlerTimedOut() {
+        handlersTimedOut.incrementAndGet();
+    }
+
+    /**
+     * A static file was sent from the HttpFileCache.
+     */
+    public void fileCacheHit() {
+        fileCacheHits.incrementAndGet();
+    }
+
+    /**
+     * A static file wasn't in the HttpFileCache.
+     */
+    public void fileCacheMiss() {
+        fileCacheMisses.incrementAndGet();
+    }
+
+    /**
+     * A static file was evicted from the HttpFileCache to make room for another.
+     */
+    public void fileCacheEviction() {
+        fileCacheEvictions.incrementAndGet();
+    }
+
+    /**
+     * A request was answered with a 404 because no file exists at its uri.
+     */
+    public void notFoundHit() {
+        notFoundHits.incrementAndGet();
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+
+    public long getShedConnections() {
+        return shedConnections.get();
+    }
+
+    public long getRequestLinesTooLong() {
+        return requestLinesTooLong.get();
+    }
+
+    public long getHeadersTooLarge() {
+        return headersTooLarge.get();
+    }
+
+    public long getRequestsTimedOut() {
+        return requestsTimedOut.get();
+    }
+
+    public long getHandlersTimedOut() {
+        return handlersTimedOut.get();
+    }
+
+    public long getFileCacheHits() {
+        return fileCacheHits.get();
+    }
+
+    public long getFileCacheMisses() {
+        return fileCacheMisses.get();
+    }
+
+    public long getFileCacheEvictions() {
+        return fileCacheEvictions.get();
+    }
+
+    public long getNotFoundHits() {
+        return notFoundHits.get();
+    }
+
+    /**
+     * @param connectionQueues the queues of connections waiting for a pool thread, one per pool shard
+     */
+    public void setConnectionQueues(List<? extends BlockingQueue<?>> connectionQueues) {
+        this.connectionQueues = connectionQueues;
+    }
+
+    /**
+     * @return the number of connections waiting for a pool thread
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<?> queue : connectionQueues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the most connections that can wait for a pool thread
+     */
+    public int getQueueCapacity() {
+        int capacity = 0;
+        for (BlockingQueue<?> queue : connectionQueues) {
+            capacity += queue.size() + queue.remainingCapacity();
+        }
+        return capacity;
+    }
+}
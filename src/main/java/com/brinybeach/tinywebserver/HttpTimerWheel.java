@@ -0,0 +1,269 @@
+package com.brinybeach.tinywebserver;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A hashed timing wheel for the connection timeouts.
+ *
+ * Time is cut into ticks and the wheel has a bucket for each tick, a
+ * timeout goes in the bucket of the tick it expires on and counts down
+ * the number of times round the wheel it still has to wait. Scheduling
+ * and cancelling are O(1) no matter how many timeouts are waiting, and
+ * a tick only looks at its own bucket. Timeouts fire on the tick after
+ * their delay, never before it, so their precision is one tick.
+ *
+ * Any thread can schedule and cancel. The timeouts are handed to the
+ * thread that advances the wheel through lock free queues and only that
+ * thread touches the buckets and runs the tasks. The wheel can run on
+ * its own thread or be advanced by a thread that has a loop of its own,
+ * like a HttpEventLoop, so that its tasks run on that thread.
+ *
+ * author: bryantbunderson
+ */
+class HttpTimerWheel implements Runnable {
+    private static final Logger logger = LogManager.getLogger(HttpTimerWheel.class);
+
+    private final long tickMillis;
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final long startTime;
+
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+    // The next tick to expire, only used by the thread that advances the wheel
+    private long tick;
+
+    /**
+     * A wheel of 512 ticks of 100 ms, once round the wheel is 51.2 seconds.
+     */
+    HttpTimerWheel() {
+        this(100, 512);
+    }
+
+    /**
+     * @param tickMillis the length of a tick in ms
+     * @param ticksPerWheel the number of buckets, rounded up to a power of two
+     */
+    HttpTimerWheel(long tickMillis, int ticksPerWheel) {
+        int size = 1;
+        while (size < ticksPerWheel) size <<= 1;
+
+        this.tickMillis = tickMillis;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.buckets = new Bucket[size];
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    /**
+     * @return the length of a tick in ms
+     */
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Run the task once the delay has passed. Safe to call from any thread.
+     *
+     * @param task the task, run by the thread that advances the wheel
+     * @param delayMillis the delay in ms
+     * @return the Timeout that can be cancelled
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0));
+
+        Timeout timeout = new Timeout(this, task, deadline);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Expire every tick up to now.
+     */
+    void advance() {
+        advance(System.nanoTime());
+    }
+
+    /**
+     * Expire every tick up to the time. Must always be called
+     * from the same thread, which runs the tasks that expire.
+     *
+     * @param nanoTime a System.nanoTime()
+     */
+    void advance(long nanoTime) {
+        long target = (nanoTime - startTime) / tickNanos;
+
+        while (tick <= target) {
+            transferPending();
+            removeCancelled();
+
+            buckets[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    /**
+     * Advance the wheel on its own thread until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.interrupted()) {
+                long sleep = startTime + tick * tickNanos - System.nanoTime();
+                if (sleep > 0) {
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleep + 999999));
+                }
+
+                advance();
+            }
+        } catch (InterruptedException ignore) {
+            // Interrupted to shut the server down
+        }
+    }
+
+    /**
+     * Put the timeouts scheduled since the last tick into their buckets.
+     */
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.state != Timeout.stateWaiting) continue;
+
+            // Round up so that a timeout never fires before its deadline
+            long expiresOn = (timeout.deadline + tickNanos - 1) / tickNanos;
+            timeout.remainingRounds = (expiresOn - tick) / buckets.length;
+
+            buckets[(int) (Math.max(expiresOn, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+    /**
+     * A task waiting in the wheel.
+     */
+    static final class Timeout {
+        private static final int stateWaiting = 0;
+        private static final int stateCancelled = 1;
+        private static final int stateExpired = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> stateUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HttpTimerWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+
+        private volatile int state = stateWaiting;
+
+        // Only used by the thread that advances the wheel
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(HttpTimerWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stop the task from running. Safe to call from any thread.
+         *
+         * @return false if the task already ran or was already cancelled
+         */
+        boolean cancel() {
+            if (!stateUpdater.compareAndSet(this, stateWaiting, stateCancelled)) return false;
+
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        boolean isCancelled() {
+            return state == stateCancelled;
+        }
+
+        boolean isExpired() {
+            return state == stateExpired;
+        }
+
+        private void expire() {
+            if (!stateUpdater.compareAndSet(this, stateWaiting, stateExpired)) return;
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error(e);
+            }
+        }
+    }
+
+    /**
+     * The timeouts of one tick in a doubly linked list, so they can be removed in O(1).
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            timeout.next = null;
+
+            if (tail == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) timeout.prev.next = timeout.next; else head = timeout.next;
+            if (timeout.next != null) timeout.next.prev = timeout.prev; else tail = timeout.prev;
+
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+        /**
+         * Run the timeouts that are due on this tick and count down the rest.
+         */
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+
+                if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+
+                timeout = next;
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.brinybeach.webserver;
 
+import com.brinybeach.tinywebserver.HttpSelectorServerRunner;
+import com.brinybeach.tinywebserver.HttpServerConfig;
 import com.brinybeach.tinywebserver.HttpServerRunner;
 import com.brinybeach.tinywebserver.handler.HttpRequestHandlerFactory;
 import org.apache.logging.log4j.LogManager;
@@ -17,7 +19,13 @@ public class Application {
         HttpRequestHandlerFactory handlerFactory = HttpRequestHandlerFactory.getInstance();
         handlerFactory.scanPackage(Application.class.getPackage().getName());
 
-        HttpServerRunner serverRunner = new HttpServerRunner();
-        serverRunner.run();
+        // Use the selector event loops or a thread per connection
+        if ("nio".equals(HttpServerConfig.getInstance().getEngine())) {
+            HttpSelectorServerRunner serverRunner = new HttpSelectorServerRunner();
+            serverRunner.run();
+        } else {
+            HttpServerRunner serverRunner = new HttpServerRunner();
+            serverRunner.run();
+        }
     }
 }
@@ -6,11 +6,11 @@ import com.brinybeach.tinywebserver.annotation.HttpRequestHandler;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.ByteArrayInputStream;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Locale;
-import java.util.TimeZone;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * The one dynamic Web content generator in the TinyWebServer. It
@@ -37,24 +37,36 @@ public class StatsController {
 
     /**
      * Handle all GET requests made to the /rest/stats context and return HttpResponse
-     * with a ByteArrayInputStream containing the JSON object with the server stats.
+     * with a HttpContentWriter that writes the JSON object with the server stats as
+     * it is sent, so it never has to be built up to learn its length.
      *
      * @param request the HttpRequest to handle
      * @return the populated HttpResponse object
      */
     @HttpRequestHandler(method = "GET", uri = "/rest/stats")
     public HttpResponse handleStatsRequest(HttpRequest request) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-        String servertime = dateFormat.format(Calendar.getInstance().getTime());
+        HttpFileManager fileManager = HttpFileManager.getInstance();
 
-        String contentString = String.format("{ \"poolsize\": \"%s\", \"timeout\": \"%s\", \"servertime\": \"%s\"}", poolsize, timeout, servertime);
-        ByteArrayInputStream contentStream = new ByteArrayInputStream(contentString.getBytes());
+        HttpResponse response = new HttpResponse(200, new HttpContentWriter() {
+            @Override
+            public void write(OutputStream outputStream) throws IOException {
+                String servertime = HttpDate.now();
 
-        HttpFileManager fileManager = HttpFileManager.getInstance();
+                HttpServerStats stats = HttpServerStats.getInstance();
 
-        HttpResponse response = new HttpResponse(200, contentStream, contentString.length(), fileManager.getContentType(".json"));
+                Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+                writer.write(String.format("{ \"poolsize\": \"%s\", \"timeout\": \"%s\", \"servertime\": \"%s\", ",
+                    poolsize, timeout, servertime));
+                writer.write(String.format("\"queuedepth\": %d, \"queuecapacity\": %d, \"accepted\": %d, \"rejected\": %d, \"shed\": %d, ",
+                    stats.getQueueDepth(), stats.getQueueCapacity(), stats.getAcceptedConnections(), stats.getRejectedConnections(),
+                    stats.getShedConnections()));
+                writer.write(String.format("\"uritoolong\": %d, \"headerstoolarge\": %d, \"timedout\": %d, \"handlertimeouts\": %d, ",
+                    stats.getRequestLinesTooLong(), stats.getHeadersTooLarge(), stats.getRequestsTimedOut(), stats.getHandlersTimedOut()));
+                writer.write(String.format("\"cachehits\": %d, \"cachemisses\": %d, \"cacheevictions\": %d, \"notfoundhits\": %d}",
+                    stats.getFileCacheHits(), stats.getFileCacheMisses(), stats.getFileCacheEvictions(), stats.getNotFoundHits()));
+                writer.flush();
+            }
+        }, fileManager.getContentType(".json"));
         return response;
     }
 }
@@ -0,0 +1,89 @@
+package com.brinybeach.tinywebserver;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Check that the admission controller only sheds
+ * connections while there is a standing queue. The
+ * intervals are timed with a clock the tests move on.
+ *
+ * author: bryantbunderson
+ */
+public class HttpAdmissionControllerTest extends TestCase {
+    private static final long shortWait = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long longWait = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * A clock that only moves when it is told to.
+     */
+    private static class TestClock implements LongSupplier {
+        private long now;
+
+        @Override
+        public long getAsLong() {
+            return now;
+        }
+
+        private void advance(int millis) {
+            now += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    private final TestClock clock = new TestClock();
+
+    public void testBurstIsNotShed() {
+        HttpAdmissionController admissionController = new HttpAdmissionController(5, 20, clock);
+
+        // One long wait in an interval where others got through quickly
+        assertTrue(admissionController.admit(longWait));
+        assertTrue(admissionController.admit(shortWait));
+        clock.advance(30);
+
+        assertTrue(admissionController.admit(longWait));
+        assertFalse(admissionController.isOverloaded());
+    }
+
+    public void testStandingQueueIsShed() {
+        HttpAdmissionController admissionController = new HttpAdmissionController(5, 20, clock);
+
+        // Every connection in the interval waited longer than the target
+        assertTrue(admissionController.admit(longWait));
+        assertTrue(admissionController.admit(longWait));
+        clock.advance(30);
+
+        assertFalse(admissionController.admit(longWait));
+        assertTrue(admissionController.isOverloaded());
+
+        // Connections that got a thread quickly are still served
+        assertTrue(admissionController.admit(shortWait));
+    }
+
+    public void testOverloadEnds() {
+        HttpAdmissionController admissionController = new HttpAdmissionController(5, 20, clock);
+
+        admissionController.admit(longWait);
+        clock.advance(30);
+        admissionController.admit(longWait);
+        assertTrue(admissionController.isOverloaded());
+
+        // The queue drained during the interval
+        admissionController.admit(shortWait);
+        clock.advance(30);
+
+        assertFalse(admissionController.isOverloaded());
+        assertTrue(admissionController.admit(longWait));
+    }
+
+    public void testIntervalMustPass() {
+        HttpAdmissionController admissionController = new HttpAdmissionController(5, 20, clock);
+
+        // Long waits are only an overload once a whole interval has passed
+        admissionController.admit(longWait);
+        clock.advance(19);
+        assertTrue(admissionController.admit(longWait));
+        assertFalse(admissionController.isOverloaded());
+    }
+}
@@ -0,0 +1,53 @@
+package com.brinybeach.tinywebserver;
+
+import junit.framework.TestCase;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Check that header dates are formatted the way the SimpleDateFormat
+ * used to format them, and that all three formats are parsed.
+ *
+ * author: bryantbunderson
+ */
+public class HttpDateTest extends TestCase {
+
+    public void testFormat() {
+        assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", HttpDate.format(0));
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDate.format(784111777000L));
+        assertEquals("Tue, 29 Feb 2000 23:59:59 GMT", HttpDate.format(951868799000L));
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            long millis = (long) (random.nextDouble() * 4102444800000L);
+            assertEquals(dateFormat.format(new Date(millis)), HttpDate.format(millis));
+        }
+    }
+
+    public void testParse() {
+        assertEquals(784111777000L, HttpDate.parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(784111777000L, HttpDate.parse("Sunday, 06-Nov-94 08:49:37 GMT"));
+        assertEquals(784111777000L, HttpDate.parse("Sun Nov  6 08:49:37 1994"));
+        assertEquals(951868799000L, HttpDate.parse("Tue, 29 Feb 2000 23:59:59 GMT"));
+
+        long now = System.currentTimeMillis() / 1000 * 1000;
+        assertEquals(now, HttpDate.parse(HttpDate.format(now)));
+    }
+
+    public void testParseInvalid() {
+        assertEquals(-1, HttpDate.parse(null));
+        assertEquals(-1, HttpDate.parse(""));
+        assertEquals(-1, HttpDate.parse("yesterday"));
+        assertEquals(-1, HttpDate.parse("Sun, 06 Nov 1994 08:49:37 PST"));
+        assertEquals(-1, HttpDate.parse("Sun, 06 Foo 1994 08:49:37 GMT"));
+        assertEquals(-1, HttpDate.parse("Sun, 06 Nov 1994 25:49:37 GMT"));
+        assertEquals(-1, HttpDate.parse("Sun, 6 Nov 1994 08:49:37 GMT"));
+    }
+}
@@ -0,0 +1,131 @@
+package com.brinybeach.tinywebserver;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Check that small files are kept and shared, that the least recently
+ * used ones are evicted first, and that changed files are read again.
+ * The length and the modification time are the ones the HttpFileManager
+ * would pass in, straight from the file.
+ *
+ * author: bryantbunderson
+ */
+public class HttpFileCacheTest extends TestCase {
+    private File rootDir;
+    private HttpFileCache fileCache;
+    private HttpFileWatcher fileWatcher;
+
+    @Override
+    protected void setUp() throws IOException {
+        rootDir = Files.createTempDirectory("tinywebserver").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        if (fileWatcher != null) fileWatcher.stop();
+
+        File[] files = rootDir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        rootDir.delete();
+    }
+
+    public void testCachedFileIsShared() throws IOException {
+        fileCache = new HttpFileCache(1000, 100, true);
+        File file = write("a.txt", "Hello, World!");
+
+        ByteBuffer first = get(file);
+        ByteBuffer second = get(file);
+
+        assertEquals("Hello, World!", read(first));
+        assertEquals("Hello, World!", read(second));
+        assertTrue(second.isReadOnly());
+        assertEquals(1, fileCache.getCount());
+        assertEquals(13, fileCache.getSize());
+    }
+
+    public void testBigFileIsNotAdmitted() throws IOException {
+        fileCache = new HttpFileCache(1000, 100, false);
+        File file = write("big.txt", repeat('x', 101));
+
+        assertNull(get(file));
+        assertEquals(0, fileCache.getCount());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        fileCache = new HttpFileCache(300, 100, false);
+        File a = write("a.txt", repeat('a', 100));
+        File b = write("b.txt", repeat('b', 100));
+        File c = write("c.txt", repeat('c', 100));
+        File d = write("d.txt", repeat('d', 100));
+
+        get(a);
+        get(b);
+        get(c);
+        get(a);
+        get(d);
+
+        assertTrue(fileCache.contains(a));
+        assertFalse(fileCache.contains(b));
+        assertTrue(fileCache.contains(c));
+        assertTrue(fileCache.contains(d));
+        assertEquals(300, fileCache.getSize());
+    }
+
+    public void testWatchedFileIsInvalidated() throws Exception {
+        fileCache = new HttpFileCache(1000, 100, true);
+        fileWatcher = new HttpFileWatcher(rootDir.getPath());
+        fileWatcher.addListener(fileCache);
+        assertTrue(fileWatcher.start());
+
+        File file = write("a.txt", "first");
+        assertEquals("first", read(get(file)));
+
+        write("a.txt", "second");
+        for (int i = 0; i < 100 && fileCache.contains(file); i++) {
+            Thread.sleep(50);
+        }
+
+        assertFalse(fileCache.contains(file));
+        assertEquals("second", read(get(file)));
+    }
+
+    public void testChangedFileIsReadAgain() throws IOException {
+        fileCache = new HttpFileCache(1000, 100, false);
+
+        File file = write("a.txt", "first");
+        assertEquals("first", read(get(file)));
+
+        write("a.txt", "second");
+        assertEquals("second", read(get(file)));
+    }
+
+    private ByteBuffer get(File file) {
+        return fileCache.get(file, file.length(), file.lastModified());
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(rootDir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static String read(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) builder.append(c);
+        return builder.toString();
+    }
+}
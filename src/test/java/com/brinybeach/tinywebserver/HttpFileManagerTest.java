@@ -5,6 +5,11 @@ import junit.framework.TestCase;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
 
 /**
  * User: bryantbunderson
@@ -50,11 +55,194 @@ public class HttpFileManagerTest extends TestCase {
         assertEquals(length, totalBytes);
     }
 
-    public void testFileManagerGetHash() {
+    public void testFileManagerGetHash() throws Exception {
         File file = new File(config.getDirectory() + uri);
-        String actualHash = Integer.toHexString(String.format("%s-%d-%d", uri, file.length(), file.lastModified()).hashCode());
+        String actualHash = sha256(Files.readAllBytes(file.toPath())).substring(0, 32);
 
         String expectedHash = fileManager.getHash(uri);
         assertEquals(actualHash, expectedHash);
     }
+
+    public void testHashFollowsContent() throws Exception {
+        File rootDir = Files.createTempDirectory("tinywebserver").toFile();
+        File a = new File(rootDir, "a.txt");
+        File b = new File(rootDir, "b.txt");
+        Files.write(a.toPath(), "same".getBytes(StandardCharsets.US_ASCII));
+        Files.write(b.toPath(), "same".getBytes(StandardCharsets.US_ASCII));
+
+        try {
+            // Another deploy of the same content, an hour older
+            assertTrue(b.setLastModified(a.lastModified() - 3600000));
+
+            assertEquals(HttpFileManager.getContentHash(a), HttpFileManager.getContentHash(b));
+            assertEquals(32, HttpFileManager.getContentHash(a).length());
+
+            Files.write(b.toPath(), "different".getBytes(StandardCharsets.US_ASCII));
+            assertFalse(HttpFileManager.getContentHash(a).equals(HttpFileManager.getContentHash(b)));
+        } finally {
+            a.delete();
+            b.delete();
+            rootDir.delete();
+        }
+    }
+
+
+    public void testNormalizeUri() {
+        assertEquals("/test/test.html", HttpFileManager.normalize("/test/test.html"));
+        assertEquals("/test/test.html", HttpFileManager.normalize("//test/./test.html"));
+        assertEquals("/test/test.html", HttpFileManager.normalize("/dist/../test/test.html"));
+        assertEquals("/test.html", HttpFileManager.normalize("/../../test.html"));
+        assertEquals("/test/", HttpFileManager.normalize("/test//"));
+        assertEquals("/.env", HttpFileManager.normalize("/.env"));
+        assertEquals("/", HttpFileManager.normalize("/.."));
+    }
+
+    public void testFileInfoIsKeptUntilChanged() throws Exception {
+        File rootDir = Files.createTempDirectory("tinywebserver").toFile();
+        File file = new File(rootDir, "a.txt");
+        Files.write(file.toPath(), "first".getBytes(StandardCharsets.US_ASCII));
+
+        Properties properties = new Properties();
+        properties.setProperty("directory", rootDir.getPath());
+        properties.setProperty("statcachettl", "0");
+        HttpFileManager manager = new HttpFileManager(new HttpServerConfig(properties));
+        manager.start();
+
+        try {
+            HttpFileInfo fileInfo = manager.getFileInfo("/a.txt");
+            assertTrue(fileInfo.exists());
+            assertFalse(fileInfo.isDirectory());
+            assertEquals(5, fileInfo.getLength());
+            assertEquals("text/plain", fileInfo.getContentType());
+            assertSame(fileInfo, manager.getFileInfo("//a.txt"));
+
+            Files.write(file.toPath(), "second".getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < 100 && manager.getFileInfo("/a.txt") == fileInfo; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(6, manager.getLength("/a.txt"));
+        } finally {
+            manager.stop();
+            file.delete();
+            rootDir.delete();
+        }
+    }
+
+    public void testMissingFileIsKeptUntilCreated() throws Exception {
+        File rootDir = Files.createTempDirectory("tinywebserver").toFile();
+        File file = new File(rootDir, ".env");
+
+        Properties properties = new Properties();
+        properties.setProperty("directory", rootDir.getPath());
+        properties.setProperty("statcachettl", "0");
+        HttpFileManager manager = new HttpFileManager(new HttpServerConfig(properties));
+        manager.start();
+
+        try {
+            HttpFileInfo fileInfo = manager.getFileInfo("/.env");
+            assertFalse(fileInfo.exists());
+            assertSame(fileInfo, manager.getFileInfo("/.env"));
+
+            Files.write(file.toPath(), "SECRET=1".getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < 100 && !manager.exists("/.env"); i++) {
+                Thread.sleep(50);
+            }
+            assertTrue(manager.exists("/.env"));
+        } finally {
+            manager.stop();
+            file.delete();
+            rootDir.delete();
+        }
+    }
+
+    public void testMissingFilesAreBounded() throws IOException {
+        File rootDir = Files.createTempDirectory("tinywebserver").toFile();
+
+        Properties properties = new Properties();
+        properties.setProperty("directory", rootDir.getPath());
+        properties.setProperty("negativecachesize", "2");
+        HttpFileManager manager = new HttpFileManager(new HttpServerConfig(properties));
+
+        try {
+            HttpFileInfo first = manager.getFileInfo("/wp-admin");
+            HttpFileInfo second = manager.getFileInfo("/.git/config");
+            manager.getFileInfo("/wp-admin");
+            manager.getFileInfo("/phpmyadmin");
+
+            assertSame(first, manager.getFileInfo("/wp-admin"));
+            assertNotSame(second, manager.getFileInfo("/.git/config"));
+        } finally {
+            manager.stop();
+            rootDir.delete();
+        }
+    }
+
+    public void testUnchangedFileKeepsItsHash() throws Exception {
+        File rootDir = Files.createTempDirectory("tinywebserver").toFile();
+        File file = new File(rootDir, "a.txt");
+        Files.write(file.toPath(), "first".getBytes(StandardCharsets.US_ASCII));
+
+        Properties properties = new Properties();
+        properties.setProperty("directory", rootDir.getPath());
+        properties.setProperty("statcachettl", "1");
+        HttpFileManager manager = new HttpFileManager(new HttpServerConfig(properties));
+
+        try {
+            HttpFileInfo fileInfo = manager.getFileInfo("/a.txt");
+
+            // Same length and modification time, so the file isn't hashed again
+            long lastModified = file.lastModified();
+            Files.write(file.toPath(), "other".getBytes(StandardCharsets.US_ASCII));
+            assertTrue(file.setLastModified(lastModified));
+            Thread.sleep(5);
+
+            HttpFileInfo refreshed = manager.getFileInfo("/a.txt");
+            assertNotSame(fileInfo, refreshed);
+            assertEquals(fileInfo.getHash(), refreshed.getHash());
+        } finally {
+            file.delete();
+            rootDir.delete();
+        }
+    }
+
+    public void testBigFileHasWeakHashUntilHashed() throws Exception {
+        File rootDir = Files.createTempDirectory("tinywebserver").toFile();
+        File file = new File(rootDir, "big.bin");
+        byte[] content = "0123456789".getBytes(StandardCharsets.US_ASCII);
+        Files.write(file.toPath(), content);
+
+        Properties properties = new Properties();
+        properties.setProperty("directory", rootDir.getPath());
+        properties.setProperty("etagmaxsync", "4");
+        HttpFileManager manager = new HttpFileManager(new HttpServerConfig(properties));
+
+        try {
+            // Not hashed on the request thread, and nothing else hashes it until the manager starts
+            HttpFileInfo fileInfo = manager.getFileInfo("/big.bin");
+            assertTrue(fileInfo.isWeakHash());
+            assertEquals(Long.toHexString(10) + "-" + Long.toHexString(file.lastModified()), fileInfo.getHash());
+            assertSame(fileInfo, manager.getFileInfo("/big.bin"));
+
+            manager.start();
+            for (int i = 0; i < 100 && manager.getFileInfo("/big.bin").isWeakHash(); i++) {
+                Thread.sleep(50);
+            }
+
+            fileInfo = manager.getFileInfo("/big.bin");
+            assertFalse(fileInfo.isWeakHash());
+            assertEquals(sha256(content).substring(0, 32), fileInfo.getHash());
+        } finally {
+            manager.stop();
+            file.delete();
+            rootDir.delete();
+        }
+    }
+
+    private static String sha256(byte[] bytes) throws NoSuchAlgorithmException {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
 }
@@ -0,0 +1,68 @@
+package com.brinybeach.tinywebserver;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Check that the encoded heads are byte for byte what the
+ * status line and headers spell out, cached or not.
+ *
+ * author: bryantbunderson
+ */
+public class HttpHeadEncoderTest extends TestCase {
+
+    public void testCachedStatusLine() throws IOException {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Length", "183");
+        headers.put("Content-Type", "text/html");
+
+        assertEquals(
+            "HTTP/1.1 200 OK\r\n" +
+            "Content-Length: 183\r\n" +
+            "Content-Type: text/html\r\n" +
+            "\r\n",
+            encode(new HttpHeadEncoder(), "HTTP/1.1", 200, "OK", headers));
+
+        assertEquals("HTTP/1.0 404 Not Found\r\n\r\n",
+            encode(new HttpHeadEncoder(), "HTTP/1.0", 404, "Not Found", new LinkedHashMap<String, String>()));
+    }
+
+    public void testUncachedStatusAndHeader() throws IOException {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("X-Custom", "caf\u00e9 \u20ac");
+
+        assertEquals(
+            "HTTP/1.1 299 Whatever\r\n" +
+            "X-Custom: caf\u00e9 ?\r\n" +
+            "\r\n",
+            encode(new HttpHeadEncoder(), "HTTP/1.1", 299, "Whatever", headers));
+    }
+
+    public void testBufferIsReusedAndGrows() throws IOException {
+        HttpHeadEncoder encoder = new HttpHeadEncoder(16);
+
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Server", "TinyWebServer/1.0");
+        headers.put("Keep-Alive", "timeout=5, max=100");
+
+        String first = encode(encoder, "HTTP/1.1", 200, "OK", headers);
+        assertTrue(encoder.getBuffer().length >= first.length());
+
+        String second = encode(encoder, "HTTP/1.1", 304, "Not Modified", new LinkedHashMap<String, String>());
+        assertEquals("HTTP/1.1 304 Not Modified\r\n\r\n", second);
+        assertEquals(second.length(), encoder.size());
+    }
+
+    private static String encode(HttpHeadEncoder encoder, String version, int code, String reason,
+                                 Map<String, String> headers) throws IOException {
+        encoder.encode(version, code, reason, headers);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        encoder.writeTo(outputStream);
+        return outputStream.toString("ISO-8859-1");
+    }
+}
@@ -37,4 +37,18 @@ public class HttpRequestHandlerTest extends TestCase {
         HttpResponse response = handlerInstance.invokeHandler(request);
         assertNull(response);
     }
+
+    public void testNotFoundIsCountedOnce() throws IOException, HttpRequestParser.ParseException {
+        String data =
+            "GET /missing.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "\r\n";
+
+        HttpRequestParser parser = new HttpRequestParser();
+        HttpRequest request = parser.parse(new ByteArrayInputStream(data.getBytes()));
+
+        long hits = HttpServerStats.getInstance().getNotFoundHits();
+        assertEquals(404, HttpRequestDispatcher.dispatch(request).getCode());
+        assertEquals(hits + 1, HttpServerStats.getInstance().getNotFoundHits());
+    }
 }
@@ -2,8 +2,13 @@ package com.brinybeach.tinywebserver;
 
 import junit.framework.TestCase;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Properties;
 
 /**
  * User: bryantbunderson
@@ -286,4 +291,444 @@ public class HttpRequestParserTest extends TestCase {
         assertTrue(request.existsHeader("Accept"));
         assertEquals("*/*", request.getHeader("Accept"));
     }
+
+    public void testPipelinedRequests() throws IOException, HttpRequestParser.ParseException {
+        String data =
+            "POST /rest/echo HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Content-Length: 5\r\n" +
+            "\r\n" +
+            "hello" +
+            "GET /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "\r\n";
+
+        // The same buffered stream is parsed twice like on a keep-alive connection
+        BufferedInputStream inputStream = new BufferedInputStream(new ByteArrayInputStream(data.getBytes()));
+
+        HttpRequest request = new HttpRequestParser().parse(inputStream);
+        assertEquals("POST", request.getMethod());
+        assertEquals("/rest/echo", request.getUri());
+        assertEquals("hello", request.getBody());
+
+        request = new HttpRequestParser().parse(inputStream);
+        assertEquals("GET", request.getMethod());
+        assertEquals("/index.html", request.getUri());
+        assertEquals("localhost:8080", request.getHeader("Host"));
+
+        assertEquals(0, inputStream.available());
+    }
+
+    public void testUnreadBodyIsSkipped() throws IOException, HttpRequestParser.ParseException {
+        String data =
+            "POST /rest/echo HTTP/1.1\r\n" +
+            "Content-Length: 11\r\n" +
+            "\r\n" +
+            "hello world" +
+            "GET /index.html HTTP/1.1\r\n" +
+            "\r\n";
+
+        BufferedInputStream inputStream = new BufferedInputStream(new ByteArrayInputStream(data.getBytes()));
+        HttpRequestParser parser = new HttpRequestParser();
+
+        // Only read part of the body the way a handler might
+        HttpRequest request = parser.parse(inputStream);
+        assertTrue(request.existsBody());
+        byte[] bytes = new byte[5];
+        assertEquals(5, request.getBodyInputStream().read(bytes));
+        assertEquals("hello", new String(bytes));
+
+        request = parser.parse(inputStream);
+        assertEquals("GET", request.getMethod());
+        assertEquals("/index.html", request.getUri());
+        assertFalse(request.existsBody());
+        assertEquals(-1, request.getBodyInputStream().read());
+    }
+
+    public void testBodyNotReadPastContentLength() throws IOException, HttpRequestParser.ParseException {
+        String data =
+            "POST /rest/echo HTTP/1.1\r\n" +
+            "Content-Length: 5\r\n" +
+            "\r\n" +
+            "helloGET /index.html HTTP/1.1\r\n" +
+            "\r\n";
+
+        BufferedInputStream inputStream = new BufferedInputStream(new ByteArrayInputStream(data.getBytes()));
+        HttpRequest request = new HttpRequestParser().parse(inputStream);
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        ReadableByteChannel channel = request.getBodyChannel();
+        while (channel.read(buffer) != -1) ;
+        assertEquals(5, buffer.position());
+
+        assertTrue(request.drainBody(0));
+        assertEquals('G', inputStream.read());
+    }
+
+    public void testChunkedBody() throws IOException, HttpRequestParser.ParseException {
+        String data =
+            "POST /rest/echo HTTP/1.1\r\n" +
+            "Transfer-Encoding: chunked\r\n" +
+            "\r\n" +
+            "5;name=value\r\n" +
+            "hello\r\n" +
+            "6\r\n" +
+            " world\r\n" +
+            "0\r\n" +
+            "Checksum: 1234\r\n" +
+            "\r\n" +
+            "GET /index.html HTTP/1.1\r\n" +
+            "\r\n";
+
+        BufferedInputStream inputStream = new BufferedInputStream(new ByteArrayInputStream(data.getBytes()));
+        HttpRequestParser parser = new HttpRequestParser();
+
+        HttpRequest request = parser.parse(inputStream);
+        assertTrue(request.existsBody());
+        assertNull(request.getTrailer("Checksum"));
+        assertEquals("hello world", request.getBody());
+        assertEquals("1234", request.getTrailer("checksum"));
+
+        request = parser.parse(inputStream);
+        assertEquals("GET", request.getMethod());
+        assertEquals("/index.html", request.getUri());
+        assertEquals(0, inputStream.available());
+    }
+
+    public void testUnreadChunkedBodyIsSkipped() throws IOException, HttpRequestParser.ParseException {
+        String data =
+            "POST /rest/echo HTTP/1.1\r\n" +
+            "Transfer-Encoding: gzip, chunked\r\n" +
+            "Content-Length: 3\r\n" +
+            "\r\n" +
+            "a\r\n" +
+            "0123456789\r\n" +
+            "0\r\n" +
+            "\r\n" +
+            "GET /index.html HTTP/1.1\r\n" +
+            "\r\n";
+
+        BufferedInputStream inputStream = new BufferedInputStream(new ByteArrayInputStream(data.getBytes()));
+        HttpRequestParser parser = new HttpRequestParser();
+
+        HttpRequest request = parser.parse(inputStream);
+        assertEquals('0', request.getBodyInputStream().read());
+
+        request = parser.parse(inputStream);
+        assertEquals("GET", request.getMethod());
+    }
+
+    public void testBadChunkedBody() throws IOException, HttpRequestParser.ParseException {
+        String data =
+            "POST /rest/echo HTTP/1.1\r\n" +
+            "Transfer-Encoding: chunked\r\n" +
+            "\r\n" +
+            "5x\r\n" +
+            "hello\r\n" +
+            "0\r\n" +
+            "\r\n";
+
+        HttpRequest request = new HttpRequestParser().parse(new ByteArrayInputStream(data.getBytes()));
+        try {
+            request.getBodyInputStream().read();
+            fail("Bad chunk size was read");
+        } catch (IOException e) {
+            assertEquals("Bad character in chunk size", e.getMessage());
+        }
+    }
+
+    public void testUnsupportedTransferEncoding() throws IOException {
+        String data =
+            "POST /rest/echo HTTP/1.1\r\n" +
+            "Transfer-Encoding: chunked, gzip\r\n" +
+            "\r\n";
+
+        try {
+            new HttpRequestParser().parse(new ByteArrayInputStream(data.getBytes()));
+            fail("Unsupported Transfer-Encoding was parsed");
+        } catch (HttpRequestParser.ParseException e) {
+            assertEquals("Unsupported Transfer-Encoding", e.getMessage());
+        }
+    }
+
+    public void testHeaderLookup() throws IOException, HttpRequestParser.ParseException {
+        String data =
+            "GET /index.html HTTP/1.1\r\n" +
+            "host: localhost:8080\r\n" +
+            "connection: Upgrade , KEEP-ALIVE\r\n" +
+            "X-Forwarded-For: 10.0.0.1\r\n" +
+            "x-forwarded-for: 10.0.0.2\r\n" +
+            "\r\n";
+
+        HttpRequest request = new HttpRequestParser().parse(new ByteArrayInputStream(data.getBytes()));
+
+        assertTrue(request.existsHeader(HttpHeaderName.HOST));
+        assertEquals("localhost:8080", request.getHeader(HttpHeaderName.HOST));
+        assertEquals("localhost:8080", request.getHeader("HOST"));
+        assertEquals("Upgrade , KEEP-ALIVE", request.getHeader(HttpHeaderName.CONNECTION));
+
+        assertTrue(request.hasHeaderToken(HttpHeaderName.CONNECTION, "keep-alive"));
+        assertTrue(request.hasHeaderToken(HttpHeaderName.CONNECTION, "upgrade"));
+        assertFalse(request.hasHeaderToken(HttpHeaderName.CONNECTION, "close"));
+        assertFalse(request.hasHeaderToken(HttpHeaderName.TRANSFER_ENCODING, "chunked"));
+
+        // The last one wins when a header is repeated
+        assertEquals("10.0.0.2", request.getHeader("X-Forwarded-For"));
+        assertNull(request.getHeader("X-Forwarded"));
+        assertFalse(request.existsHeader(HttpHeaderName.COOKIE));
+    }
+
+    public void testRequestLineTooLong() throws IOException {
+        String data =
+            "GET /0123456789/0123456789/0123456789 HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "\r\n";
+
+        assertLimit(414, data, "maxrequestline", "32");
+    }
+
+    public void testHeaderTooLarge() throws IOException {
+        String data =
+            "GET /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Cookie: 0123456789012345678901234567890123456789\r\n" +
+            "\r\n";
+
+        assertLimit(431, data, "maxheadersize", "32");
+    }
+
+    public void testHeadersTooLarge() throws IOException {
+        String data =
+            "GET /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Accept: */*\r\n" +
+            "Accept-Language: en-US\r\n" +
+            "\r\n";
+
+        assertLimit(431, data, "maxheaderbytes", "48");
+    }
+
+    public void testTooManyHeaders() throws IOException {
+        String data =
+            "GET /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Accept: */*\r\n" +
+            "DNT: 1\r\n" +
+            "\r\n";
+
+        assertLimit(431, data, "maxheadercount", "2");
+    }
+
+    public void testHeadersAtTheLimits() throws IOException, HttpRequestParser.ParseException {
+        String data =
+            "GET /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Accept: */*\r\n" +
+            "\r\n";
+
+        Properties properties = new Properties();
+        properties.setProperty("maxrequestline", "26");
+        properties.setProperty("maxheadersize", "22");
+        properties.setProperty("maxheaderbytes", "37");
+        properties.setProperty("maxheadercount", "2");
+
+        HttpRequest request = new HttpRequestParser(new HttpServerConfig(properties)).parse(new ByteArrayInputStream(data.getBytes()));
+        assertEquals("*/*", request.getHeader("Accept"));
+    }
+
+    public void testBodyFollowsServerLimit() throws IOException, HttpRequestParser.ParseException {
+        String data =
+            "POST /rest/echo HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Content-Length: 11\r\n" +
+            "\r\n" +
+            "hello world";
+
+        Properties properties = new Properties();
+        properties.setProperty("maxbodybuffer", "11");
+        HttpRequest request = new HttpRequestParser(new HttpServerConfig(properties)).parse(new ByteArrayInputStream(data.getBytes()));
+        assertEquals("hello world", request.getBody());
+
+        properties.setProperty("maxbodybuffer", "10");
+        request = new HttpRequestParser(new HttpServerConfig(properties)).parse(new ByteArrayInputStream(data.getBytes()));
+        try {
+            request.getBody();
+            fail("A body over the server's maxbodybuffer was buffered");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testFeedEndlessHeader() {
+        Properties properties = new Properties();
+        properties.setProperty("maxheadersize", "1024");
+        HttpRequestParser parser = new HttpRequestParser(new HttpServerConfig(properties));
+
+        byte[] head = "GET /index.html HTTP/1.1\r\nCookie: ".getBytes();
+        assertEquals(HttpRequestParser.Status.NEED_MORE, parser.feed(head, 0, head.length));
+
+        // The line never ends, the parser gives up instead of buffering it
+        byte[] data = new byte[100];
+        Arrays.fill(data, (byte) 'a');
+
+        HttpRequestParser.Status status = HttpRequestParser.Status.NEED_MORE;
+        int fed = 0;
+        while (status == HttpRequestParser.Status.NEED_MORE) {
+            status = parser.feed(data, 0, data.length);
+            fed += data.length;
+        }
+        assertEquals(HttpRequestParser.Status.ERROR, status);
+        assertEquals(431, parser.getErrorCode());
+        assertTrue(fed <= 1100);
+    }
+
+    /**
+     * Parse the data with one of the limits set and check that
+     * both parse() and feed() fail with the status code.
+     */
+    private void assertLimit(int code, String data, String limit, String value) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(limit, value);
+        HttpServerConfig config = new HttpServerConfig(properties);
+
+        try {
+            new HttpRequestParser(config).parse(new ByteArrayInputStream(data.getBytes()));
+            fail("Request over the limit was parsed");
+        } catch (HttpRequestParser.ParseException e) {
+            assertEquals(code, e.getCode());
+        }
+
+        HttpRequestParser parser = new HttpRequestParser(config);
+        byte[] bytes = data.getBytes();
+        assertEquals(HttpRequestParser.Status.ERROR, parser.feed(bytes, 0, bytes.length));
+        assertEquals(code, parser.getErrorCode());
+    }
+
+    public void testParserReuse() throws IOException, HttpRequestParser.ParseException {
+        StringBuilder cookie = new StringBuilder();
+        for (int i = 0; i < 200; i++) cookie.append("session").append(i).append('=').append(i).append("; ");
+
+        // The second head is longer than the parser's first buffer
+        String first =
+            "GET /first.html?a=1 HTTP/1.0\r\n" +
+            "Host: localhost:8080\r\n" +
+            "\r\n";
+        String second =
+            "GET /second/page;type=a.html HTTP/1.1\r\n" +
+            "host: localhost:8081\r\n" +
+            "Cookie: " + cookie + "\r\n" +
+            "\r\n";
+
+        HttpRequestParser parser = new HttpRequestParser();
+        HttpRequest firstRequest = parser.parse(new ByteArrayInputStream(first.getBytes()));
+        HttpRequest secondRequest = parser.parse(new ByteArrayInputStream(second.getBytes()));
+
+        assertEquals("/first.html", firstRequest.getUri());
+        assertEquals("?a=1", firstRequest.getQuery());
+        assertEquals("HTTP/1.0", firstRequest.getVersion());
+        assertEquals("localhost:8080", firstRequest.getHeader("HOST"));
+
+        assertEquals("/second/page;type=a.html", secondRequest.getUri());
+        assertNull(secondRequest.getQuery());
+        assertEquals("localhost:8081", secondRequest.getHeader("Host"));
+        assertEquals(cookie.toString(), secondRequest.getHeader("Cookie"));
+    }
+
+    public void testFeedOneByteAtATime() {
+        byte[] data = (
+            "POST /rest/echo?x=1 HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Content-Length: 5\r\n" +
+            "\r\n" +
+            "hello").getBytes();
+
+        HttpRequestParser parser = new HttpRequestParser();
+        for (int i = 0; i < data.length - 1; i++) {
+            assertEquals(HttpRequestParser.Status.NEED_MORE, parser.feed(data, i, 1));
+            assertEquals(1, parser.getConsumed());
+        }
+        assertEquals(HttpRequestParser.Status.COMPLETE, parser.feed(data, data.length - 1, 1));
+
+        HttpRequest request = parser.getRequest();
+        assertEquals("POST", request.getMethod());
+        assertEquals("/rest/echo", request.getUri());
+        assertEquals("?x=1", request.getQuery());
+        assertEquals("localhost:8080", request.getHeader("Host"));
+        assertEquals("hello", request.getBody());
+    }
+
+    public void testFeedPipelinedRequests() {
+        byte[] data = (
+            "GET /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "\r\n" +
+            "GET /test/test.html HTTP/1.0\r\n" +
+            "\r\n").getBytes();
+
+        HttpRequestParser parser = new HttpRequestParser();
+
+        assertEquals(HttpRequestParser.Status.COMPLETE, parser.feed(data, 0, data.length));
+        assertEquals("/index.html", parser.getRequest().getUri());
+
+        // The second request wasn't consumed and is fed again
+        int offset = parser.getConsumed();
+        assertEquals(HttpRequestParser.Status.COMPLETE, parser.feed(data, offset, data.length - offset));
+        assertEquals("/test/test.html", parser.getRequest().getUri());
+        assertEquals("HTTP/1.0", parser.getRequest().getVersion());
+        assertEquals(data.length - offset, parser.getConsumed());
+    }
+
+    public void testFeedChunkedBody() {
+        byte[] data = (
+            "POST /rest/echo HTTP/1.1\r\n" +
+            "Transfer-Encoding: chunked\r\n" +
+            "\r\n" +
+            "5\r\n" +
+            "hello\r\n" +
+            "0\r\n" +
+            "Checksum: 1234\r\n" +
+            "\r\n" +
+            "GET /index.html HTTP/1.1\r\n").getBytes();
+
+        HttpRequestParser parser = new HttpRequestParser();
+        int offset = 0;
+        HttpRequestParser.Status status = HttpRequestParser.Status.NEED_MORE;
+        while (status == HttpRequestParser.Status.NEED_MORE) {
+            status = parser.feed(data, offset, 1);
+            offset += parser.getConsumed();
+        }
+        assertEquals(HttpRequestParser.Status.COMPLETE, status);
+        assertEquals("GET /index.html HTTP/1.1\r\n", new String(data, offset, data.length - offset));
+
+        HttpRequest request = parser.getRequest();
+        assertEquals("hello", request.getBody());
+        assertEquals("1234", request.getTrailer("Checksum"));
+    }
+
+    public void testFeedBodyTooLarge() {
+        byte[] data = (
+            "POST /rest/echo HTTP/1.1\r\n" +
+            "Content-Length: 5\r\n" +
+            "\r\n" +
+            "hello").getBytes();
+
+        Properties properties = new Properties();
+        properties.setProperty("maxbodybuffer", "4");
+
+        HttpRequestParser parser = new HttpRequestParser(new HttpServerConfig(properties));
+        assertEquals(HttpRequestParser.Status.ERROR, parser.feed(data, 0, data.length));
+        assertEquals(413, parser.getErrorCode());
+    }
+
+    public void testFeedBadRequest() {
+        byte[] data = (
+            "GET /index.html?q HTTP/1.1\r\n" +
+            "Host localhost:8080\r\n" +
+            "\r\n").getBytes();
+
+        HttpRequestParser parser = new HttpRequestParser();
+
+        assertEquals(HttpRequestParser.Status.NEED_MORE, parser.feed(data, 0, 20));
+        assertEquals(HttpRequestParser.Status.ERROR, parser.feed(data, 20, data.length - 20));
+        assertEquals(400, parser.getErrorCode());
+    }
 }
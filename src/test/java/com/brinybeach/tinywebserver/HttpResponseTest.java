@@ -6,6 +6,15 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Properties;
 
 /**
  * User: bryantbunderson
@@ -21,7 +30,15 @@ public class HttpResponseTest extends TestCase {
     {
         String uri = "/test/test.html";
         File file = new File(config.getDirectory() + uri);
-        actualHash = Integer.toHexString(String.format("%s-%d-%d", uri, file.length(), file.lastModified()).hashCode());
+        try {
+            StringBuilder builder = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file.toPath()))) {
+                builder.append(String.format("%02x", b));
+            }
+            actualHash = builder.substring(0, 32);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     public void testSimpleGetResponse() throws IOException, HttpRequestParser.ParseException {
@@ -41,7 +58,7 @@ public class HttpResponseTest extends TestCase {
 
         assertEquals(200, response.getCode());
         assertEquals("OK", response.getReason());
-        assertNotNull(response.getContentInputStream());
+        assertNotNull(response.getContentBuffer());
         assertEquals(183, response.getContentLength());
         assertEquals("text/html", response.getContentType());
     }
@@ -63,7 +80,7 @@ public class HttpResponseTest extends TestCase {
 
         assertEquals(200, response.getCode());
         assertEquals("OK", response.getReason());
-        assertNotNull(response.getContentInputStream());
+        assertNotNull(response.getContentBuffer());
         assertEquals(183, response.getContentLength());
         assertEquals("text/html", response.getContentType());
 
@@ -71,7 +88,7 @@ public class HttpResponseTest extends TestCase {
 
         assertEquals("TinyWebServer/1.0", response.getHeader("Server"));
         assertEquals("\""+actualHash+"\"", response.getHeader("ETag"));
-        assertEquals("close", response.getHeader("Connection"));
+        assertEquals("Keep-Alive", response.getHeader("Connection"));
         assertEquals("183", response.getHeader("Content-Length"));
         assertNotNull(response.getHeader("Date"));
         assertEquals("text/html", response.getHeader("Content-Type"));
@@ -95,7 +112,7 @@ public class HttpResponseTest extends TestCase {
 
         assertEquals(200, response.getCode());
         assertEquals("OK", response.getReason());
-        assertNotNull(response.getContentInputStream());
+        assertNotNull(response.getContentBuffer());
         assertEquals(183, response.getContentLength());
         assertEquals("text/html", response.getContentType());
 
@@ -109,6 +126,27 @@ public class HttpResponseTest extends TestCase {
         assertEquals("text/html", response.getHeader("Content-Type"));
     }
 
+    public void testServerKeepAlivePolicy() throws IOException, HttpRequestParser.ParseException {
+        Properties properties = new Properties();
+        properties.setProperty("keepalivetimeout", "300");
+        properties.setProperty("keepalivemax", "3");
+        HttpServerConfig serverConfig = new HttpServerConfig(properties);
+
+        HttpRequest request = parse("GET /test/test.html HTTP/1.1\r\nHost: localhost:8080\r\n\r\n");
+        HttpResponse response = new HttpResponse(200, request.getUri());
+
+        HttpResponseRules.apply(response, request, 1, serverConfig);
+
+        // Under a second is still advertised as one
+        assertEquals("Keep-Alive", response.getHeader("Connection"));
+        assertEquals("timeout=1, max=2", response.getHeader("Keep-Alive"));
+
+        response = new HttpResponse(200, request.getUri());
+        HttpResponseRules.apply(response, request, 3, serverConfig);
+
+        assertEquals("close", response.getHeader("Connection"));
+    }
+
     public void testCloseConnectionResponse() throws IOException, HttpRequestParser.ParseException {
         String data =
             "HEAD /test/test.html HTTP/1.1\r\n" +
@@ -127,7 +165,7 @@ public class HttpResponseTest extends TestCase {
 
         assertEquals(200, response.getCode());
         assertEquals("OK", response.getReason());
-        assertNotNull(response.getContentInputStream());
+        assertNotNull(response.getContentBuffer());
         assertEquals(183, response.getContentLength());
         assertEquals("text/html", response.getContentType());
 
@@ -277,6 +315,92 @@ public class HttpResponseTest extends TestCase {
         assertEquals(412, response.getCode());
     }
 
+    public void testLastModifiedResponse() throws IOException, HttpRequestParser.ParseException {
+        HttpRequest request = parse("GET /test/test.html HTTP/1.1\r\nHost: localhost:8080\r\n\r\n");
+        HttpResponse response = new HttpResponse(200, request.getUri());
+
+        HttpResponseRules.apply(response, request);
+
+        long lastModified = new File(config.getDirectory() + "/test/test.html").lastModified();
+        assertEquals(200, response.getCode());
+        assertEquals(HttpDate.format(lastModified), response.getHeader("Last-Modified"));
+    }
+
+    public void testIfModifiedSinceResponse() throws IOException, HttpRequestParser.ParseException {
+        HttpRequest request = parse("GET /test/test.html HTTP/1.1\r\nHost: localhost:8080\r\n" +
+            "If-Modified-Since: " + HttpDate.now() + "\r\n\r\n");
+        HttpResponse response = new HttpResponse(200, request.getUri());
+
+        HttpResponseRules.apply(response, request);
+
+        assertEquals(304, response.getCode());
+        assertNull(response.getContentBuffer());
+        assertNull(response.getHeader("Content-Length"));
+        assertEquals("\""+actualHash+"\"", response.getHeader("ETag"));
+
+        // Changed since the epoch
+        request = parse("GET /test/test.html HTTP/1.1\r\nHost: localhost:8080\r\n" +
+            "If-Modified-Since: Thu, 01 Jan 1970 00:00:00 GMT\r\n\r\n");
+        response = new HttpResponse(200, request.getUri());
+
+        HttpResponseRules.apply(response, request);
+
+        assertEquals(200, response.getCode());
+    }
+
+    public void testIfNoneMatchBeforeIfModifiedSince() throws IOException, HttpRequestParser.ParseException {
+        // The ETag doesn't match so the date is never looked at
+        HttpRequest request = parse("GET /test/test.html HTTP/1.1\r\nHost: localhost:8080\r\n" +
+            "If-None-Match: \"0000\"\r\nIf-Modified-Since: " + HttpDate.now() + "\r\n\r\n");
+        HttpResponse response = new HttpResponse(200, request.getUri());
+
+        HttpResponseRules.apply(response, request);
+
+        assertEquals(200, response.getCode());
+    }
+
+    public void testWeakETagResponse() throws IOException, HttpRequestParser.ParseException {
+        HttpRequest request = parse("GET /test/test.html HTTP/1.1\r\nHost: localhost:8080\r\n" +
+            "If-None-Match: \"" + actualHash + "\"\r\n\r\n");
+        HttpResponse response = new HttpResponse(200, request.getUri());
+        response.setContentHash(actualHash, true);
+
+        HttpResponseRules.apply(response, request);
+
+        // If-None-Match compares weakly
+        assertEquals(304, response.getCode());
+        assertEquals("W/\"" + actualHash + "\"", response.getHeader("ETag"));
+
+        // If-Match compares strongly, a weak ETag never matches
+        request = parse("PUT /test/test.html HTTP/1.1\r\nHost: localhost:8080\r\n" +
+            "If-Match: \"" + actualHash + "\"\r\n\r\n");
+        response = new HttpResponse(200, request.getUri());
+        response.setContentHash(actualHash, true);
+
+        HttpResponseRules.apply(response, request);
+
+        assertEquals(412, response.getCode());
+    }
+
+    public void testIfUnmodifiedSinceResponse() throws IOException, HttpRequestParser.ParseException {
+        HttpRequest request = parse("PUT /test/test.html HTTP/1.1\r\nHost: localhost:8080\r\n" +
+            "If-Unmodified-Since: Sunday, 06-Nov-94 08:49:37 GMT\r\n\r\n");
+        HttpResponse response = new HttpResponse(200, request.getUri());
+
+        HttpResponseRules.apply(response, request);
+
+        assertEquals(412, response.getCode());
+
+        // A matching If-Match takes precedence over the date
+        request = parse("PUT /test/test.html HTTP/1.1\r\nHost: localhost:8080\r\n" +
+            "If-Match: \"" + actualHash + "\"\r\nIf-Unmodified-Since: Sun Nov  6 08:49:37 1994\r\n\r\n");
+        response = new HttpResponse(200, request.getUri());
+
+        HttpResponseRules.apply(response, request);
+
+        assertEquals(200, response.getCode());
+    }
+
     public void testContentEncodingResponse() throws IOException, HttpRequestParser.ParseException {
         String data =
             "PUT /test/test.html HTTP/1.1\r\n" +
@@ -317,7 +441,7 @@ public class HttpResponseTest extends TestCase {
 
         assertEquals(200, response.getCode());
         assertEquals("OK", response.getReason());
-        assertNotNull(response.getContentInputStream());
+        assertNotNull(response.getContentBuffer());
         assertEquals(183, response.getContentLength());
         assertEquals("text/html", response.getContentType());
 
@@ -333,6 +457,38 @@ public class HttpResponseTest extends TestCase {
         assertTrue(result.contains("<h1>Hello, world!</h1>"));
     }
 
+    public void testTransferWriteResponse() throws IOException, HttpRequestParser.ParseException {
+        String data =
+            "GET /dist/css/bootstrap.min.css HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "\r\n";
+
+        HttpRequestParser parser = new HttpRequestParser();
+        HttpRequest request = parser.parse(new ByteArrayInputStream(data.getBytes()));
+
+        HttpResponse response = new HttpResponse(200, request.getUri());
+        assertNotNull(response.getContentChannel());
+
+        HttpResponseRules.apply(response, request);
+
+        // The file is transferred to the channel after the head is flushed to the stream
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        response.write(outputStream, Channels.newChannel(outputStream), true);
+
+        byte[] file = Files.readAllBytes(new File(config.getDirectory() + request.getUri()).toPath());
+        String result = outputStream.toString("ISO-8859-1");
+
+        assertTrue(result.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(result.contains("Content-Length: " + file.length + "\r\n"));
+        assertTrue(result.endsWith("\r\n\r\n" + new String(file, "ISO-8859-1")));
+    }
+
+    public void testSmallFileIsNotTransferred() throws IOException {
+        HttpResponse response = new HttpResponse(200, "/test/test.html");
+        assertNull(response.getContentChannel());
+        assertNotNull(response.getContentBuffer());
+    }
+
     public void testSimpleWriteErrorResponse() throws IOException, HttpRequestParser.ParseException {
         String data =
             "PUT /test/test.html HTTP/1.1\r\n" +
@@ -357,7 +513,247 @@ public class HttpResponseTest extends TestCase {
         response.write(outputStream);
 
         String result = outputStream.toString();
-        assertTrue(result.contains("HTTP/1.1 415 Unsupported Media Type\r\nServer: TinyWebServer/1.0\r\nConnection: close"));
+        assertTrue(result.startsWith("HTTP/1.1 415 Unsupported Media Type\r\n"));
+        assertTrue(result.contains("Server: TinyWebServer/1.0\r\n"));
+        assertTrue(result.contains("Connection: Keep-Alive\r\n"));
+    }
+
+    public void testHttp10DefaultsToClose() throws IOException, HttpRequestParser.ParseException {
+        HttpRequest request = parse(
+            "GET /test/test.html HTTP/1.0\r\n" +
+            "\r\n");
+
+        HttpResponse response = new HttpResponse(200, request.getUri());
+        HttpResponseRules.apply(response, request);
+
+        assertEquals("close", response.getHeader("Connection"));
+        assertNull(response.getHeader("Keep-Alive"));
+    }
+
+    public void testHttp10KeepAlive() throws IOException, HttpRequestParser.ParseException {
+        HttpRequest request = parse(
+            "GET /test/test.html HTTP/1.0\r\n" +
+            "connection: keep-alive\r\n" +
+            "\r\n");
+
+        HttpResponse response = new HttpResponse(200, request.getUri());
+        HttpResponseRules.apply(response, request);
+
+        HttpServerConfig config = HttpServerConfig.getInstance();
+        assertEquals("Keep-Alive", response.getHeader("Connection"));
+        assertEquals(String.format("timeout=%d, max=%d", config.getKeepalivetimeout() / 1000, config.getKeepalivemax() - 1),
+                response.getHeader("Keep-Alive"));
+    }
+
+    public void testCloseTokenInHeaderList() throws IOException, HttpRequestParser.ParseException {
+        HttpRequest request = parse(
+            "GET /test/test.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "CONNECTION: TE, Close\r\n" +
+            "\r\n");
+
+        HttpResponse response = new HttpResponse(200, request.getUri());
+        HttpResponseRules.apply(response, request);
+
+        assertEquals("close", response.getHeader("Connection"));
+    }
+
+    public void testKeepAliveRequestCap() throws IOException, HttpRequestParser.ParseException {
+        HttpRequest request = parse(
+            "GET /test/test.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "\r\n");
+
+        int keepAliveMax = HttpServerConfig.getInstance().getKeepalivemax();
+
+        HttpResponse response = new HttpResponse(200, request.getUri());
+        HttpResponseRules.apply(response, request, keepAliveMax - 1);
+        assertEquals("Keep-Alive", response.getHeader("Connection"));
+        assertTrue(response.getHeader("Keep-Alive").endsWith("max=1"));
+
+        response = new HttpResponse(200, request.getUri());
+        HttpResponseRules.apply(response, request, keepAliveMax);
+        assertEquals("close", response.getHeader("Connection"));
+    }
+
+    public void testSmallResponseIsOneWrite() throws IOException, HttpRequestParser.ParseException {
+        HttpRequest request = parse(
+            "GET /test/test.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "\r\n");
+
+        HttpResponse response = new HttpResponse(200, request.getUri());
+        HttpResponseRules.apply(response, request);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        RecordingChannel channel = new RecordingChannel();
+        response.write(outputStream, channel, true);
+
+        assertEquals(0, outputStream.size());
+        assertEquals(1, channel.writes);
+
+        String result = channel.bytes.toString();
+        assertTrue(result.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(result.contains("<h1>Hello, world!</h1>"));
+        assertEquals(183, result.length() - result.indexOf("\r\n\r\n") - 4);
     }
 
+    public void testBufferResponseIsGathered() throws IOException {
+        byte[] json = "{ \"poolsize\": \"20\" }".getBytes();
+        ByteBuffer content = ByteBuffer.allocateDirect(json.length);
+        content.put(json);
+        content.flip();
+
+        HttpResponse response = new HttpResponse(200, content, "application/json");
+        assertEquals(json.length, response.getContentLength());
+        assertNull(response.getContentInputStream());
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        RecordingChannel channel = new RecordingChannel();
+        response.write(outputStream, channel, true);
+
+        assertEquals(1, channel.writes);
+        assertTrue(channel.bytes.toString().endsWith("\r\n\r\n{ \"poolsize\": \"20\" }"));
+
+        // The buffer can be shared, writing it doesn't move it
+        assertEquals(json.length, content.remaining());
+
+        // Without a channel it is copied to the stream
+        response.write(outputStream, null, true);
+        assertTrue(outputStream.toString().endsWith("\r\n\r\n{ \"poolsize\": \"20\" }"));
+    }
+
+    public void testChunkedWriterResponse() throws IOException, HttpRequestParser.ParseException {
+        HttpRequest request = parse(
+            "GET /generated HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "\r\n");
+
+        final byte[] content = new byte[20000];
+        for (int i = 0; i < content.length; i++) content[i] = (byte) ('a' + i % 26);
+
+        HttpResponse response = new HttpResponse(200, new HttpContentWriter() {
+            @Override
+            public void write(OutputStream outputStream) throws IOException {
+                outputStream.write(content, 0, 100);
+                outputStream.flush();
+                outputStream.write(content, 100, content.length - 100);
+            }
+        }, "text/plain");
+        HttpResponseRules.apply(response, request);
+
+        assertEquals("chunked", response.getHeader("Transfer-Encoding"));
+        assertNull(response.getHeader("Content-Length"));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        response.write(outputStream);
+
+        assertTrue(Arrays.equals(content, readChunked(outputStream.toByteArray())));
+    }
+
+    public void testHttp10WriterResponseCloses() throws IOException, HttpRequestParser.ParseException {
+        HttpRequest request = parse(
+            "GET /generated HTTP/1.0\r\n" +
+            "Connection: keep-alive\r\n" +
+            "\r\n");
+
+        HttpResponse response = new HttpResponse(200, new HttpContentWriter() {
+            @Override
+            public void write(OutputStream outputStream) throws IOException {
+                outputStream.write("generated".getBytes());
+            }
+        }, "text/plain");
+        HttpResponseRules.apply(response, request);
+
+        assertNull(response.getHeader("Transfer-Encoding"));
+        assertEquals("close", response.getHeader("Connection"));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        response.write(outputStream);
+        assertTrue(outputStream.toString().endsWith("\r\n\r\ngenerated"));
+    }
+
+    public void testDirectoryListing() throws IOException, HttpRequestParser.ParseException {
+        HttpRequest request = parse(
+            "GET /test/ HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "\r\n");
+
+        HttpResponse response = new HttpResponse(200, request.getUri());
+        assertNotNull(response.getContentWriter());
+        HttpResponseRules.apply(response, request);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        response.write(outputStream);
+
+        String listing = new String(readChunked(outputStream.toByteArray()), "UTF-8");
+        assertTrue(listing.startsWith("<!DOCTYPE html>"));
+        assertTrue(listing.contains("<a href=\"/test/test.html\">test.html</a>"));
+        assertTrue(listing.endsWith("</html>"));
+    }
+
+    /**
+     * Decode the chunked body of a response.
+     */
+    private static byte[] readChunked(byte[] response) throws IOException {
+        String head = new String(response, "ISO-8859-1");
+        int bodyStart = head.indexOf("\r\n\r\n") + 4;
+
+        InputStream inputStream = new HttpChunkedInputStream(
+            new ByteArrayInputStream(response, bodyStart, response.length - bodyStart));
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            body.write(buffer, 0, bytesRead);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Count the writes and keep the bytes.
+     */
+    private static class RecordingChannel implements GatheringByteChannel {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int writes;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                while (srcs[i].hasRemaining()) {
+                    bytes.write(srcs[i].get());
+                    written++;
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src });
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static HttpRequest parse(String data) throws IOException, HttpRequestParser.ParseException {
+        HttpRequestParser parser = new HttpRequestParser();
+        return parser.parse(new ByteArrayInputStream(data.getBytes()));
+    }
 }
@@ -6,11 +6,18 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
 import java.util.concurrent.*;
 
 /**
@@ -89,7 +96,569 @@ public class HttpServerTest extends TestCase {
         assertTrue(response.contains("Bad Request"));
     }
 
+    public void testMultipleAcceptors() {
+        String requestData =
+            "GET /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
+
+        // Falls back to a shared server socket where SO_REUSEPORT isn't available
+        Properties properties = new Properties();
+        properties.setProperty("acceptors", "2");
+        properties.setProperty("reuseport", "true");
+
+        String response = runServer(requestData, new HttpServerRunner(new HttpServerConfig(properties)));
+        assertTrue(response.contains("200 OK"));
+        assertTrue(response.contains("<title>Tiny Web Server</title>"));
+    }
+
+    public void testSelectorStaticGet() {
+        String requestData =
+            "GET /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "User-Agent: curl/7.43.0\r\n" +
+            "Accept: */*\r\n" +
+            "\r\n";
+
+        String response = runServer(requestData, new HttpSelectorServerRunner());
+
+        assertTrue(response.contains("<title>Tiny Web Server</title>"));
+    }
+
+    public void testLargeStaticGet() throws Exception {
+        assertLargeStaticGet(new HttpServerRunner());
+    }
+
+    public void testSelectorLargeStaticGet() throws Exception {
+        assertLargeStaticGet(new HttpSelectorServerRunner());
+    }
+
+    /**
+     * A file that is much bigger than the socket buffers has to
+     * arrive whole however many transfers it takes to send it.
+     */
+    private void assertLargeStaticGet(Runnable serverRunner) throws Exception {
+        String requestData =
+            "GET /dist/css/bootstrap.min.css.map HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
+
+        byte[] file = Files.readAllBytes(new File(HttpServerConfig.getInstance().getDirectory(), "dist/css/bootstrap.min.css.map").toPath());
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future future = executorService.submit(serverRunner);
+
+        synchronized (Thread.currentThread()) {
+            Thread.currentThread().wait(100);
+        }
+
+        Socket clientSocket = new Socket("localhost", 8080);
+        clientSocket.setSoTimeout(5000);
+
+        try {
+            OutputStream outputStream = clientSocket.getOutputStream();
+            outputStream.write(requestData.getBytes());
+            outputStream.flush();
+
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            InputStream inputStream = clientSocket.getInputStream();
+            byte buffer[] = new byte[65536];
+            int bytesRead;
+
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                response.write(buffer, 0, bytesRead);
+            }
+
+            byte[] bytes = response.toByteArray();
+            String head = new String(bytes, 0, Math.min(bytes.length, 1024));
+
+            assertTrue(head.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue(head.contains("Content-Length: " + file.length + "\r\n"));
+
+            int bodyStart = head.indexOf("\r\n\r\n") + 4;
+            assertEquals(file.length, bytes.length - bodyStart);
+            assertTrue(Arrays.equals(file, Arrays.copyOfRange(bytes, bodyStart, bytes.length)));
+        } finally {
+            clientSocket.close();
+
+            future.cancel(true);
+
+            synchronized (Thread.currentThread()) {
+                while (isRunning(serverRunner))
+                    Thread.currentThread().wait(100);
+            }
+        }
+    }
+
+    public void testStreamedResponse() throws Exception {
+        assertStreamedResponse(new HttpServerRunner());
+    }
+
+    public void testSelectorStreamedResponse() throws Exception {
+        assertStreamedResponse(new HttpSelectorServerRunner());
+    }
+
+    /**
+     * A megabyte written by a HttpContentWriter arrives chunked and whole.
+     */
+    private void assertStreamedResponse(Runnable serverRunner) throws Exception {
+        String requestData =
+            "GET /stream HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
+
+        HttpRequestHandlerFactory.getInstance().scanPackage(HttpServerTest.class.getPackage().getName());
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future future = executorService.submit(serverRunner);
+
+        synchronized (Thread.currentThread()) {
+            Thread.currentThread().wait(100);
+        }
+
+        Socket clientSocket = new Socket("localhost", 8080);
+        clientSocket.setSoTimeout(5000);
+
+        try {
+            OutputStream outputStream = clientSocket.getOutputStream();
+            outputStream.write(requestData.getBytes());
+            outputStream.flush();
+
+            InputStream inputStream = new BufferedInputStream(clientSocket.getInputStream());
+
+            StringBuilder head = new StringBuilder();
+            while (head.indexOf("\r\n\r\n") == -1) {
+                head.append((char) inputStream.read());
+            }
+            assertTrue(head.toString().startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue(head.toString().contains("Transfer-Encoding: chunked\r\n"));
+
+            InputStream bodyStream = new HttpChunkedInputStream(inputStream);
+            byte buffer[] = new byte[65536];
+            int total = 0;
+            int bytesRead;
+
+            while ((bytesRead = bodyStream.read(buffer)) != -1) {
+                for (int i = 0; i < bytesRead; i++) {
+                    int offset = total + i;
+                    byte expected = (offset % 1024 == 1023) ? (byte) '\n' : (byte) ('a' + (offset / 1024) % 26);
+                    if (buffer[i] != expected) fail("Wrong byte at " + offset);
+                }
+                total += bytesRead;
+            }
+
+            assertEquals(1024 * 1024, total);
+        } finally {
+            clientSocket.close();
+
+            future.cancel(true);
+
+            synchronized (Thread.currentThread()) {
+                while (isRunning(serverRunner))
+                    Thread.currentThread().wait(100);
+            }
+        }
+    }
+
+    /**
+     * A client that never reads a streamed response doesn't keep a worker forever.
+     */
+    public void testSelectorStalledStreamIsClosed() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("timeout", "500");
+        HttpSelectorServerRunner serverRunner = new HttpSelectorServerRunner(new HttpServerConfig(properties));
+
+        HttpRequestHandlerFactory.getInstance().scanPackage(HttpServerTest.class.getPackage().getName());
+        TestController.endlessStopped = false;
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future future = executorService.submit(serverRunner);
+
+        synchronized (Thread.currentThread()) {
+            Thread.currentThread().wait(100);
+        }
+
+        Socket clientSocket = new Socket();
+        clientSocket.setReceiveBufferSize(4096);
+        clientSocket.connect(new InetSocketAddress("localhost", 8080));
+
+        try {
+            OutputStream outputStream = clientSocket.getOutputStream();
+            outputStream.write("GET /endless HTTP/1.1\r\nHost: localhost:8080\r\n\r\n".getBytes());
+            outputStream.flush();
+
+            for (int i = 0; i < 100 && !TestController.endlessStopped; i++) {
+                Thread.sleep(50);
+            }
+            assertTrue(TestController.endlessStopped);
+        } finally {
+            clientSocket.close();
+
+            future.cancel(true);
+
+            synchronized (Thread.currentThread()) {
+                while (serverRunner.isRunning())
+                    Thread.currentThread().wait(100);
+            }
+        }
+    }
+
+    public void testSelectorDynamicContent() {
+        String requestData =
+            "GET /rest/stats HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "User-Agent: curl/7.43.0\r\n" +
+            "Accept: */*\r\n" +
+            "\r\n";
+
+        String response = runServer(requestData, new HttpSelectorServerRunner());
+
+        assertTrue(response.contains("poolsize"));
+        assertTrue(response.contains("timeout"));
+        assertTrue(response.contains("servertime"));
+    }
+
+    public void testSelectorBadMethod() {
+        String requestData =
+            "GOOT /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "User-Agent: curl/7.43.0\r\n" +
+            "Accept: */*\r\n" +
+            "\r\n";
+
+        String response = runServer(requestData, new HttpSelectorServerRunner());
+
+        assertTrue(response.contains("400"));
+        assertTrue(response.contains("Bad Request"));
+    }
+
+    public void testPipelinedRequests() {
+        String requestData =
+            "GET /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Connection: Keep-Alive\r\n" +
+            "\r\n" +
+            "GET /rest/stats HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Connection: Keep-Alive\r\n" +
+            "\r\n" +
+            "GET /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
+
+        assertPipelinedResponses(runPipelinedServer(requestData, new HttpServerRunner()));
+    }
+
+    public void testSelectorPipelinedRequests() {
+        String requestData =
+            "GET /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Connection: Keep-Alive\r\n" +
+            "\r\n" +
+            "GET /rest/stats HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Connection: Keep-Alive\r\n" +
+            "\r\n" +
+            "GET /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
+
+        assertPipelinedResponses(runPipelinedServer(requestData, new HttpSelectorServerRunner()));
+    }
+
+    private void assertPipelinedResponses(String response) {
+        // All three responses arrive in the order the requests were sent
+        int first = response.indexOf("<title>Tiny Web Server</title>");
+        int second = response.indexOf("servertime");
+        int third = response.lastIndexOf("<title>Tiny Web Server</title>");
+
+        assertTrue(first >= 0);
+        assertTrue(second > first);
+        assertTrue(third > second);
+    }
+
+    private String runPipelinedServer(String request, Runnable serverRunner) {
+        StringBuilder response = new StringBuilder();
+
+        try {
+            ExecutorService executorService = Executors.newSingleThreadExecutor();
+            Future future = executorService.submit(serverRunner);
+
+            synchronized (Thread.currentThread()) {
+                Thread.currentThread().wait(100);
+            }
+
+            Socket clientSocket = new Socket("localhost", 8080);
+            clientSocket.setSoTimeout(2000);
+
+            OutputStream outputStream = clientSocket.getOutputStream();
+            outputStream.write(request.getBytes());
+            outputStream.flush();
+
+            // The last request asks for a close so read until the server closes
+            InputStream inputStream = clientSocket.getInputStream();
+            byte buffer[] = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                response.append(new String(buffer, 0, bytesRead));
+            }
+
+            clientSocket.close();
+
+            future.cancel(true);
+
+            synchronized (Thread.currentThread()) {
+                while (isRunning(serverRunner))
+                    Thread.currentThread().wait(100);
+            }
+
+        } catch (IOException e) {
+            logger.error(e);
+        } catch (InterruptedException e) {
+            logger.error(e);
+        }
+
+        return response.toString();
+    }
+
+    public void testIdleConnectionDoesNotPinThread() throws Exception {
+        String requestData =
+            "GET /rest/stats HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Connection: Keep-Alive\r\n" +
+            "\r\n";
+
+        // A single pool thread is enough for any number of idle keep-alive connections.
+        Properties properties = new Properties();
+        properties.setProperty("poolsize", "1");
+        properties.setProperty("timeout", "10000");
+
+        HttpServerRunner serverRunner = new HttpServerRunner(new HttpServerConfig(properties));
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future future = executorService.submit(serverRunner);
+
+        synchronized (Thread.currentThread()) {
+            Thread.currentThread().wait(100);
+        }
+
+        Socket idleSocket = new Socket("localhost", 8080);
+        Socket activeSocket = new Socket("localhost", 8080);
+        activeSocket.setSoTimeout(2000);
+
+        try {
+            String idleResponse = sendRequest(idleSocket, requestData);
+            assertTrue(idleResponse.contains("servertime"));
+
+            // The idle connection is still open but the next client is served right away.
+            String activeResponse = sendRequest(activeSocket, requestData);
+            assertTrue(activeResponse.contains("servertime"));
+
+            // And the idle connection is picked up again when it sends another request.
+            idleResponse = sendRequest(idleSocket, requestData);
+            assertTrue(idleResponse.contains("servertime"));
+        } finally {
+            idleSocket.close();
+            activeSocket.close();
+
+            future.cancel(true);
+
+            synchronized (Thread.currentThread()) {
+                while (serverRunner.isRunning())
+                    Thread.currentThread().wait(100);
+            }
+        }
+    }
+
+    public void testFullQueueSheds503() throws Exception {
+        // One pool thread and room for one waiting connection
+        Properties properties = new Properties();
+        properties.setProperty("poolsize", "1");
+        properties.setProperty("queuedepth", "1");
+        properties.setProperty("timeout", "10000");
+
+        HttpServerRunner serverRunner = new HttpServerRunner(new HttpServerConfig(properties));
+        HttpServerStats stats = HttpServerStats.getInstance();
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future future = executorService.submit(serverRunner);
+
+        synchronized (Thread.currentThread()) {
+            Thread.currentThread().wait(100);
+        }
+
+        long rejected = stats.getRejectedConnections();
+
+        // The first connection holds the pool thread while it waits for a
+        // request and the second connection waits in the queue.
+        Socket busySocket = new Socket("localhost", 8080);
+        Thread.sleep(200);
+        Socket queuedSocket = new Socket("localhost", 8080);
+        Thread.sleep(200);
+        Socket rejectedSocket = new Socket("localhost", 8080);
+        rejectedSocket.setSoTimeout(2000);
+
+        try {
+            byte buffer[] = new byte[4096];
+            int bytesRead = rejectedSocket.getInputStream().read(buffer);
+            String response = new String(buffer, 0, bytesRead);
+
+            assertTrue(response.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+            assertTrue(response.contains("Retry-After: 1\r\n"));
+            assertEquals(-1, rejectedSocket.getInputStream().read());
+
+            assertEquals(rejected + 1, stats.getRejectedConnections());
+            assertEquals(1, stats.getQueueDepth());
+            assertEquals(1, stats.getQueueCapacity());
+        } finally {
+            busySocket.close();
+            queuedSocket.close();
+            rejectedSocket.close();
+
+            future.cancel(true);
+
+            synchronized (Thread.currentThread()) {
+                while (serverRunner.isRunning())
+                    Thread.currentThread().wait(100);
+            }
+        }
+    }
+
+    public void testSlowHeadGets408() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("headertimeout", "500");
+        properties.setProperty("timeout", "10000");
+
+        String response = runSlowClient(new HttpServerRunner(new HttpServerConfig(properties)), "GET /index.html HTTP/1.1\r\n", true);
+        assertTrue(response.startsWith("HTTP/1.1 408 Request Timeout\r\n"));
+    }
+
+    public void testSelectorSlowHeadGets408() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("headertimeout", "500");
+        properties.setProperty("keepalivetimeout", "10000");
+
+        String response = runSlowClient(new HttpSelectorServerRunner(new HttpServerConfig(properties)), "GET /index.html HTTP/1.1\r\n", true);
+        assertTrue(response.startsWith("HTTP/1.1 408 Request Timeout\r\n"));
+    }
+
+    public void testSlowBodyGets408() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("bodytimeout", "500");
+        properties.setProperty("minbodyrate", "100");
+        properties.setProperty("timeout", "10000");
+
+        String head =
+            "POST /index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Content-Length: 1000\r\n" +
+            "\r\n";
+
+        long timedOut = HttpServerStats.getInstance().getRequestsTimedOut();
+
+        String response = runSlowClient(new HttpServerRunner(new HttpServerConfig(properties)), head, false);
+        assertTrue(response.startsWith("HTTP/1.1 408 Request Timeout\r\n"));
+        assertEquals(timedOut + 1, HttpServerStats.getInstance().getRequestsTimedOut());
+    }
+
+    public void testSlowHandlerGets503() {
+        assertSlowHandler(new HttpServerRunner(new HttpServerConfig(handlerTimeout())));
+    }
+
+    public void testSelectorSlowHandlerGets503() {
+        assertSlowHandler(new HttpSelectorServerRunner(new HttpServerConfig(handlerTimeout())));
+    }
+
+    private Properties handlerTimeout() {
+        Properties properties = new Properties();
+        properties.setProperty("handlertimeout", "300");
+        return properties;
+    }
+
+    private void assertSlowHandler(Runnable serverRunner) {
+        String requestData =
+            "GET /slow HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "\r\n";
+
+        long timedOut = HttpServerStats.getInstance().getHandlersTimedOut();
+        long start = System.currentTimeMillis();
+
+        String response = runServer(requestData, serverRunner);
+        assertTrue(response.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+        assertTrue(System.currentTimeMillis() - start < 3000);
+        assertEquals(timedOut + 1, HttpServerStats.getInstance().getHandlersTimedOut());
+    }
+
+    /**
+     * Send the start of a request and then keep the connection busy
+     * with a byte every 100 ms, or nothing at all, until the server answers.
+     */
+    private String runSlowClient(Runnable serverRunner, String start, boolean trickle) throws Exception {
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future future = executorService.submit(serverRunner);
+
+        synchronized (Thread.currentThread()) {
+            Thread.currentThread().wait(100);
+        }
+
+        Socket clientSocket = new Socket("localhost", 8080);
+        clientSocket.setSoTimeout(100);
+
+        try {
+            OutputStream outputStream = clientSocket.getOutputStream();
+            outputStream.write(start.getBytes());
+            outputStream.flush();
+
+            InputStream inputStream = clientSocket.getInputStream();
+            byte buffer[] = new byte[4096];
+            long giveUp = System.currentTimeMillis() + 5000;
+
+            while (System.currentTimeMillis() < giveUp) {
+                try {
+                    int bytesRead = inputStream.read(buffer);
+                    return bytesRead == -1 ? "" : new String(buffer, 0, bytesRead);
+                } catch (SocketTimeoutException e) {
+                    if (trickle) {
+                        outputStream.write('X');
+                        outputStream.flush();
+                    }
+                }
+            }
+            return "";
+        } finally {
+            clientSocket.close();
+
+            future.cancel(true);
+
+            synchronized (Thread.currentThread()) {
+                while (isRunning(serverRunner))
+                    Thread.currentThread().wait(100);
+            }
+        }
+    }
+
+    private String sendRequest(Socket clientSocket, String request) throws IOException {
+        OutputStream outputStream = clientSocket.getOutputStream();
+        outputStream.write(request.getBytes());
+        outputStream.flush();
+
+        byte buffer[] = new byte[4096];
+        int bytesRead = clientSocket.getInputStream().read(buffer);
+
+        return new String(buffer, 0, bytesRead);
+    }
+
     private String runServer(String request) {
+        return runServer(request, new HttpServerRunner());
+    }
+
+    private String runServer(String request, Runnable serverRunner) {
 
         String response = "";
 
@@ -97,8 +666,6 @@ public class HttpServerTest extends TestCase {
             HttpRequestHandlerFactory handlerFactory = HttpRequestHandlerFactory.getInstance();
             handlerFactory.scanPackage(HttpServerTest.class.getPackage().getName());
 
-            HttpServerRunner serverRunner = new HttpServerRunner();
-
             ExecutorService executorService = Executors.newSingleThreadExecutor();
             Future future = executorService.submit(serverRunner);
 
@@ -125,7 +692,7 @@ public class HttpServerTest extends TestCase {
             future.cancel(true);
 
             synchronized (Thread.currentThread()) {
-                while (serverRunner.isRunning())
+                while (isRunning(serverRunner))
                     Thread.currentThread().wait(100);
             }
 
@@ -140,4 +707,11 @@ public class HttpServerTest extends TestCase {
 
         return response;
     }
+
+    private boolean isRunning(Runnable serverRunner) {
+        if (serverRunner instanceof HttpSelectorServerRunner) {
+            return ((HttpSelectorServerRunner) serverRunner).isRunning();
+        }
+        return ((HttpServerRunner) serverRunner).isRunning();
+    }
 }
@@ -0,0 +1,94 @@
+package com.brinybeach.tinywebserver;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Check that timeouts fire on time, never early,
+ * and not at all once they have been cancelled.
+ *
+ * author: bryantbunderson
+ */
+public class HttpTimerWheelTest extends TestCase {
+    private static final long ms = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public void testTimeoutFiresAfterDelay() {
+        HttpTimerWheel timerWheel = new HttpTimerWheel(100, 8);
+        AtomicInteger fired = new AtomicInteger();
+
+        HttpTimerWheel.Timeout timeout = timerWheel.schedule(counter(fired), 250);
+        long now = System.nanoTime();
+
+        timerWheel.advance(now + 200 * ms);
+        assertEquals(0, fired.get());
+
+        timerWheel.advance(now + 400 * ms);
+        assertEquals(1, fired.get());
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    public void testCancelledTimeoutDoesNotFire() {
+        HttpTimerWheel timerWheel = new HttpTimerWheel(100, 8);
+        AtomicInteger fired = new AtomicInteger();
+
+        HttpTimerWheel.Timeout timeout = timerWheel.schedule(counter(fired), 250);
+        long now = System.nanoTime();
+
+        timerWheel.advance(now + 100 * ms);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+
+        timerWheel.advance(now + 1000 * ms);
+        assertEquals(0, fired.get());
+        assertTrue(timeout.isCancelled());
+    }
+
+    public void testTimeoutAfterSeveralRounds() {
+        // Once round the wheel is 400 ms
+        HttpTimerWheel timerWheel = new HttpTimerWheel(100, 4);
+        AtomicInteger fired = new AtomicInteger();
+
+        timerWheel.schedule(counter(fired), 1050);
+        timerWheel.schedule(counter(fired), 50);
+        long now = System.nanoTime();
+
+        timerWheel.advance(now + 900 * ms);
+        assertEquals(1, fired.get());
+
+        timerWheel.advance(now + 1300 * ms);
+        assertEquals(2, fired.get());
+    }
+
+    public void testRunsOnItsOwnThread() throws InterruptedException {
+        HttpTimerWheel timerWheel = new HttpTimerWheel(10, 16);
+        AtomicInteger fired = new AtomicInteger();
+
+        Thread thread = new Thread(timerWheel);
+        thread.start();
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                timerWheel.schedule(counter(fired), i);
+            }
+            timerWheel.schedule(counter(fired), 50).cancel();
+
+            Thread.sleep(500);
+            assertEquals(100, fired.get());
+        } finally {
+            thread.interrupt();
+            thread.join(1000);
+        }
+    }
+
+    private static Runnable counter(final AtomicInteger fired) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                fired.incrementAndGet();
+            }
+        };
+    }
+}
@@ -4,7 +4,10 @@ import com.brinybeach.tinywebserver.annotation.HttpController;
 import com.brinybeach.tinywebserver.annotation.HttpRequestHandler;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Locale;
 import java.util.TimeZone;
@@ -25,6 +28,53 @@ public class TestController {
         return null;
     }
 
+    @HttpRequestHandler(method = "GET", uri = "/slow")
+    public HttpResponse handleSlowRequest(HttpRequest request) {
+        try {
+            Thread.sleep(5000);
+        } catch (InterruptedException e) {
+            return new HttpResponse(500);
+        }
+        return new HttpResponse(200);
+    }
+
+    @HttpRequestHandler(method = "GET", uri = "/stream")
+    public HttpResponse handleStreamRequest(HttpRequest request) {
+        return new HttpResponse(200, new HttpContentWriter() {
+            @Override
+            public void write(OutputStream outputStream) throws IOException {
+                byte[] line = new byte[1024];
+                for (int i = 0; i < 1024; i++) {
+                    Arrays.fill(line, (byte) ('a' + i % 26));
+                    line[line.length - 1] = '\n';
+                    outputStream.write(line);
+                }
+            }
+        }, "text/plain");
+    }
+
+    // Set once the writer of /endless has given up
+    static volatile boolean endlessStopped;
+
+    @HttpRequestHandler(method = "GET", uri = "/endless")
+    public HttpResponse handleEndlessRequest(HttpRequest request) {
+        return new HttpResponse(200, new HttpContentWriter() {
+            @Override
+            public void write(OutputStream outputStream) throws IOException {
+                byte[] line = new byte[1024];
+                Arrays.fill(line, (byte) 'x');
+                try {
+                    // Far more than the socket buffers hold, a client that doesn't read stops it
+                    for (int i = 0; i < 1024 * 1024; i++) {
+                        outputStream.write(line);
+                    }
+                } finally {
+                    endlessStopped = true;
+                }
+            }
+        }, "text/plain");
+    }
+
     @HttpRequestHandler(method = "GET", uri = "/rest/stats")
     public HttpResponse handleStatsRequest(HttpRequest request) {
         SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);